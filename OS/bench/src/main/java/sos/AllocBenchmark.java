@@ -0,0 +1,205 @@
+package sos;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This benchmark measures the OS's memory allocator
+ * ({@link SOS#allocBlock} and {@link SOS#freeBlock}, which is what
+ * freeCurrProcessMemBlock does when a process exits) once memory has become
+ * fragmented.
+ *
+ * Before measuring, blocks of random sizes are allocated until half of
+ * virtual memory is in use and then a random half of them are freed, which
+ * leaves holes of many sizes.  Each operation then frees a random live
+ * block and allocates a new one of a random size in its place, so the
+ * amount of memory in use (and roughly how fragmented it is) stays the
+ * same.  All of the random choices come from the seed.
+ *
+ * The blocks don't belong to processes so they are never moved.  There is
+ * plenty of free memory so allocations shouldn't need to compact it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocBenchmark
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the shape of memory.  Virtual memory is much bigger than RAM so that
+     * there is room for many blocks.
+     */
+    public static final int RAM_SIZE = 4096;
+    public static final int VIRTUAL_MEMORY_SIZE = 65536;
+    public static final int PAGE_SIZE = 64;
+
+    /** the largest block allocated (in pages) */
+    public static final int MAX_BLOCK_PAGES = 8;
+
+    /** the number of (slot, size) choices that are cycled through */
+    public static final int NUM_CHOICES = 4096;
+
+    //======================================================================
+    // Parameters
+    //----------------------------------------------------------------------
+
+    /** the seed of the block sizes and the order they are freed in */
+    @Param({"42"})
+    public long seed;
+
+    /** "first-fit" or "buddy" (see {@link SOS#setMemoryAllocator}) */
+    @Param({"first-fit", "buddy"})
+    public String allocator;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    private SOS m_OS = null;
+
+    /**
+     * the live blocks (address and size).  An address of
+     * SOS.ALLOC_BLOCK_FAILED marks an empty slot.
+     */
+    private int[] m_addrs = null;
+    private int[] m_sizes = null;
+
+    /**
+     * the block replaced by each operation and the size of its replacement
+     */
+    private int[] m_slots = new int[NUM_CHOICES];
+    private int[] m_newSizes = new int[NUM_CHOICES];
+    private int m_next = 0;
+
+    /**
+     * the number of allocations that failed
+     */
+    private long m_failures = 0;
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * setup
+     *
+     * creates the OS and fragments its memory
+     */
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        RAM ram = new RAM(RAM_SIZE, 0);
+        MMU mmu = new MMU(ram, VIRTUAL_MEMORY_SIZE, PAGE_SIZE);
+        CPU core = new CPU(ram, new InterruptController(1), mmu, 0);
+        m_OS = new SOS(core, ram, mmu);
+        m_OS.setMemoryAllocator(allocator.equals("buddy") ? SOS.ALLOC_BUDDY
+                                                          : SOS.ALLOC_FIRST_FIT);
+
+        //Fill half of memory
+        Random rng = new Random(seed);
+        int maxBlocks = mmu.getNumPages();
+        m_addrs = new int[maxBlocks];
+        m_sizes = new int[maxBlocks];
+        int numBlocks = 0;
+        int used = 0;
+        while(used < VIRTUAL_MEMORY_SIZE / 2)
+        {
+            int size = randomSize(rng);
+            m_addrs[numBlocks] = m_OS.allocBlock(size);
+            m_sizes[numBlocks] = size;
+            used += size;
+            numBlocks++;
+        }
+
+        //Free a random half of the blocks
+        for(int i = 0; i < numBlocks; i++)
+        {
+            if (rng.nextBoolean())
+            {
+                free(i);
+            }
+        }
+        m_addrs = Arrays.copyOf(m_addrs, numBlocks);
+        m_sizes = Arrays.copyOf(m_sizes, numBlocks);
+
+        for(int i = 0; i < NUM_CHOICES; i++)
+        {
+            m_slots[i] = rng.nextInt(numBlocks);
+            m_newSizes[i] = randomSize(rng);
+        }
+    }//setup
+
+    /**
+     * tearDown
+     *
+     * reports allocations that failed (which would make the numbers
+     * meaningless)
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if (m_failures > 0)
+        {
+            System.out.println("WARNING: " + m_failures + " allocations failed");
+        }
+    }//tearDown
+
+    /**
+     * randomSize
+     *
+     * @return the size of a block (a whole number of pages)
+     */
+    private static int randomSize(Random rng)
+    {
+        return (1 + rng.nextInt(MAX_BLOCK_PAGES)) * PAGE_SIZE;
+    }//randomSize
+
+    /**
+     * free
+     *
+     * frees the block in a slot (if any)
+     */
+    private void free(int slot)
+    {
+        if (m_addrs[slot] != SOS.ALLOC_BLOCK_FAILED)
+        {
+            m_OS.freeBlock(m_addrs[slot], m_sizes[slot]);
+            m_addrs[slot] = SOS.ALLOC_BLOCK_FAILED;
+        }
+    }//free
+
+    /**
+     * replace
+     *
+     * frees a block and allocates another one
+     *
+     * @return the address of the new block
+     */
+    @Benchmark
+    public int replace()
+    {
+        int i = m_next;
+        m_next = (i + 1) % NUM_CHOICES;
+
+        int slot = m_slots[i];
+        free(slot);
+        int addr = m_OS.allocBlock(m_newSizes[i]);
+        if (addr == SOS.ALLOC_BLOCK_FAILED)
+        {
+            m_failures++;
+        }
+        m_addrs[slot] = addr;
+        m_sizes[slot] = m_newSizes[i];
+        return addr;
+    }//replace
+
+};//class AllocBenchmark
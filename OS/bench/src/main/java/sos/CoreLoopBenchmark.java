@@ -0,0 +1,256 @@
+package sos;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This benchmark compares the two CPU run loops (see
+ * {@link CPU#setThreaded}) on small fixed programs (instruction "mixes").
+ * Each program is a loop that ends in a TRAP which stops the benchmark's
+ * trap handler so an operation is one complete run of the program.  The
+ * block compiler is off so that every instruction is interpreted, and
+ * instruction fusion (see {@link CPU#setFusionEnabled}) is set the same way
+ * for both loops by its own parameter.
+ *
+ * The programs are created by the simulator's own OS so that their memory
+ * is set up exactly as it would be in a simulation.  Their pages are all
+ * brought in by the first run (there is plenty of RAM) so the runs that are
+ * measured don't page fault.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoreLoopBenchmark
+{
+    /*======================================================================
+     * Inner Classes
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Halt
+     *
+     * is thrown by the trap handler to stop the CPU at the end of a run
+     */
+    private static class Halt extends RuntimeException
+    {
+        public Halt()
+        {
+            super("halt", null, false, false);
+        }
+    };//class Halt
+
+    /**
+     * BenchHandler
+     *
+     * handles page faults with the OS and stops the CPU at the first system
+     * call.  Clock interrupts are ignored so the program is never switched
+     * out.
+     */
+    private static class BenchHandler implements CPU.TrapHandler
+    {
+        private final SOS m_OS;
+
+        public BenchHandler(SOS os)
+        {
+            m_OS = os;
+        }
+
+        public void interruptPageFault(int addr) { m_OS.interruptPageFault(addr); }
+        public void interruptClock() { }
+        public void systemCall() { throw HALT; }
+
+        public void interruptIllegalMemoryAccess(int addr) { fail("illegal memory access at " + addr); }
+        public void interruptDivideByZero() { fail("divide by zero"); }
+        public void interruptIllegalInstruction(int[] instr) { fail("illegal instruction " + instr[0]); }
+        public void interruptIOReadComplete(int devID, int addr, int data) { fail("I/O interrupt"); }
+        public void interruptIOWriteComplete(int devID, int addr) { fail("I/O interrupt"); }
+
+        private void fail(String why)
+        {
+            throw new IllegalStateException("benchmark program failed: " + why);
+        }
+    };//class BenchHandler
+
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the exception that stops a run */
+    private static final Halt HALT = new Halt();
+
+    /** the shape of memory (the same as in Sim) */
+    public static final int RAM_SIZE = 4096;
+    public static final int PAGE_SIZE = 64;
+
+    /** how many times each program goes around its loop */
+    public static final int ITERATIONS = 10000;
+
+    /** arithmetic: ADD, MUL, SUB, COPY and a BNE back edge */
+    public static final String ALU_MIX =
+        "SET R1 0\n" +
+        "SET R2 1\n" +
+        "SET R3 " + ITERATIONS + "\n" +
+        ":loop\n" +
+        "ADD R1 R1 R2\n" +
+        "MUL R4 R1 R2\n" +
+        "SUB R4 R3 R1\n" +
+        "COPY R0 R4\n" +
+        "BNE R1 R3 loop\n" +
+        "TRAP\n";
+
+    /** memory: SAVE, LOAD, PUSH and POP around a counter */
+    public static final String MEMORY_MIX =
+        "SET R1 0\n" +
+        "SET R2 1\n" +
+        "SET R3 " + ITERATIONS + "\n" +
+        "SET R4 200\n" +
+        ":loop\n" +
+        "SAVE R1 R4\n" +
+        "LOAD R0 R4\n" +
+        "PUSH R0\n" +
+        "POP R0\n" +
+        "ADD R1 R2 R1\n" +
+        "BNE R1 R3 loop\n" +
+        "TRAP\n";
+
+    /** control flow: a BLT and two BRANCHes per iteration */
+    public static final String BRANCH_MIX =
+        "SET R1 0\n" +
+        "SET R2 1\n" +
+        "SET R3 " + ITERATIONS + "\n" +
+        ":loop\n" +
+        "ADD R1 R2 R1\n" +
+        "BLT R1 R3 skip\n" +
+        "BRANCH done\n" +
+        ":skip\n" +
+        "BRANCH loop\n" +
+        ":done\n" +
+        "TRAP\n";
+
+    //======================================================================
+    // Parameters
+    //----------------------------------------------------------------------
+
+    /** the run loop: "switch" (the original loop) or "threaded" */
+    @Param({"switch", "threaded"})
+    public String core;
+
+    /** the program: "alu", "memory" or "branch" */
+    @Param({"alu", "memory", "branch"})
+    public String mix;
+
+    /** whether the CPU fuses common instruction sequences */
+    @Param({"false", "true"})
+    public boolean fusion;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    private CPU m_CPU = null;
+
+    /**
+     * the registers the program starts with
+     */
+    private int[] m_startRegs = null;
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * setup
+     *
+     * assembles the program, creates a process for it and runs it once so
+     * that its pages are in RAM
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        String text = mix.equals("alu") ? ALU_MIX
+            : mix.equals("memory") ? MEMORY_MIX : BRANCH_MIX;
+        Program prog = assemble(text);
+
+        RAM ram = new RAM(RAM_SIZE, 0);
+        ram.setInstructionCache(new InstructionCache());
+        MMU mmu = new MMU(ram, Sim.VIRTUAL_MEMORY_SIZE, PAGE_SIZE);
+        InterruptController ic = new InterruptController(1);
+        m_CPU = new CPU(ram, ic, mmu, 0);
+        m_CPU.setFusionEnabled(fusion);
+        m_CPU.setThreaded(core.equals("threaded"));
+        mmu.setTLB(0, new TLB(Sim.TLB_ENTRIES, Sim.TLB_ASSOCIATIVITY, Sim.TLB_POLICY));
+
+        SOS os = new SOS(m_CPU, ram, mmu);
+        if (!os.createProcess(prog, 1024))
+        {
+            throw new IllegalStateException("could not create the process");
+        }
+        m_CPU.registerTrapHandler(new BenchHandler(os));
+        m_startRegs = m_CPU.getRegisters().clone();
+
+        run();
+    }//setup
+
+    /**
+     * assemble
+     *
+     * @return the program with the given source code
+     */
+    private static Program assemble(String text) throws IOException
+    {
+        File dir = File.createTempFile("mix", "");
+        dir.delete();
+        dir.mkdir();
+        File asm = new File(dir, "mix.asm");
+        try
+        {
+            FileWriter out = new FileWriter(asm);
+            out.write(text);
+            out.close();
+
+            Program prog = new Program();
+            if (prog.load(asm.getPath(), false) != 0)
+            {
+                throw new IllegalStateException("could not assemble:\n" + text);
+            }
+            return prog;
+        }
+        finally
+        {
+            new File(Program.getObjectFileName(asm.getPath())).delete();
+            asm.delete();
+            dir.delete();
+        }
+    }//assemble
+
+    /**
+     * run
+     *
+     * runs the program from the start to its TRAP
+     *
+     * @return the number of ticks the CPU has counted
+     */
+    @Benchmark
+    public int run()
+    {
+        System.arraycopy(m_startRegs, 0, m_CPU.getRegisters(), 0, CPU.NUMREG);
+        try
+        {
+            m_CPU.run();
+        }
+        catch(Halt h)
+        {
+            //the program finished
+        }
+        return m_CPU.getTicks();
+    }//run
+
+};//class CoreLoopBenchmark
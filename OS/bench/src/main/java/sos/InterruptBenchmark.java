@@ -0,0 +1,136 @@
+package sos;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This benchmark measures how fast interrupts pass through the interrupt
+ * controller: an operation is a device raising a batch of interrupts with
+ * {@link InterruptController#putData} followed by the core taking them all
+ * with {@link InterruptController#poll}.  (A core takes every pending
+ * interrupt at once, see CPU.checkForIOInterrupt.)  The interrupts come from
+ * several devices that are routed to different cores, chosen at random from
+ * the seed.
+ *
+ * The producer and consumer are the same thread so the numbers are the cost
+ * of the ring itself without any contention.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterruptBenchmark
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the number of cores the interrupts are spread over */
+    public static final int NUM_CORES = 2;
+
+    /** the number of devices raising interrupts */
+    public static final int NUM_DEVICES = 4;
+
+    /** the number of different interrupts that are cycled through */
+    public static final int NUM_RECORDS = 1024;
+
+    //======================================================================
+    // Parameters
+    //----------------------------------------------------------------------
+
+    /** the seed of the interrupts */
+    @Param({"42"})
+    public long seed;
+
+    /** the number of interrupts raised before they are taken */
+    @Param({"1", "16", "64"})
+    public int batch;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    private InterruptController m_IC = null;
+
+    /**
+     * the interrupts that are raised (type, device, address and data for
+     * each)
+     */
+    private int[] m_records = new int[NUM_RECORDS * InterruptController.RECORD_SIZE];
+
+    /**
+     * the next record to raise
+     */
+    private int m_next = 0;
+
+    /**
+     * receives the interrupts that are taken
+     */
+    private int[] m_record = new int[InterruptController.RECORD_SIZE];
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * setup
+     *
+     * creates the controller, routes the devices and makes up the
+     * interrupts
+     */
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        //Each core's ring must hold a whole batch
+        m_IC = new InterruptController(NUM_CORES, batch);
+        for(int dev = 0; dev < NUM_DEVICES; dev++)
+        {
+            m_IC.setRoute(dev, dev % NUM_CORES);
+        }
+
+        Random rng = new Random(seed);
+        for(int i = 0; i < m_records.length; i += InterruptController.RECORD_SIZE)
+        {
+            m_records[i] = rng.nextBoolean() ? InterruptController.INT_READ_DONE
+                                             : InterruptController.INT_WRITE_DONE;
+            m_records[i + 1] = rng.nextInt(NUM_DEVICES);
+            m_records[i + 2] = rng.nextInt(1024);
+            m_records[i + 3] = rng.nextInt();
+        }
+    }//setup
+
+    /**
+     * putAndPoll
+     *
+     * raises a batch of interrupts and then takes them all
+     *
+     * @return a checksum of the interrupts that were taken
+     */
+    @Benchmark
+    public int putAndPoll()
+    {
+        int[] records = m_records;
+        int next = m_next;
+        for(int i = 0; i < batch; i++)
+        {
+            m_IC.putData(records[next], records[next + 1], records[next + 2], records[next + 3]);
+            next = (next + InterruptController.RECORD_SIZE) % records.length;
+        }
+        m_next = next;
+
+        int sum = 0;
+        for(int core = 0; core < NUM_CORES; core++)
+        {
+            while(m_IC.poll(core, m_record))
+            {
+                sum += m_record[3];
+            }
+        }
+        return sum;
+    }//putAndPoll
+
+};//class InterruptBenchmark
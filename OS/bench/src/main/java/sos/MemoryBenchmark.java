@@ -0,0 +1,177 @@
+package sos;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This benchmark measures the memory path that every simulated instruction
+ * goes through: translating a virtual address ({@link MMU#translate}),
+ * fetching an instruction ({@link MMU#fetch(int, int[])}) and reading and
+ * writing physical RAM ({@link RAM#read}, {@link RAM#write}).
+ *
+ * Virtual memory is the same size as RAM and every page is mapped to the
+ * frame with the same number so nothing page faults.  The benchmark thread
+ * acts as core 0 so translations go through that core's TLB (if it has
+ * one).  Each operation touches ADDRESSES addresses, either one after the
+ * other or chosen at random from the seed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the shape of memory (the same as in Sim) */
+    public static final int RAM_SIZE = 4096;
+    public static final int PAGE_SIZE = 64;
+
+    /** the number of addresses touched by each operation */
+    public static final int ADDRESSES = 4096;
+
+    //======================================================================
+    // Parameters
+    //----------------------------------------------------------------------
+
+    /** the seed of the random addresses and the contents of RAM */
+    @Param({"42"})
+    public long seed;
+
+    /** "sequential" or "random" addresses */
+    @Param({"sequential", "random"})
+    public String pattern;
+
+    /** whether the core has a TLB */
+    @Param({"true", "false"})
+    public boolean tlb;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    private RAM m_RAM = null;
+    private MMU m_MMU = null;
+
+    /**
+     * the addresses used by each operation.  They are all above the page
+     * table and m_instrAddrs are all at the start of an instruction.
+     */
+    private int[] m_addrs = new int[ADDRESSES];
+    private int[] m_instrAddrs = new int[ADDRESSES];
+
+    /**
+     * receives fetched instructions
+     */
+    private int[] m_instr = new int[CPU.INSTRSIZE];
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * setup
+     *
+     * fills RAM with random words, maps every page and picks the addresses
+     */
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        m_RAM = new RAM(RAM_SIZE, 0);
+        m_RAM.setInstructionCache(new InstructionCache());
+        m_MMU = new MMU(m_RAM, RAM_SIZE, PAGE_SIZE);
+        CPU core = new CPU(m_RAM, new InterruptController(1), m_MMU, 0);
+        if (tlb)
+        {
+            m_MMU.setTLB(0, new TLB(TLB.DEFAULT_NUM_ENTRIES, TLB.DEFAULT_ASSOCIATIVITY, TLB.LRU));
+        }
+        CPU.setCurrentCore(core);
+
+        //The page table is at the bottom of RAM
+        int numPages = m_MMU.getNumPages();
+        int offset = m_MMU.getOffsetSize();
+        for(int page = 0; page < numPages; page++)
+        {
+            m_RAM.write(page, (page << offset) | MMU.VALID);
+        }
+
+        Random rng = new Random(seed);
+        int first = ((numPages + PAGE_SIZE - 1) / PAGE_SIZE) * PAGE_SIZE;
+        for(int addr = first; addr < RAM_SIZE; addr++)
+        {
+            m_RAM.write(addr, rng.nextInt());
+        }
+
+        int span = RAM_SIZE - first;
+        for(int i = 0; i < ADDRESSES; i++)
+        {
+            int addr = pattern.equals("random") ? rng.nextInt(span) : (i % span);
+            m_addrs[i] = first + addr;
+            m_instrAddrs[i] = first + (addr / CPU.INSTRSIZE) * CPU.INSTRSIZE;
+        }
+    }//setup
+
+    /**
+     * tearDown
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        CPU.setCurrentCore(null);
+    }//tearDown
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public int translate()
+    {
+        int sum = 0;
+        for(int addr : m_addrs)
+        {
+            sum += m_MMU.translate(addr);
+        }
+        return sum;
+    }//translate
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public int fetch()
+    {
+        int sum = 0;
+        for(int addr : m_instrAddrs)
+        {
+            m_MMU.fetch(addr, m_instr);
+            sum += m_instr[0];
+        }
+        return sum;
+    }//fetch
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public int ramRead()
+    {
+        int sum = 0;
+        for(int addr : m_addrs)
+        {
+            sum += m_RAM.read(addr);
+        }
+        return sum;
+    }//ramRead
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void ramWrite()
+    {
+        int[] addrs = m_addrs;
+        for(int i = 0; i < addrs.length; i++)
+        {
+            m_RAM.write(addrs[i], i);
+        }
+    }//ramWrite
+
+};//class MemoryBenchmark
@@ -0,0 +1,263 @@
+package sos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * This benchmark measures loading the programs bundled with the simulator
+ * (the .asm files, which the build packages with the benchmarks): an
+ * operation loads every one of them.  They are loaded either one after the
+ * other with {@link Program#load} or in parallel with a
+ * {@link ProgramLibrary}.
+ *
+ * The programs are copied to a temporary directory first.  In "parse" mode
+ * their object files are deleted before each operation so every program is
+ * assembled (and its object file written); in "object" mode the object
+ * files are left in place so every program is read from its object file.
+ *
+ * The files are always loaded in the same (sorted) order and nothing is
+ * random so there is no seed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgramLoadBenchmark
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** where the build puts the bundled programs (in the jar) */
+    public static final String ASM_RESOURCES = "asm/";
+
+    //======================================================================
+    // Parameters
+    //----------------------------------------------------------------------
+
+    /** "parse" or "object" */
+    @Param({"parse", "object"})
+    public String mode;
+
+    /** whether the programs are optimized (see Program.setOptimize) */
+    @Param({"false", "true"})
+    public boolean optimize;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the temporary directory and the programs in it
+     */
+    private File m_dir = null;
+    private List<String> m_paths = new ArrayList<String>();
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * setup
+     *
+     * copies the bundled programs to a temporary directory and loads each
+     * one once (which writes its object file)
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        m_dir = File.createTempFile("programs", "");
+        m_dir.delete();
+        m_dir.mkdir();
+
+        List<String> names = findPrograms();
+        if (names.isEmpty())
+        {
+            throw new IllegalStateException("no programs were bundled with the benchmarks");
+        }
+        //Programs that don't load (e.g., illegalInstruction.asm, which is
+        //meant to fail) are left out
+        for(String name : names)
+        {
+            File file = new File(m_dir, name);
+            copyResource(ASM_RESOURCES + name, file);
+            Program prog = new Program();
+            prog.setOptimize(optimize);
+            if (prog.load(file.getPath(), false) == 0)
+            {
+                m_paths.add(file.getPath());
+            }
+        }
+    }//setup
+
+    /**
+     * deleteObjects
+     *
+     * deletes the object files before each operation in "parse" mode
+     */
+    @Setup(Level.Invocation)
+    public void deleteObjects()
+    {
+        if (mode.equals("parse"))
+        {
+            for(String path : m_paths)
+            {
+                new File(Program.getObjectFileName(path)).delete();
+            }
+        }
+    }//deleteObjects
+
+    /**
+     * tearDown
+     *
+     * deletes the temporary directory
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for(File f : m_dir.listFiles())
+        {
+            f.delete();
+        }
+        m_dir.delete();
+    }//tearDown
+
+    /**
+     * findPrograms
+     *
+     * @return the names of the bundled programs, sorted
+     */
+    private static List<String> findPrograms() throws IOException
+    {
+        File where;
+        try
+        {
+            where = new File(ProgramLoadBenchmark.class.getProtectionDomain()
+                             .getCodeSource().getLocation().toURI());
+        }
+        catch(URISyntaxException e)
+        {
+            throw new IOException(e);
+        }
+
+        ArrayList<String> names = new ArrayList<String>();
+        if (where.isDirectory())
+        {
+            String[] files = new File(where, ASM_RESOURCES).list();
+            if (files != null)
+            {
+                for(String name : files)
+                {
+                    if (name.endsWith(ProgramLibrary.ASM_EXTENSION))
+                    {
+                        names.add(name);
+                    }
+                }
+            }
+        }
+        else
+        {
+            JarFile jar = new JarFile(where);
+            try
+            {
+                Enumeration<JarEntry> entries = jar.entries();
+                while(entries.hasMoreElements())
+                {
+                    String name = entries.nextElement().getName();
+                    if (name.startsWith(ASM_RESOURCES)
+                        && name.endsWith(ProgramLibrary.ASM_EXTENSION))
+                    {
+                        names.add(name.substring(ASM_RESOURCES.length()));
+                    }
+                }
+            }
+            finally
+            {
+                jar.close();
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }//findPrograms
+
+    /**
+     * copyResource
+     *
+     * copies a resource to a file
+     */
+    private static void copyResource(String resource, File file) throws IOException
+    {
+        InputStream in = ProgramLoadBenchmark.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null)
+        {
+            throw new IOException("missing resource " + resource);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while((n = in.read(buf)) > 0)
+            {
+                out.write(buf, 0, n);
+            }
+        }
+        finally
+        {
+            out.close();
+            in.close();
+        }
+    }//copyResource
+
+    /**
+     * loadEach
+     *
+     * loads the programs one after the other
+     *
+     * @return the total size of the programs
+     */
+    @Benchmark
+    public int loadEach()
+    {
+        int size = 0;
+        for(String path : m_paths)
+        {
+            Program prog = new Program();
+            prog.setOptimize(optimize);
+            prog.load(path, false);
+            size += prog.getSize();
+        }
+        return size;
+    }//loadEach
+
+    /**
+     * loadLibrary
+     *
+     * loads the programs in parallel
+     *
+     * @return the number of programs that could not be loaded
+     */
+    @Benchmark
+    public int loadLibrary()
+    {
+        ProgramLibrary lib = new ProgramLibrary();
+        lib.setOptimize(optimize);
+        return lib.loadAll(m_paths);
+    }//loadLibrary
+
+};//class ProgramLoadBenchmark
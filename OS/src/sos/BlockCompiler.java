@@ -0,0 +1,1037 @@
+package sos;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is the second execution tier of the simulated CPU.  It counts how
+ * often each basic block of guest code is entered and, once a block is hot,
+ * translates it into a JVM class whose single method runs the whole block
+ * straight-line against the CPU's register file.  HotSpot then compiles that
+ * method to native code like any other.
+ *
+ * A basic block starts at a block leader (the target or fall through of a
+ * BRANCH, BNE or BLT and the instruction after a TRAP) and ends just before the
+ * next BRANCH, BNE, BLT or TRAP.  Those terminating instructions, the clock
+ * interrupt and every fault are always handled by the interpreter in
+ * {@link CPU#run}: a compiled block simply stops and reports how many
+ * instructions it completed.
+ *
+ * Compiled blocks are keyed by physical address.  The RAM calls
+ * {@link #invalidate} whenever a word is written so that a block never runs
+ * after its code has changed.
+ *
+ * Several cores may share one compiler.  Lookups are not synchronized (a
+ * Block is immutable once published) but compiling and discarding are.  The
+ * execution counts aren't synchronized either, on purpose: two cores
+ * entering the same leader at once may lose a count, which only delays
+ * compiling that block a little.  The statistics are LongAdders so they
+ * don't lose anything.
+ *
+ * @see CPU
+ * @see RAM
+ * @see InstructionCache
+ */
+public class BlockCompiler
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+    public static final int DEFAULT_THRESHOLD = 50;
+    public static final int MAX_BLOCK_SIZE = 64;   // in instructions
+
+    /** the number of bits of a physical address that index a chunk */
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /** the count given to a leader whose block can not be compiled */
+    private static final int NEVER_COMPILE = Integer.MIN_VALUE;
+
+    //======================================================================
+    // Inner Classes
+    //----------------------------------------------------------------------
+
+    /**
+     * CompiledCode
+     *
+     * is implemented by every generated class.
+     */
+    public interface CompiledCode
+    {
+        /**
+         * run
+         *
+         * executes the block starting at a given instruction
+         *
+         * @param regs   the CPU's register file
+         * @param cpu    the CPU (used for memory accesses)
+         * @param start  the index of the first instruction to execute
+         * @param budget the maximum number of instructions to execute
+         * @return       the number of instructions that were completed
+         */
+        int run(int[] regs, CPU cpu, int start, int budget);
+    };//interface CompiledCode
+
+    /**
+     * class Block
+     *
+     * contains a compiled basic block
+     */
+    private class Block
+    {
+        /** the physical address of the first instruction */
+        final int start;
+        /** the number of instructions in the block */
+        final int length;
+        /** the generated code */
+        final CompiledCode code;
+
+        public Block(int start, int length, CompiledCode code)
+        {
+            this.start = start;
+            this.length = length;
+            this.code = code;
+        }
+    };//class Block
+
+    /**
+     * class Chunk
+     *
+     * contains the execution counts and compiled code for CHUNK_SIZE words
+     * of RAM.  Chunks are only created for RAM that actually holds code.
+     */
+    private class Chunk
+    {
+        /** number of times the leader at each address has been entered */
+        int counts[] = new int[CHUNK_SIZE];
+        /** the block containing the instruction at each address */
+        Block blocks[] = new Block[CHUNK_SIZE];
+        /** the index of that instruction within its block */
+        int index[] = new int[CHUNK_SIZE];
+    };//class Chunk
+
+    /**
+     * BlockLoader
+     *
+     * defines generated classes.  Each block gets its own loader so that an
+     * invalidated block's class can be unloaded.
+     */
+    private static class BlockLoader extends ClassLoader
+    {
+        public BlockLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        public Class<?> define(String name, byte[] b)
+        {
+            return defineClass(name, b, 0, b.length);
+        }
+    }//BlockLoader
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * specifies whether the compiler should output details of its work
+     **/
+    private boolean m_verbose = false;
+
+    /**
+     * whether or not compiled code is used
+     */
+    private boolean m_enabled = true;
+
+    /**
+     * the number of times a leader must be entered before it is compiled
+     */
+    private int m_threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * references to the hardware
+     */
+    private RAM m_RAM = null;
+    private MMU m_MMU = null;
+
+    /**
+     * the counters and code for each CHUNK_SIZE words of RAM
+     */
+    private Chunk m_chunks[] = null;
+
+    /**
+     * used to name generated classes
+     */
+    private int m_nextClassId = 0;
+
+    /**
+     * statistics.  These are updated by every core that shares the compiler.
+     */
+    private final LongAdder m_compiled = new LongAdder();
+    private final LongAdder m_invalidated = new LongAdder();
+    private final LongAdder m_compiledInstrs = new LongAdder();
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates an empty code cache
+     *
+     * @param ram        the RAM whose code is compiled
+     * @param mmu        the MMU (used to keep blocks inside a single page)
+     * @param threshold  the number of times a block must be entered before it
+     *                   is compiled
+     */
+    public BlockCompiler(RAM ram, MMU mmu, int threshold)
+    {
+        m_RAM = ram;
+        m_MMU = mmu;
+        m_threshold = threshold;
+        m_chunks = new Chunk[(ram.getSize() >> CHUNK_BITS) + 1];
+    }//ctor
+
+    /**
+     * This constructor uses the default threshold
+     */
+    public BlockCompiler(RAM ram, MMU mmu)
+    {
+        this(ram, mmu, DEFAULT_THRESHOLD);
+    }
+
+    //======================================================================
+    // Accessor Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * isEnabled
+     */
+    public boolean isEnabled()
+    {
+        return m_enabled;
+    }
+
+    /**
+     * setEnabled
+     *
+     * turns compilation on or off.  Turning it off discards all compiled code.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        if (!enabled)
+        {
+            m_chunks = new Chunk[m_chunks.length];
+        }
+        m_enabled = enabled;
+    }
+
+    /**
+     * getNumCompiled
+     *
+     * @return the number of blocks that have been compiled
+     */
+    public long getNumCompiled()
+    {
+        return m_compiled.sum();
+    }
+
+    /**
+     * getNumInvalidated
+     *
+     * @return the number of compiled blocks that were thrown away
+     */
+    public long getNumInvalidated()
+    {
+        return m_invalidated.sum();
+    }
+
+    /**
+     * getCompiledInstructions
+     *
+     * @return the number of instructions executed by compiled code
+     */
+    public long getCompiledInstructions()
+    {
+        return m_compiledInstrs.sum();
+    }
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * prepare
+     *
+     * is called by the CPU at the start of each basic block it is about to
+     * interpret.  The block's execution count is updated and the block is
+     * compiled once it is hot.  This doesn't touch the CPU's registers so
+     * the CPU only needs to make them current when it gets true.
+     *
+     * @param physPC  the physical address of the block leader
+     * @return        true if compiled code can be run from physPC (see
+     *                {@link #execute})
+     */
+    public boolean prepare(int physPC)
+    {
+        Chunk chunk = m_chunks[physPC >> CHUNK_BITS];
+        if (chunk == null)
+        {
+            chunk = chunkFor(physPC);
+        }
+
+        int slot = physPC & (CHUNK_SIZE - 1);
+        if (chunk.blocks[slot] != null)
+        {
+            return true;
+        }
+
+        //Count entries to this leader and compile it once it is hot
+        if (++chunk.counts[slot] < m_threshold) return false;
+        if (compile(physPC) == null)
+        {
+            chunk.counts[slot] = NEVER_COMPILE;
+            return false;
+        }
+        return true;
+    }//prepare
+
+    /**
+     * isCompiled
+     *
+     * is called by the CPU before an instruction that isn't a block leader
+     * (e.g., where compiled code stopped at a clock interrupt).  Unlike
+     * {@link #prepare} it doesn't count anything or compile anything.
+     *
+     * @param physPC  the physical address of the next instruction
+     * @return        true if compiled code can be run from physPC (see
+     *                {@link #execute})
+     */
+    public boolean isCompiled(int physPC)
+    {
+        Chunk chunk = m_chunks[physPC >> CHUNK_BITS];
+        return (chunk != null) && (chunk.blocks[physPC & (CHUNK_SIZE - 1)] != null);
+    }//isCompiled
+
+    /**
+     * execute
+     *
+     * runs the compiled block that contains an instruction, starting from
+     * that instruction.  The CPU calls this when {@link #prepare} returned
+     * true.  (The block may have been invalidated since, in which case
+     * nothing is run.)
+     *
+     * The caller is responsible for advancing the PC and the tick count by
+     * the number of instructions that were executed.
+     *
+     * @param cpu     the CPU executing the code
+     * @param physPC  the physical address of the next instruction
+     * @param budget  the maximum number of instructions to execute
+     * @return        the number of instructions executed (0 means the
+     *                interpreter should execute the next instruction)
+     */
+    public int execute(CPU cpu, int physPC, int budget)
+    {
+        Chunk chunk = m_chunks[physPC >> CHUNK_BITS];
+        if (chunk == null)
+        {
+            return 0;
+        }
+
+        int slot = physPC & (CHUNK_SIZE - 1);
+        Block b = chunk.blocks[slot];
+        if (b == null)
+        {
+            return 0;
+        }
+
+        int done = b.code.run(cpu.getRegisters(), cpu, chunk.index[slot], budget);
+        m_compiledInstrs.add(done);
+        return done;
+    }//execute
+
+    /**
+     * chunkFor
+     *
+     * @return the chunk for a given physical address, creating it if needed
+     */
+    private synchronized Chunk chunkFor(int physAddr)
+    {
+        Chunk chunk = m_chunks[physAddr >> CHUNK_BITS];
+        if (chunk == null)
+        {
+            chunk = new Chunk();
+            m_chunks[physAddr >> CHUNK_BITS] = chunk;
+        }
+        return chunk;
+    }//chunkFor
+
+    /**
+     * isTerminator
+     *
+     * @return true if the given opcode ends a basic block
+     */
+    private boolean isTerminator(int opcode)
+    {
+        switch(opcode)
+        {
+            case CPU.BRANCH:
+            case CPU.BNE:
+            case CPU.BLT:
+            case CPU.TRAP:
+                return true;
+            default:
+                return false;
+        }
+    }//isTerminator
+
+    /**
+     * isCompilable
+     *
+     * @return true if the given opcode can appear in a compiled block
+     */
+    private boolean isCompilable(int opcode)
+    {
+        switch(opcode)
+        {
+            case CPU.SET:
+            case CPU.ADD:
+            case CPU.SUB:
+            case CPU.MUL:
+            case CPU.DIV:
+            case CPU.COPY:
+            case CPU.POP:
+            case CPU.PUSH:
+            case CPU.LOAD:
+            case CPU.SAVE:
+                return true;
+            default:
+                return false;
+        }
+    }//isCompilable
+
+    /**
+     * compile
+     *
+     * reads the basic block starting at a given address, generates a class
+     * for it and records it in the code cache
+     *
+     * @param physPC  the physical address of the block leader
+     * @return        the new block or null if the block can't be compiled
+     */
+    private synchronized Block compile(int physPC)
+    {
+        //Another core may have compiled this block while we waited
+        Chunk existing = m_chunks[physPC >> CHUNK_BITS];
+        if ((existing != null) && (existing.blocks[physPC & (CHUNK_SIZE - 1)] != null))
+        {
+            return existing.blocks[physPC & (CHUNK_SIZE - 1)];
+        }
+
+        //Read the instructions up to the next terminator, the end of the page
+        //or the maximum block size
+        int pageMask = m_MMU.getPageMask();
+        Vector<int[]> instrs = new Vector<int[]>();
+        int addr = physPC;
+        while((instrs.size() < MAX_BLOCK_SIZE)
+              && ((addr & pageMask) == (physPC & pageMask))
+              && (addr + CPU.INSTRSIZE <= m_RAM.getSize()))
+        {
+            int instr[] = new int[CPU.INSTRSIZE];
+            m_RAM.fetch(addr, instr);
+            if (isTerminator(instr[0]) || !isCompilable(instr[0])) break;
+            instrs.add(instr);
+            addr += CPU.INSTRSIZE;
+        }
+
+        if (instrs.size() == 0)
+        {
+            return null;
+        }
+
+        Block b = null;
+        try
+        {
+            String name = "sos.CompiledBlock" + (m_nextClassId++);
+            byte[] bytes = new ClassGen(name.replace('.', '/'), instrs).toBytes();
+            BlockLoader loader = new BlockLoader(CompiledCode.class.getClassLoader());
+            CompiledCode code = (CompiledCode)loader.define(name, bytes)
+                .getDeclaredConstructor().newInstance();
+            b = new Block(physPC, instrs.size(), code);
+        }
+        catch(ReflectiveOperationException e)
+        {
+            System.out.println("JIT ERROR: could not instantiate block @" + physPC + ": " + e);
+            return null;
+        }
+        catch(LinkageError e)
+        {
+            //the generated class failed to verify
+            System.out.println("JIT ERROR: could not load block @" + physPC + ": " + e);
+            return null;
+        }
+        catch(Exception e)
+        {
+            System.out.println("JIT ERROR: could not compile block @" + physPC + ": " + e);
+            return null;
+        }
+
+        //Every instruction in the block is an entry point so that a process
+        //resumed mid-block still runs compiled code
+        for(int i = 0; i < b.length; i++)
+        {
+            int instrAddr = physPC + i * CPU.INSTRSIZE;
+            Chunk chunk = chunkFor(instrAddr);
+            chunk.blocks[instrAddr & (CHUNK_SIZE - 1)] = b;
+            chunk.index[instrAddr & (CHUNK_SIZE - 1)] = i;
+        }
+
+        m_compiled.increment();
+        if (m_verbose)
+        {
+            System.out.println("JIT: compiled " + b.length + " instructions @" + physPC);
+        }
+
+        return b;
+    }//compile
+
+    /**
+     * discard
+     *
+     * removes a compiled block from the code cache and resets its leader's
+     * count so that it can be recompiled if it becomes hot again
+     */
+    private synchronized void discard(Block b)
+    {
+        for(int i = 0; i < b.length; i++)
+        {
+            int instrAddr = b.start + i * CPU.INSTRSIZE;
+            Chunk chunk = m_chunks[instrAddr >> CHUNK_BITS];
+            if ((chunk != null) && (chunk.blocks[instrAddr & (CHUNK_SIZE - 1)] == b))
+            {
+                chunk.blocks[instrAddr & (CHUNK_SIZE - 1)] = null;
+            }
+        }
+
+        Chunk chunk = m_chunks[b.start >> CHUNK_BITS];
+        if (chunk != null)
+        {
+            chunk.counts[b.start & (CHUNK_SIZE - 1)] = 0;
+        }
+        m_invalidated.increment();
+    }//discard
+
+    /**
+     * invalidate
+     *
+     * is called when a single word of RAM is written
+     *
+     * @param physAddr  the physical address that was written
+     */
+    public void invalidate(int physAddr)
+    {
+        invalidateRange(physAddr, 1);
+    }//invalidate
+
+    /**
+     * invalidateRange
+     *
+     * discards every compiled block that overlaps a range of physical
+     * addresses.  The counts of leaders in the range are reset as well since
+     * the code they counted no longer exists.
+     *
+     * @param physAddr  the first physical address in the range
+     * @param len       the number of words in the range
+     */
+    public void invalidateRange(int physAddr, int len)
+    {
+        int start = Math.max(0, physAddr - CPU.INSTRSIZE + 1);
+        int end = physAddr + len;
+        for(int addr = start; addr < end; addr++)
+        {
+            Chunk chunk = m_chunks[addr >> CHUNK_BITS];
+            if (chunk == null)
+            {
+                //skip to the next chunk
+                addr |= (CHUNK_SIZE - 1);
+                continue;
+            }
+
+            int slot = addr & (CHUNK_SIZE - 1);
+            if (chunk.blocks[slot] != null)
+            {
+                discard(chunk.blocks[slot]);
+            }
+            chunk.counts[slot] = 0;
+        }
+    }//invalidateRange
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the compiler statistics
+     */
+    public String toString()
+    {
+        return "Block Compiler: compiled=" + m_compiled.sum()
+            + " invalidated=" + m_invalidated.sum()
+            + " instructions executed by compiled code=" + m_compiledInstrs.sum();
+    }//toString
+
+    /**
+     * class ClassGen
+     *
+     * writes the class file for a single compiled block.  The class implements
+     * {@link CompiledCode} and its run method looks like this:
+     *
+     * <pre>
+     *   switch(start) { case 0: ... case n-1: }   // enter mid-block
+     *   L0:  instruction 0
+     *        if (--budget &lt;= 0) return 1 - start;
+     *   L1:  instruction 1
+     *        ...
+     *   Ln:  return n - start;
+     * </pre>
+     *
+     * Instructions that can fault (DIV and the memory accesses) check first
+     * and return before doing anything so that the interpreter can execute
+     * the instruction and raise the fault itself.  The class file version
+     * predates StackMapTable so that the generated code is verified by type
+     * inference.
+     */
+    private static class ClassGen
+    {
+        //JVM opcodes used by the generated code
+        private static final int ALOAD_0       = 0x2a;
+        private static final int ALOAD_1       = 0x2b;
+        private static final int ALOAD_2       = 0x2c;
+        private static final int ILOAD         = 0x15;
+        private static final int ILOAD_3       = 0x1d;
+        private static final int IALOAD        = 0x2e;
+        private static final int IASTORE       = 0x4f;
+        private static final int IADD          = 0x60;
+        private static final int ISUB          = 0x64;
+        private static final int IMUL          = 0x68;
+        private static final int IDIV          = 0x6c;
+        private static final int IINC          = 0x84;
+        private static final int IFNE          = 0x9a;
+        private static final int IFGT          = 0x9d;
+        private static final int TABLESWITCH   = 0xaa;
+        private static final int IRETURN       = 0xac;
+        private static final int RETURN        = 0xb1;
+        private static final int INVOKEVIRTUAL = 0xb6;
+        private static final int INVOKESPECIAL = 0xb7;
+        private static final int BIPUSH        = 0x10;
+        private static final int SIPUSH        = 0x11;
+        private static final int LDC_W         = 0x13;
+        private static final int ICONST_0      = 0x03;
+
+        //Local variable slots of the run method
+        private static final int LOCAL_START = 3;
+        private static final int LOCAL_BUDGET = 4;
+
+        private String m_name;
+        private Vector<int[]> m_instrs;
+
+        /** the constant pool */
+        private Bytes m_pool = new Bytes();
+        private HashMap<String, Integer> m_poolIndex = new HashMap<String, Integer>();
+        private int m_poolCount = 1;
+
+        /** the code of the run method */
+        private Bytes m_code = new Bytes();
+
+        /** the bytecode offset of each label (one per instruction + end) */
+        private int m_labels[];
+
+        /** branches to patch once the labels are known: {opcodeAddr, patchAddr, label, width} */
+        private Vector<int[]> m_fixups = new Vector<int[]>();
+
+        public ClassGen(String name, Vector<int[]> instrs)
+        {
+            m_name = name;
+            m_instrs = instrs;
+            m_labels = new int[instrs.size() + 1];
+        }
+
+        //------------------------------------------------------------------
+        // Constant Pool
+        //------------------------------------------------------------------
+
+        private int utf8(String s)
+        {
+            Integer idx = m_poolIndex.get("U" + s);
+            if (idx != null) return idx;
+            m_pool.u1(1);
+            m_pool.utf(s);
+            m_poolIndex.put("U" + s, m_poolCount);
+            return m_poolCount++;
+        }
+
+        private int classRef(String name)
+        {
+            Integer idx = m_poolIndex.get("C" + name);
+            if (idx != null) return idx;
+            int nameIdx = utf8(name);
+            m_pool.u1(7);
+            m_pool.u2(nameIdx);
+            m_poolIndex.put("C" + name, m_poolCount);
+            return m_poolCount++;
+        }
+
+        private int intConst(int v)
+        {
+            Integer idx = m_poolIndex.get("I" + v);
+            if (idx != null) return idx;
+            m_pool.u1(3);
+            m_pool.u4(v);
+            m_poolIndex.put("I" + v, m_poolCount);
+            return m_poolCount++;
+        }
+
+        private int methodRef(String owner, String name, String desc)
+        {
+            String key = "M" + owner + "." + name + desc;
+            Integer idx = m_poolIndex.get(key);
+            if (idx != null) return idx;
+            int classIdx = classRef(owner);
+            int nameIdx = utf8(name);
+            int descIdx = utf8(desc);
+            m_pool.u1(12);
+            m_pool.u2(nameIdx);
+            m_pool.u2(descIdx);
+            int natIdx = m_poolCount++;
+            m_pool.u1(10);
+            m_pool.u2(classIdx);
+            m_pool.u2(natIdx);
+            m_poolIndex.put(key, m_poolCount);
+            return m_poolCount++;
+        }
+
+        //------------------------------------------------------------------
+        // Code Generation
+        //------------------------------------------------------------------
+
+        /** pushes an int constant using the shortest encoding */
+        private void pushInt(int v)
+        {
+            if (v >= -1 && v <= 5)
+            {
+                m_code.u1(ICONST_0 + v);
+            }
+            else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+            {
+                m_code.u1(BIPUSH);
+                m_code.u1(v);
+            }
+            else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+            {
+                m_code.u1(SIPUSH);
+                m_code.u2(v);
+            }
+            else
+            {
+                m_code.u1(LDC_W);
+                m_code.u2(intConst(v));
+            }
+        }
+
+        /** pushes regs[r] */
+        private void loadReg(int r)
+        {
+            m_code.u1(ALOAD_1);
+            pushInt(r);
+            m_code.u1(IALOAD);
+        }
+
+        /** emits a two byte branch to a label */
+        private void branch(int opcode, int label)
+        {
+            int at = m_code.size();
+            m_code.u1(opcode);
+            m_fixups.add(new int[] { at, m_code.size(), label, 2 });
+            m_code.u2(0);
+        }
+
+        /** emits "return count - start" */
+        private void returnCount(int count)
+        {
+            pushInt(count);
+            m_code.u1(ILOAD_3);
+            m_code.u1(ISUB);
+            m_code.u1(IRETURN);
+        }
+
+        /**
+         * emits a call to one of the CPU's checked memory access methods.  If
+         * it fails the block returns without executing instruction i.
+         */
+        private void checkedCall(int i, String method, String desc, int arg1, int arg2, boolean twoArgs)
+        {
+            m_code.u1(ALOAD_2);
+            pushInt(arg1);
+            if (twoArgs) pushInt(arg2);
+            m_code.u1(INVOKEVIRTUAL);
+            m_code.u2(methodRef("sos/CPU", method, desc));
+            bailIfZero(i);
+        }
+
+        /** emits "if (top == 0) return i - start" */
+        private void bailIfZero(int i)
+        {
+            //IFNE over the 4 or 5 byte return sequence
+            int at = m_code.size();
+            m_code.u1(IFNE);
+            int patch = m_code.size();
+            m_code.u2(0);
+            returnCount(i);
+            m_code.patch2(patch, m_code.size() - at);
+        }
+
+        /** emits regs[d] = regs[a] op regs[b] */
+        private void arith(int opcode, int[] instr)
+        {
+            m_code.u1(ALOAD_1);
+            pushInt(instr[1]);
+            loadReg(instr[2]);
+            loadReg(instr[3]);
+            m_code.u1(opcode);
+            m_code.u1(IASTORE);
+        }
+
+        /** emits the code for a single instruction */
+        private void instruction(int i, int[] instr)
+        {
+            switch(instr[0])
+            {
+                case CPU.SET:
+                    m_code.u1(ALOAD_1);
+                    pushInt(instr[1]);
+                    pushInt(instr[2]);
+                    m_code.u1(IASTORE);
+                    break;
+                case CPU.ADD:
+                    arith(IADD, instr);
+                    break;
+                case CPU.SUB:
+                    arith(ISUB, instr);
+                    break;
+                case CPU.MUL:
+                    arith(IMUL, instr);
+                    break;
+                case CPU.DIV:
+                    //divide by zero is handled by the interpreter
+                    loadReg(instr[3]);
+                    bailIfZero(i);
+                    arith(IDIV, instr);
+                    break;
+                case CPU.COPY:
+                    m_code.u1(ALOAD_1);
+                    pushInt(instr[1]);
+                    loadReg(instr[2]);
+                    m_code.u1(IASTORE);
+                    break;
+                case CPU.PUSH:
+                    checkedCall(i, "tryPush", "(I)Z", instr[1], 0, false);
+                    break;
+                case CPU.POP:
+                    checkedCall(i, "tryPop", "(I)Z", instr[1], 0, false);
+                    break;
+                case CPU.LOAD:
+                    checkedCall(i, "tryLoad", "(II)Z", instr[1], instr[2], true);
+                    break;
+                case CPU.SAVE:
+                    checkedCall(i, "trySave", "(II)Z", instr[1], instr[2], true);
+                    break;
+            }//switch
+        }//instruction
+
+        /** generates the body of the run method */
+        private void generateRun()
+        {
+            int n = m_instrs.size();
+
+            //switch(start) to the first instruction to execute
+            m_code.u1(ILOAD_3);
+            int switchAt = m_code.size();
+            m_code.u1(TABLESWITCH);
+            while(m_code.size() % 4 != 0)
+            {
+                m_code.u1(0);
+            }
+            m_fixups.add(new int[] { switchAt, m_code.size(), n, 4 });
+            m_code.u4(0);
+            m_code.u4(0);
+            m_code.u4(n - 1);
+            for(int i = 0; i < n; i++)
+            {
+                m_fixups.add(new int[] { switchAt, m_code.size(), i, 4 });
+                m_code.u4(0);
+            }
+
+            //The instructions.  Each one is followed by a budget check.
+            for(int i = 0; i < n; i++)
+            {
+                m_labels[i] = m_code.size();
+                instruction(i, m_instrs.get(i));
+
+                m_code.u1(IINC);
+                m_code.u1(LOCAL_BUDGET);
+                m_code.u1(-1);
+                m_code.u1(ILOAD);
+                m_code.u1(LOCAL_BUDGET);
+                branch(IFGT, i + 1);
+                returnCount(i + 1);
+            }
+
+            m_labels[n] = m_code.size();
+            returnCount(n);
+
+            //Resolve the branches
+            for(int[] f : m_fixups)
+            {
+                int offset = m_labels[f[2]] - f[0];
+                if (f[3] == 2)
+                {
+                    m_code.patch2(f[1], offset);
+                }
+                else
+                {
+                    m_code.patch4(f[1], offset);
+                }
+            }
+        }//generateRun
+
+        /** writes a method with a Code attribute */
+        private void method(Bytes out, String name, String desc, Bytes code, int maxStack, int maxLocals)
+        {
+            out.u2(0x0001);         // ACC_PUBLIC
+            out.u2(utf8(name));
+            out.u2(utf8(desc));
+            out.u2(1);              // one attribute
+            out.u2(utf8("Code"));
+            out.u4(12 + code.size());
+            out.u2(maxStack);
+            out.u2(maxLocals);
+            out.u4(code.size());
+            out.bytes(code);
+            out.u2(0);              // no exception table
+            out.u2(0);              // no attributes
+        }
+
+        /**
+         * toBytes
+         *
+         * @return the class file
+         */
+        public byte[] toBytes()
+        {
+            generateRun();
+
+            //Constructor: super()
+            Bytes init = new Bytes();
+            init.u1(ALOAD_0);
+            init.u1(INVOKESPECIAL);
+            init.u2(methodRef("java/lang/Object", "<init>", "()V"));
+            init.u1(RETURN);
+
+            //Everything after the constant pool (which must be complete
+            //before it is written)
+            int thisIdx = classRef(m_name);
+            int superIdx = classRef("java/lang/Object");
+            int ifaceIdx = classRef("sos/BlockCompiler$CompiledCode");
+            Bytes body = new Bytes();
+            body.u2(0x0031);        // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            body.u2(thisIdx);
+            body.u2(superIdx);
+            body.u2(1);
+            body.u2(ifaceIdx);
+            body.u2(0);             // no fields
+            body.u2(2);             // two methods
+            method(body, "<init>", "()V", init, 1, 1);
+            method(body, "run", "([ILsos/CPU;II)I", m_code, 6, 5);
+            body.u2(0);             // no attributes
+
+            Bytes out = new Bytes();
+            out.u4(0xCAFEBABE);
+            out.u2(0);              // minor version
+            out.u2(49);             // major version (Java 5)
+            out.u2(m_poolCount);
+            out.bytes(m_pool);
+            out.bytes(body);
+            return out.toArray();
+        }//toBytes
+    }//class ClassGen
+
+    /**
+     * class Bytes
+     *
+     * a growable big-endian byte buffer with support for patching
+     */
+    private static class Bytes
+    {
+        private byte m_buf[] = new byte[256];
+        private int m_size = 0;
+
+        public int size()
+        {
+            return m_size;
+        }
+
+        public void u1(int v)
+        {
+            if (m_size == m_buf.length)
+            {
+                m_buf = Arrays.copyOf(m_buf, m_buf.length * 2);
+            }
+            m_buf[m_size++] = (byte)v;
+        }
+
+        public void u2(int v)
+        {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        public void u4(int v)
+        {
+            u2(v >> 16);
+            u2(v);
+        }
+
+        public void utf(String s)
+        {
+            //generated names are plain ASCII
+            u2(s.length());
+            for(int i = 0; i < s.length(); i++)
+            {
+                u1(s.charAt(i));
+            }
+        }
+
+        public void bytes(Bytes b)
+        {
+            for(int i = 0; i < b.m_size; i++)
+            {
+                u1(b.m_buf[i]);
+            }
+        }
+
+        public void patch2(int at, int v)
+        {
+            m_buf[at] = (byte)(v >> 8);
+            m_buf[at + 1] = (byte)v;
+        }
+
+        public void patch4(int at, int v)
+        {
+            patch2(at, v >> 16);
+            patch2(at + 2, v);
+        }
+
+        public byte[] toArray()
+        {
+            return Arrays.copyOf(m_buf, m_size);
+        }
+    }//class Bytes
+
+};//class BlockCompiler
@@ -0,0 +1,356 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This class is a binary buddy allocator.  It hands out runs of contiguous
+ * units (SOS uses pages) from a fixed range.  Free space is kept as blocks
+ * whose sizes are powers of two and which are aligned to their size; each
+ * size has its own free list.  A request is served by splitting the
+ * smallest free block that is big enough, and a freed block is merged with
+ * its "buddy" (the other half of the block it was split from) whenever
+ * the buddy is free as well.  Both take O(log n) time.
+ *
+ * A request that isn't a power of two is rounded up to one for the search
+ * but the units beyond the request are given straight back, so there is no
+ * internal fragmentation.  The caller must say how many units it is
+ * freeing.
+ *
+ * @see SOS
+ */
+public class BuddyAllocator
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** returned by {@link #alloc} when there is no block big enough */
+    public static final int ALLOC_FAILED = -1;
+
+    /** marks the end of a free list */
+    private static final int NONE = -1;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the first unit managed by this allocator and the number of units.
+     * Blocks are aligned relative to the first unit.
+     */
+    private int m_base = 0;
+    private int m_size = 0;
+
+    /**
+     * the order (log2 of the size) of the free block that starts at each
+     * unit, or NONE if no free block starts there (indexed by unit - base)
+     */
+    private int m_freeOrder[] = null;
+
+    /**
+     * the free lists (one per order) are doubly linked through these arrays
+     * so that a buddy can be taken off its list in constant time
+     */
+    private int m_heads[] = null;
+    private int m_next[] = null;
+    private int m_prev[] = null;
+
+    /**
+     * the number of units that are free
+     */
+    private int m_freeUnits = 0;
+
+    /**
+     * statistics
+     */
+    private long m_splits = 0;
+    private long m_merges = 0;
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates an allocator with every unit free
+     *
+     * @param base  the first unit to manage
+     * @param size  the number of units to manage
+     */
+    public BuddyAllocator(int base, int size)
+    {
+        m_base = base;
+        m_size = size;
+
+        int maxOrder = 0;
+        while((1 << (maxOrder + 1)) <= size)
+        {
+            maxOrder++;
+        }
+
+        m_heads = new int[maxOrder + 1];
+        m_freeOrder = new int[size];
+        m_next = new int[size];
+        m_prev = new int[size];
+        clear();
+        free(base, size);
+    }//ctor
+
+    //======================================================================
+    // Accessor Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * getFreeUnits
+     *
+     * @return the number of units that aren't allocated
+     */
+    public int getFreeUnits()
+    {
+        return m_freeUnits;
+    }
+
+    /**
+     * getLargestFree
+     *
+     * @return the size of the largest free block (the largest request that
+     *         is sure to succeed is the largest power of two that is no
+     *         bigger than this)
+     */
+    public int getLargestFree()
+    {
+        for(int order = m_heads.length - 1; order >= 0; order--)
+        {
+            if (m_heads[order] != NONE)
+            {
+                return 1 << order;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * getLowestFree
+     *
+     * @return the lowest unit that is free -OR- ALLOC_FAILED if none are
+     */
+    public int getLowestFree()
+    {
+        for(int i = 0; i < m_size; i++)
+        {
+            if (m_freeOrder[i] != NONE)
+            {
+                return m_base + i;
+            }
+        }
+        return ALLOC_FAILED;
+    }
+
+    /**
+     * getFreeBlocks
+     *
+     * @return every free block as {first unit, number of units}, in order
+     *         of address.  (Adjacent blocks that aren't buddies are not
+     *         combined.)
+     */
+    public List<int[]> getFreeBlocks()
+    {
+        List<int[]> result = new ArrayList<int[]>();
+        for(int i = 0; i < m_size; i++)
+        {
+            if (m_freeOrder[i] != NONE)
+            {
+                result.add(new int[] { m_base + i, 1 << m_freeOrder[i] });
+            }
+        }
+        return result;
+    }
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * alloc
+     *
+     * allocates a run of contiguous units
+     *
+     * @param units  the number of units needed
+     * @return the first unit of the run -OR- ALLOC_FAILED
+     */
+    public int alloc(int units)
+    {
+        if ((units <= 0) || (units > m_freeUnits))
+        {
+            return ALLOC_FAILED;
+        }
+
+        int order = 0;
+        while((1 << order) < units)
+        {
+            order++;
+        }
+
+        //Find the smallest free block that is big enough
+        int found = order;
+        while((found < m_heads.length) && (m_heads[found] == NONE))
+        {
+            found++;
+        }
+        if (found >= m_heads.length)
+        {
+            return ALLOC_FAILED;
+        }
+
+        int block = m_heads[found];
+        unlink(block, found);
+
+        //Split it in half until it is the right size, freeing the upper
+        //halves
+        while(found > order)
+        {
+            found--;
+            link(block + (1 << found), found);
+            m_splits++;
+        }
+        m_freeUnits -= 1 << order;
+
+        //Give back whatever was rounded up
+        int extra = (1 << order) - units;
+        if (extra > 0)
+        {
+            free(m_base + block + units, extra);
+        }
+
+        return m_base + block;
+    }//alloc
+
+    /**
+     * free
+     *
+     * returns a run of units (which need not have been allocated all at
+     * once) to the allocator
+     *
+     * @param start  the first unit of the run
+     * @param units  the number of units in the run
+     */
+    public void free(int start, int units)
+    {
+        int offset = start - m_base;
+        int end = offset + units;
+        if ((offset < 0) || (end > m_size))
+        {
+            throw new IllegalArgumentException("units " + start + " to "
+                                               + (start + units - 1)
+                                               + " are out of range");
+        }
+
+        //Break the run into the largest aligned blocks that fit
+        while(offset < end)
+        {
+            int order = 0;
+            while((order + 1 < m_heads.length)
+                  && ((offset & ((2 << order) - 1)) == 0)
+                  && (offset + (2 << order) <= end))
+            {
+                order++;
+            }
+            freeBlock(offset, order);
+            offset += 1 << order;
+        }
+    }//free
+
+    /**
+     * clear
+     *
+     * marks every unit as allocated.  Use {@link #free} afterwards to
+     * describe the free space from scratch (e.g., after compaction).
+     */
+    public void clear()
+    {
+        Arrays.fill(m_heads, NONE);
+        Arrays.fill(m_freeOrder, NONE);
+        m_freeUnits = 0;
+    }//clear
+
+    /**
+     * freeBlock
+     *
+     * frees one aligned block, merging it with its buddy as many times as
+     * possible
+     *
+     * @param block  the block's offset from the base
+     * @param order  log2 of the block's size
+     */
+    private void freeBlock(int block, int order)
+    {
+        m_freeUnits += 1 << order;
+        while(order + 1 < m_heads.length)
+        {
+            int buddy = block ^ (1 << order);
+            if ((buddy + (1 << order) > m_size) || (m_freeOrder[buddy] != order))
+            {
+                break;
+            }
+            unlink(buddy, order);
+            block = Math.min(block, buddy);
+            order++;
+            m_merges++;
+        }
+        link(block, order);
+    }//freeBlock
+
+    /**
+     * link
+     *
+     * puts a free block at the front of its free list
+     */
+    private void link(int block, int order)
+    {
+        int head = m_heads[order];
+        m_next[block] = head;
+        m_prev[block] = NONE;
+        if (head != NONE)
+        {
+            m_prev[head] = block;
+        }
+        m_heads[order] = block;
+        m_freeOrder[block] = order;
+    }//link
+
+    /**
+     * unlink
+     *
+     * takes a free block off its free list
+     */
+    private void unlink(int block, int order)
+    {
+        int next = m_next[block];
+        int prev = m_prev[block];
+        if (prev != NONE)
+        {
+            m_next[prev] = next;
+        }
+        else
+        {
+            m_heads[order] = next;
+        }
+        if (next != NONE)
+        {
+            m_prev[next] = prev;
+        }
+        m_freeOrder[block] = NONE;
+    }//unlink
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the allocator
+     */
+    public String toString()
+    {
+        return "Buddy Allocator: " + m_freeUnits + " of " + m_size
+            + " units free, largest free block=" + getLargestFree()
+            + " splits=" + m_splits + " merges=" + m_merges;
+    }//toString
+
+};//class BuddyAllocator
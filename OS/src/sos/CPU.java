@@ -2,8 +2,6 @@ package sos;
 
 import java.util.*;
 
-import org.omg.CosNaming.IstringHelper;
-
 /**
  * This class is the centerpiece of a simulation of the essential hardware of a
  * microcomputer.  This includes a processor chip, RAM and I/O devices.  It is
@@ -61,6 +59,15 @@ public class CPU implements Runnable
 	public static final int CLOCK_FREQ = 5;
 	// args.  (Set to a fixed value for simplicity.)
 
+	//These constants identify the sequences of instructions that can be
+	//executed as one fused operation (see runFused)
+	public static final int FUSE_NONE    = 0;
+	public static final int FUSE_SYSCALL = 1;  // SET rX, PUSH rX, TRAP
+	public static final int FUSE_LOOP    = 2;  // ADD/SUB/MUL, BNE/BLT
+
+	/** the number of entries in each core's table of fusion hints */
+	public static final int FUSION_HINTS = 256;
+
 	//======================================================================
 	//Member variables
 	//----------------------------------------------------------------------
@@ -95,9 +102,105 @@ public class CPU implements Runnable
 	private TrapHandler m_TH = null;
 	
 	private int m_ticks = 0;
+
+	/**
+	 * the value of m_ticks at which the next clock interrupt is due.  Ticks
+	 * can be charged in bulk (see {@link #addTicks}) so the clock can't
+	 * simply fire when m_ticks is a multiple of CLOCK_FREQ.
+	 */
+	private int m_nextClock = CLOCK_FREQ;
+
+	/**
+	 * the number of ticks between clock interrupts.  The OS may give each
+	 * process a different time slice (see {@link #setTimeSlice}).
+	 */
+	private int m_timeSlice = CLOCK_FREQ;
 	
 	private MMU m_MMU;
 
+	/**
+	 * identifies this CPU when several cores share the same RAM and MMU
+	 */
+	private int m_coreId = 0;
+
+	/**
+	 * the number of guest instructions this core has executed
+	 */
+	private long m_instructions = 0;
+
+	/**
+	 * the core that is running on the current thread (if any)
+	 */
+	private static final ThreadLocal<CPU> s_currentCore = new ThreadLocal<CPU>();
+
+	/**
+	 * set by another core that needs this one to stop at an instruction
+	 * boundary (e.g., so that the OS can relocate a process in RAM)
+	 */
+	private volatile boolean m_pauseRequested = false;
+
+	/**
+	 * true while this core is not touching guest state: it is stopped at an
+	 * instruction boundary, waiting to enter the OS or not running at all
+	 */
+	private volatile boolean m_atSafepoint = true;
+
+	/**
+	 * guards m_pauseRequested and m_atSafepoint
+	 */
+	private final Object m_pauseLock = new Object();
+
+	/**
+	 * The buffer the current instruction is decoded into.  It is reused every
+	 * cycle so that fetching does not allocate.
+	 */
+	private int m_instr[] = new int[INSTRSIZE];
+
+	/**
+	 * receives interrupts from the interrupt controller (so that polling
+	 * for them doesn't allocate)
+	 */
+	private int m_intData[] = new int[InterruptController.RECORD_SIZE];
+
+	/**
+	 * Compiles hot basic blocks (or null to always interpret)
+	 */
+	private BlockCompiler m_JIT = null;
+
+	/**
+	 * whether sequences of instructions are fused (see runFused)
+	 */
+	private boolean m_fusion = true;
+
+	/**
+	 * the fusion hints.  Each entry is the (virtual) address where a fusible
+	 * sequence was seen to start and the kind of sequence, indexed by the
+	 * address.  A hint is only a guess: the instructions are still fetched
+	 * and checked when the sequence runs.
+	 */
+	private int m_fuseTags[] = new int[FUSION_HINTS];
+	private int m_fuseKinds[] = new int[FUSION_HINTS];
+
+	/**
+	 * the address, opcode and first argument of the last two instructions
+	 * that were executed on their own (most recent first).  They are used
+	 * to spot fusible sequences.
+	 */
+	private int m_lastPCs[] = { -1, -1 };
+	private int m_lastOps[] = new int[2];
+	private int m_lastArgs[] = new int[2];
+
+	/**
+	 * the number of fused sequences that were run to the end
+	 */
+	private long m_fusedOps = 0;
+
+	/**
+	 * whether the run loop is {@link #executeThreaded} (true) or
+	 * {@link #execute} (false)
+	 */
+	private boolean m_threaded = false;
+
 	//======================================================================
 	//Methods
 	//----------------------------------------------------------------------
@@ -107,7 +210,7 @@ public class CPU implements Runnable
 	 *
 	 * Initializes all member variables.
 	 */
-	public CPU(RAM ram, InterruptController ic, MMU mmu)
+	public CPU(RAM ram, InterruptController ic, MMU mmu, int coreId)
 	{
 		m_registers = new int[NUMREG];
 		for(int i = 0; i < NUMREG; i++)
@@ -119,8 +222,78 @@ public class CPU implements Runnable
 		m_IC = ic;
 		
 		m_MMU = mmu;
+
+		m_coreId = coreId;
+
+		Arrays.fill(m_fuseTags, -1);
 	}//CPU ctor
 
+	/**
+	 * CPU ctor
+	 *
+	 * creates a single core CPU
+	 */
+	public CPU(RAM ram, InterruptController ic, MMU mmu)
+	{
+		this(ram, ic, mmu, 0);
+	}//CPU ctor
+
+	/**
+	 * getCurrentCore
+	 *
+	 * @return the CPU whose run loop is executing on the calling thread or
+	 *         null if the caller is not a CPU thread
+	 */
+	public static CPU getCurrentCore()
+	{
+		return s_currentCore.get();
+	}
+
+	/**
+	 * setCurrentCore
+	 *
+	 * makes a core the one that {@link #getCurrentCore} returns on the
+	 * calling thread, as {@link #run} does.  This lets a tool (e.g., a
+	 * benchmark) use the MMU as a core would without running the core.
+	 *
+	 * @param core  the core (or null for none)
+	 */
+	static void setCurrentCore(CPU core)
+	{
+		s_currentCore.set(core);
+	}
+
+	/**
+	 * getCoreId
+	 *
+	 * @return the id of this core
+	 */
+	public int getCoreId()
+	{
+		return m_coreId;
+	}
+
+	/**
+	 * getInstructionCount
+	 *
+	 * @return the number of guest instructions this core has executed
+	 */
+	public long getInstructionCount()
+	{
+		return m_instructions;
+	}
+
+	/**
+	 * getFusedCount
+	 *
+	 * @return the number of fused sequences this core has run (see
+	 *         {@link #setFusionEnabled})
+	 */
+	public long getFusedCount()
+	{
+		return m_fusedOps;
+	}
+
 	/**
 	 * getTicks
 	 * 
@@ -181,11 +354,66 @@ public class CPU implements Runnable
 	}
 
 	/**
-	 * 
+	 * addTicks
+	 *
+	 * charges the cost of something that takes more than a cycle (e.g., a
+	 * context switch or a RAM access).  The ticks count toward the next
+	 * clock interrupt.
 	 */
 	public void addTicks(int numTicks) {
 		m_ticks += numTicks;
 	}
+
+	/**
+	 * advanceTicksTo
+	 *
+	 * lets this core catch up to a later time (e.g., the time on another
+	 * core).  The time slice that is underway isn't shortened.
+	 *
+	 * @param time  the new tick count.  Nothing happens if the core is
+	 *              already past it.
+	 * @return the number of ticks skipped
+	 */
+	public int advanceTicksTo(int time) {
+		if (time <= m_ticks) {
+			return 0;
+		}
+		int skipped = time - m_ticks;
+		m_nextClock += skipped;
+		m_ticks = time;
+		return skipped;
+	}
+
+	/**
+	 * resetClock
+	 *
+	 * starts a new time slice.  The next clock interrupt arrives one time
+	 * slice from now.  The OS calls this when it dispatches a process so
+	 * that the cost of the switch isn't taken out of the process's slice.
+	 */
+	public void resetClock() {
+		m_nextClock = m_ticks + m_timeSlice;
+	}
+
+	/**
+	 * setTimeSlice
+	 *
+	 * sets the length of the time slices started by {@link #resetClock}
+	 * (which happens after every clock interrupt).  The slice that is
+	 * already underway is not affected.
+	 *
+	 * @param ticks  the number of ticks between clock interrupts
+	 */
+	public void setTimeSlice(int ticks) {
+		m_timeSlice = Math.max(1, ticks);
+	}
+
+	/**
+	 * getTimeSlice
+	 */
+	public int getTimeSlice() {
+		return m_timeSlice;
+	}
 	
 	/**
 	 * setPC
@@ -354,6 +582,87 @@ public class CPU implements Runnable
 		m_MMU.write(sp, val); 
 	}
 
+	/**
+	 * tryPush
+	 *
+	 * pushes the value of a register if the stack has room.  This is used by
+	 * compiled blocks which hand the instruction back to the interpreter when
+	 * it fails.
+	 *
+	 * @param reg the register to push
+	 * @return false (without changing anything) if the push would leave the
+	 *         process' memory
+	 */
+	public boolean tryPush(int reg)
+	{
+		int val = m_registers[reg];
+		int sp = getSP() - STACKITEMSIZE;
+		if (!isMemAddressInRange(sp))
+			return false;
+
+		setSP(sp);
+		m_MMU.write(sp, val);
+		return true;
+	}
+
+	/**
+	 * tryPop
+	 *
+	 * pops the top of the stack into a register if the stack is not empty
+	 *
+	 * @param reg the register to pop into
+	 * @return false (without changing anything) if the pop would leave the
+	 *         process' memory
+	 */
+	public boolean tryPop(int reg)
+	{
+		int sp = getSP() + STACKITEMSIZE;
+		if (!isMemAddressInRange(sp))
+			return false;
+
+		setSP(sp);
+		m_registers[reg] = m_MMU.read(sp - STACKITEMSIZE);
+		return true;
+	}
+
+	/**
+	 * tryLoad
+	 *
+	 * performs a LOAD instruction if its address is in range
+	 *
+	 * @param dest the register to load into
+	 * @param addrReg the register holding the (BASE relative) address
+	 * @return false (without changing anything) if the address is illegal
+	 */
+	public boolean tryLoad(int dest, int addrReg)
+	{
+		int addr = m_registers[addrReg] + getBASE();
+		if (!isMemAddressInRange(addr))
+			return false;
+
+		m_registers[dest] = m_MMU.read(addr);
+		return true;
+	}
+
+	/**
+	 * trySave
+	 *
+	 * performs a SAVE instruction if its address is in range
+	 *
+	 * @param src the register to save
+	 * @param addrReg the register holding the (BASE relative) address
+	 * @return false (without changing anything) if the address is illegal
+	 */
+	public boolean trySave(int src, int addrReg)
+	{
+		int addr = m_registers[addrReg] + getBASE();
+		if (!isMemAddressInRange(addr))
+			return false;
+
+		m_MMU.write(addr, m_registers[src]);
+		return true;
+	}
+
 	/**
 	 * isMemAddressInRange
 	 *
@@ -369,6 +678,92 @@ public class CPU implements Runnable
 		return false; //indicates memory address not in range
 	}
 
+	/**
+	 * requestPause
+	 *
+	 * asks this core to stop at its next instruction boundary.  The caller
+	 * should then use {@link #waitUntilPaused} and, when done, {@link #resume}.
+	 */
+	public void requestPause()
+	{
+		synchronized(m_pauseLock)
+		{
+			m_pauseRequested = true;
+		}
+	}
+
+	/**
+	 * waitUntilPaused
+	 *
+	 * blocks until this core is at a safepoint (see {@link #requestPause})
+	 */
+	public void waitUntilPaused()
+	{
+		synchronized(m_pauseLock)
+		{
+			while(!m_atSafepoint)
+			{
+				try
+				{
+					m_pauseLock.wait();
+				}
+				catch(InterruptedException e) {} // should never happen
+			}
+		}
+	}
+
+	/**
+	 * resume
+	 *
+	 * lets a paused core continue
+	 */
+	public void resume()
+	{
+		synchronized(m_pauseLock)
+		{
+			m_pauseRequested = false;
+			m_pauseLock.notifyAll();
+		}
+	}
+
+	/**
+	 * setAtSafepoint
+	 *
+	 * is used by the OS to mark this core as safe (or not) while it waits to
+	 * enter the kernel
+	 */
+	public void setAtSafepoint(boolean safe)
+	{
+		synchronized(m_pauseLock)
+		{
+			m_atSafepoint = safe;
+			m_pauseLock.notifyAll();
+		}
+	}
+
+	/**
+	 * safepoint
+	 *
+	 * parks this core until no other core needs it paused
+	 */
+	private void safepoint()
+	{
+		synchronized(m_pauseLock)
+		{
+			m_atSafepoint = true;
+			m_pauseLock.notifyAll();
+			while(m_pauseRequested)
+			{
+				try
+				{
+					m_pauseLock.wait();
+				}
+				catch(InterruptedException e) {} // should never happen
+			}
+			m_atSafepoint = false;
+		}
+	}
+
 	/**
 	 * run
 	 *
@@ -380,16 +775,65 @@ public class CPU implements Runnable
 	 *
 	 */
 	public void run()
+	{
+		s_currentCore.set(this);
+		try
+		{
+			safepoint();
+
+			//Give the OS a chance to schedule this core before the first
+			//fetch (a core with nothing to run gets an idle process).  The
+			//OS expects the PC to be advanced after an interrupt so pretend
+			//that it arrived at the end of the previous instruction.
+			setPC(getPC() - INSTRSIZE);
+			m_TH.interruptClock();
+			setPC(getPC() + INSTRSIZE);
+
+			if (m_threaded && !m_verbose)
+			{
+				executeThreaded();
+			}
+			else
+			{
+				execute();
+			}
+		}
+		finally
+		{
+			//A core that has stopped can't touch guest state
+			setAtSafepoint(true);
+		}
+	}//run
+
+	/**
+	 * execute
+	 *
+	 * the fetch/decode/execute loop used by {@link #run}
+	 */
+	private void execute()
 	{
 		int instruction[]; //Holds the current instruction from the executing program
+		boolean leader = true; //Is the next instruction the start of a basic block?
 
 		//while we are still in allowed address space
 		while(true){
 
+			if (m_pauseRequested)
+			{
+				safepoint();
+			}
+
 			checkForIOInterrupt();
+
+			if (runCompiled(leader))
+			{
+				leader = false;
+				continue;
+			}
 			
 			//Fetch the next instruction from RAM using the PC register
-			instruction = m_MMU.fetch(getPC()); 
+			instruction = m_instr;
+			m_MMU.fetch(getPC(), instruction); 
 
 			//if verbose mode on
 			if(m_verbose){
@@ -397,135 +841,739 @@ public class CPU implements Runnable
 				printInstr(instruction); //call debugging method
 			}
 
-			switch(instruction[0])
+			//Run the instruction along with the ones after it if they have
+			//been seen to form a fusible sequence
+			if (m_fusion && !m_verbose)
+			{
+				int kind = getFusionHint(getPC());
+				if (kind != FUSE_NONE)
+				{
+					int fused = runFused(kind, instruction);
+					if (fused >= 0)
+					{
+						leader = (fused > 0);
+						continue;
+					}
+				}
+			}
+
+			leader = runInstruction(instruction);
+			
+		} //while
+
+	}//execute
+
+	/**
+	 * runCompiled
+	 *
+	 * runs compiled code for as many instructions as possible without
+	 * reaching the next clock interrupt (see {@link #compiledEntry})
+	 *
+	 * @param leader  whether the next instruction starts a basic block
+	 * @return true if any instructions were run
+	 */
+	private boolean runCompiled(boolean leader)
+	{
+		int physPC = compiledEntry(leader, getPC());
+		return (physPC >= 0) && runCompiledAt(physPC);
+	}//runCompiled
+
+	/**
+	 * compiledEntry
+	 *
+	 * finds out whether compiled code can run from the next instruction.
+	 * Blocks are only counted and compiled at their leaders but a block that
+	 * is already compiled is entered wherever the interpreter is inside it
+	 * (compiled code runs at most up to the next clock interrupt so long
+	 * blocks are usually finished after one).  The lookup uses
+	 * {@link MMU#peek} so it takes no simulated time.  Nothing here reads or
+	 * writes the registers.
+	 *
+	 * Compiled code isn't used at all when RAM has latency: it doesn't fetch
+	 * its instructions (whose cost depends on the TLB and instruction cache)
+	 * and can't stop exactly at a clock interrupt that latency brings
+	 * forward, so it would change the timing of the program.
+	 *
+	 * @param leader  whether the next instruction starts a basic block
+	 * @param pc      the address of the next instruction
+	 * @return the physical address to pass to runCompiledAt or -1 if the
+	 *         instruction must be interpreted
+	 */
+	private int compiledEntry(boolean leader, int pc)
+	{
+		if ((m_JIT != null) && m_JIT.isEnabled() && !m_verbose
+			&& (m_RAM.getLatency() == 0) && (m_nextClock - m_ticks > 1))
+		{
+			int physPC = m_MMU.peek(pc);
+			if ((physPC >= 0)
+				&& (leader ? m_JIT.prepare(physPC) : m_JIT.isCompiled(physPC)))
+			{
+				return physPC;
+			}
+		}
+		return -1;
+	}//compiledEntry
+
+	/**
+	 * runCompiledAt
+	 *
+	 * runs the compiled code found by {@link #compiledEntry}.  The
+	 * instruction that triggers the next clock interrupt is always
+	 * interpreted.
+	 *
+	 * @param physPC  the physical address of the next instruction
+	 * @return true if any instructions were run
+	 */
+	private boolean runCompiledAt(int physPC)
+	{
+		int done = m_JIT.execute(this, physPC, m_nextClock - m_ticks - 1);
+		if (done > 0)
+		{
+			m_ticks += done;
+			m_instructions += done;
+			setPC(getPC() + done * INSTRSIZE);
+			return true;
+		}
+		return false;
+	}//runCompiledAt
+
+	/**
+	 * runInstruction
+	 *
+	 * executes an instruction that has been fetched and then retires it
+	 *
+	 * @param instruction  the instruction
+	 * @return true if the next instruction starts a basic block
+	 */
+	private boolean runInstruction(int[] instruction)
+	{
+		int pc = getPC();
+		executeInstruction(instruction);
+		if (m_fusion)
+		{
+			learnFusion(pc, instruction);
+		}
+
+		//Control may have moved so the next instruction starts a block
+		boolean leader;
+		switch(instruction[0])
+		{
+		case BRANCH:
+		case BNE:
+		case BLT:
+		case TRAP:
+			leader = true;
+			break;
+		default:
+			leader = false;
+			break;
+		}//switch
+
+		retire();
+		return leader;
+	}//runInstruction
+
+	/**
+	 * retire
+	 *
+	 * finishes an instruction: counts its tick, delivers the clock interrupt
+	 * if it is due and advances the PC
+	 *
+	 * @return true if there was a clock interrupt
+	 */
+	private boolean retire()
+	{
+		boolean clock = false;
+		++m_ticks;
+		++m_instructions;
+		if (m_ticks >= m_nextClock) {
+			m_TH.interruptClock();
+			resetClock();
+			clock = true;
+		}
+		
+		setPC(getPC() + INSTRSIZE); //update program counter
+		return clock;
+	}//retire
+
+	/**
+	 * executeInstruction
+	 *
+	 * decodes and executes a single instruction
+	 *
+	 * @param instruction  the instruction
+	 */
+	private void executeInstruction(int[] instruction)
+	{
+		switch(instruction[0])
+		{
+		//Set the value of a register to a literal
+		case SET:
+			m_registers[instruction[1]] = instruction[2];
+			break;
+
+			//Add the value of two registers, place the sum in a third register
+		case ADD:
+			m_registers[instruction[1]] = m_registers[instruction[2]] + m_registers[instruction[3]];
+			break;
+
+			//Subtract the values of two registers, place the result in a third register
+		case SUB:
+			m_registers[instruction[1]] = m_registers[instruction[2]] - m_registers[instruction[3]];
+			break;
+
+			//Multiply the values of two registers, place the result in a third register
+		case MUL:
+			m_registers[instruction[1]] = m_registers[instruction[2]] * m_registers[instruction[3]];
+			break;
+
+			//Divide the values of two registers, place the result in a third register
+		case DIV:
+			//check for divide by zero error
+			if(m_registers[instruction[3]] == 0){
+				m_TH.interruptDivideByZero();
+			} else {
+				m_registers[instruction[1]] = m_registers[instruction[2]] /  m_registers[instruction[3]];
+			}
+
+			break;
+			//Copy the value of one register to another
+		case COPY:
+			m_registers[instruction[1]] = m_registers[instruction[2]];
+			break;
+
+			//Goto an address given by a register
+		case BRANCH:
+			//Check that specified branch address is in memory bounds
+			if(!isMemAddressInRange(instruction[1]+getBASE()))
+				m_TH.interruptIllegalMemoryAccess(instruction[1]+getBASE());
+
+			//The program counter is set to the specified address. 
+			setPC(instruction[1]+getBASE() - INSTRSIZE);
+			//Must decrement by INSTRSIZE since we increment @ end of switch statement
+			//This ensures we branch and execute the specified instruction
+			break;
+
+			//Goto an address given by a register if the values of two registers are not equal
+		case BNE:
+			//Check that PC address is in memory bounds
+			if(!isMemAddressInRange(instruction[3]+getBASE()))
+				m_TH.interruptIllegalMemoryAccess(instruction[1]+getBASE());
+
+
+			if(m_registers[instruction[1]] != m_registers[instruction[2]])
+				setPC(instruction[3]+getBASE() - INSTRSIZE);
+			//Must decrement by INSTRSIZE since we increment @ end of switch statement
+			//This ensures we branch and execute the specified instruction
+			break;
+
+			//Goto an adress given by a register, if the value of one register is less than another
+		case BLT:
+			//Check that PC address is in memory bounds
+			if(!isMemAddressInRange(instruction[3]+getBASE()))
+				m_TH.interruptIllegalMemoryAccess(instruction[1]+getBASE());
+
+
+			if(m_registers[instruction[1]] < m_registers[instruction[2]])
+				setPC(instruction[3]+getBASE() - INSTRSIZE); 
+			//Must decrement by INSTRSIZE since we increment @ end of switch statement
+			//This ensures we branch and execute the specified instruction
+			break;
+
+			//Pop an item off the stack
+		case POP:
+			//on sperate line for debug purposes
+			int newVal = pop();
+			m_registers[instruction[1]] = newVal;
+			break;
+
+			//push an item to the stack
+		case PUSH:
+			push(m_registers[instruction[1]]); 
+			break;
+
+		case LOAD:
+			//check that memory address is in range. If not, print error message
+			if(!isMemAddressInRange(m_registers[instruction[2]]+getBASE()))
+				m_TH.interruptIllegalMemoryAccess(instruction[2]+getBASE());
+
+			//The value in RAM at the address specified by the register 
+			//specified by arg2 is placed into the register specified by arg1.
+			m_registers[instruction[1]] =  m_MMU.read(m_registers[instruction[2]] + getBASE());
+			break;
+
+		case SAVE:
+			//check that memory address is in range. If not, print error message
+			if(!isMemAddressInRange(m_registers[instruction[2]]+getBASE()))
+				m_TH.interruptIllegalMemoryAccess(instruction[2]+getBASE());
+
+			//The value of the register specified by arg1 is placed 
+			//in RAM at the address specified by the register specified by arg2.
+			m_MMU.write(m_registers[instruction[2]] + getBASE(), m_registers[instruction[1]]);
+			break;
+
+			//Initializes a system call
+		case TRAP:
+
+			m_TH.systemCall();
+			break;
+
+		default:        // should never be reached
+			m_TH.interruptIllegalInstruction(instruction);
+			break;          
+		}//switch
+	}//executeInstruction
+
+	/**
+	 * setFusionEnabled
+	 *
+	 * chooses whether sequences of instructions are fused (see
+	 * {@link #runFused}).  Fusing doesn't change what the program does or
+	 * how many ticks it takes so it can be turned off to check that.
+	 */
+	public void setFusionEnabled(boolean fusion)
+	{
+		m_fusion = fusion;
+	}
+
+	/**
+	 * setThreaded
+	 *
+	 * chooses the run loop (see {@link #executeThreaded}).  Both loops run
+	 * a program in the same number of ticks so this only changes how fast
+	 * the simulation is.  It must be called before {@link #run}.
+	 */
+	public void setThreaded(boolean threaded)
+	{
+		m_threaded = threaded;
+	}
+
+	/**
+	 * getFusionHint
+	 *
+	 * @param pc  the address of an instruction
+	 * @return the kind of fused sequence that was seen to start there (or
+	 *         FUSE_NONE)
+	 */
+	private int getFusionHint(int pc)
+	{
+		int slot = (pc / INSTRSIZE) & (FUSION_HINTS - 1);
+		return (m_fuseTags[slot] == pc) ? m_fuseKinds[slot] : FUSE_NONE;
+	}//getFusionHint
+
+	/**
+	 * setFusionHint
+	 *
+	 * records the kind of fused sequence that starts at an address
+	 */
+	private void setFusionHint(int pc, int kind)
+	{
+		int slot = (pc / INSTRSIZE) & (FUSION_HINTS - 1);
+		m_fuseTags[slot] = (kind == FUSE_NONE) ? -1 : pc;
+		m_fuseKinds[slot] = kind;
+	}//setFusionHint
+
+	/**
+	 * learnFusion
+	 *
+	 * is called for each instruction that is executed on its own.  If it
+	 * ends a fusible sequence whose other instructions were executed just
+	 * before it (at the addresses before it) then a hint is left so that
+	 * the sequence is fused next time.
+	 *
+	 * @param pc           the address of the instruction
+	 * @param instruction  the instruction
+	 */
+	private void learnFusion(int pc, int[] instruction)
+	{
+		int op = instruction[0];
+		if ((m_lastPCs[0] == pc - INSTRSIZE))
+		{
+			if ((op == TRAP) && (m_lastOps[0] == PUSH)
+			    && (m_lastPCs[1] == pc - 2 * INSTRSIZE) && (m_lastOps[1] == SET)
+			    && (m_lastArgs[1] == m_lastArgs[0]))
+			{
+				setFusionHint(m_lastPCs[1], FUSE_SYSCALL);
+			}
+			else if (((op == BNE) || (op == BLT)) && isFusibleAlu(m_lastOps[0]))
+			{
+				setFusionHint(m_lastPCs[0], FUSE_LOOP);
+			}
+		}
+
+		m_lastPCs[1] = m_lastPCs[0];
+		m_lastOps[1] = m_lastOps[0];
+		m_lastArgs[1] = m_lastArgs[0];
+		m_lastPCs[0] = pc;
+		m_lastOps[0] = op;
+		m_lastArgs[0] = instruction[1];
+	}//learnFusion
+
+	/**
+	 * isFusibleAlu
+	 *
+	 * @return true if the opcode is arithmetic that can't interrupt
+	 */
+	private static boolean isFusibleAlu(int opcode)
+	{
+		return (opcode == ADD) || (opcode == SUB) || (opcode == MUL);
+	}
+
+	/**
+	 * canContinueFused
+	 *
+	 * is called between the instructions of a fused sequence.  The sequence
+	 * must stop wherever the loop in {@link #execute} would do something
+	 * other than fetch the next instruction.
+	 *
+	 * @param clock  whether the last instruction caused a clock interrupt
+	 * @return true if the next instruction can be fused
+	 */
+	private boolean canContinueFused(boolean clock)
+	{
+		return !clock && !m_pauseRequested && m_IC.isEmpty(m_coreId);
+	}//canContinueFused
+
+	/**
+	 * runFused
+	 *
+	 * executes a sequence of instructions as one operation, skipping the
+	 * work that the loop in {@link #execute} does between them.  These
+	 * sequences are fused:
+	 *
+	 * FUSE_SYSCALL: SET rX, PUSH rX, TRAP (the system call idiom)
+	 * FUSE_LOOP:    ADD/SUB/MUL followed by BNE/BLT (a loop back edge)
+	 *
+	 * Each instruction is still fetched and charged a tick in the same
+	 * order, and the sequence stops early wherever the loop would do
+	 * something else between two instructions (a clock interrupt, an I/O
+	 * interrupt or a pause; compiled code is only entered at the start of a
+	 * basic block, which is never inside a sequence), so a fused sequence takes
+	 * exactly the same ticks as the instructions would on their own.  If
+	 * the instructions turn out not to match the sequence (e.g., the code
+	 * was modified) the one that doesn't match is executed on its own.
+	 *
+	 * @param kind         the kind of sequence that is expected here
+	 * @param instruction  the first instruction (already fetched)
+	 * @return -1 if nothing was executed, 1 if the next instruction starts
+	 *         a basic block and 0 otherwise
+	 */
+	private int runFused(int kind, int[] instruction)
+	{
+		int pc = getPC();
+		int op = instruction[0];
+		int length = (kind == FUSE_SYSCALL) ? 3 : 2;
+		if ((kind == FUSE_SYSCALL) ? (op != SET) : !isFusibleAlu(op))
+		{
+			setFusionHint(pc, FUSE_NONE);
+			return -1;
+		}
+		if (m_nextClock - m_ticks < length)
+		{
+			//The clock would interrupt the sequence
+			return -1;
+		}
+
+		int[] regs = m_registers;
+		int dest = instruction[1];
+		if (kind == FUSE_SYSCALL)
+		{
+			//SET rX
+			regs[dest] = instruction[2];
+			if (!canContinueFused(retire()))
+			{
+				return 0;
+			}
+
+			//PUSH rX
+			m_MMU.fetch(getPC(), instruction);
+			if ((instruction[0] != PUSH) || (instruction[1] != dest))
+			{
+				setFusionHint(pc, FUSE_NONE);
+				return runInstruction(instruction) ? 1 : 0;
+			}
+			push(regs[dest]);
+			if (!canContinueFused(retire()))
+			{
+				return 0;
+			}
+
+			//TRAP
+			m_MMU.fetch(getPC(), instruction);
+			if (instruction[0] != TRAP)
+			{
+				setFusionHint(pc, FUSE_NONE);
+				return runInstruction(instruction) ? 1 : 0;
+			}
+			m_TH.systemCall();
+		}
+		else
+		{
+			//ADD/SUB/MUL
+			int a = regs[instruction[2]];
+			int b = regs[instruction[3]];
+			regs[dest] = (op == ADD) ? (a + b) : ((op == SUB) ? (a - b) : (a * b));
+			if (!canContinueFused(retire()))
+			{
+				return 0;
+			}
+
+			//BNE/BLT (compiled code never starts at one so it isn't checked)
+			m_MMU.fetch(getPC(), instruction);
+			op = instruction[0];
+			if ((op != BNE) && (op != BLT))
+			{
+				setFusionHint(pc, FUSE_NONE);
+				return runInstruction(instruction) ? 1 : 0;
+			}
+			int target = instruction[3] + getBASE();
+			if (!isMemAddressInRange(target))
+				m_TH.interruptIllegalMemoryAccess(instruction[1]+getBASE());
+			a = regs[instruction[1]];
+			b = regs[instruction[2]];
+			if ((op == BNE) ? (a != b) : (a < b))
+				setPC(target - INSTRSIZE);
+		}
+
+		retire();
+		m_fusedOps++;
+		return 1;
+	}//runFused
+
+	/**
+	 * areGeneral
+	 *
+	 * @return true if the given register numbers are all general registers
+	 *         (i.e., none of them is held in a local by executeThreaded)
+	 */
+	private static boolean areGeneral(int r1, int r2, int r3)
+	{
+		return (r1 < NUMGENREG) && (r2 < NUMGENREG) && (r3 < NUMGENREG);
+	}
+
+	/**
+	 * executeThreaded
+	 *
+	 * is an alternative to the loop in {@link #execute} with a smaller,
+	 * tighter body.  The PC, SP, BASE and LIM registers are kept in local
+	 * variables for as long as the process runs and are only written back
+	 * to m_registers when something outside the loop needs them: an
+	 * interrupt, a system call, a pause, a fused sequence (see
+	 * {@link #runFused}) or compiled code.  Each opcode's
+	 * handler is a case of one dense switch (which the JVM turns into a
+	 * jump table) that does only the common case of the instruction.
+	 * Anything unusual (an illegal address, a divide by zero, a TRAP, an
+	 * instruction that names PC, SP, BASE or LIM as an argument, ...) is
+	 * handed to {@link #runInstruction} so that it behaves exactly as it
+	 * does in {@link #execute}.
+	 *
+	 * The OS may move this process whenever it is entered.  Moving a
+	 * process rebases the registers in m_registers, so the locals are
+	 * reloaded after anything that enters the OS and are rebased if BASE
+	 * changes during a memory access (i.e., a page fault).
+	 */
+	private void executeThreaded()
+	{
+		final int[] regs = m_registers;
+		final int[] instr = m_instr;
+		boolean leader = true; //Is the next instruction the start of a basic block?
+
+		int pc = regs[PC];
+		int sp = regs[SP];
+		int base = regs[BASE];
+		int lim = regs[LIM];
+
+		while(true)
+		{
+			if (m_pauseRequested || !m_IC.isEmpty(m_coreId))
+			{
+				regs[PC] = pc;
+				regs[SP] = sp;
+				if (m_pauseRequested)
+				{
+					safepoint();
+				}
+				checkForIOInterrupt();
+				pc = regs[PC];
+				sp = regs[SP];
+				base = regs[BASE];
+				lim = regs[LIM];
+			}
+
+			//Compiled code reads and writes the registers so they are only
+			//written back when there is some to run
+			int physPC = compiledEntry(leader, pc);
+			if (physPC >= 0)
+			{
+				regs[PC] = pc;
+				regs[SP] = sp;
+				if (runCompiledAt(physPC))
+				{
+					pc = regs[PC];
+					sp = regs[SP];
+					base = regs[BASE];
+					leader = false;
+					continue;
+				}
+			}
+
+			m_MMU.fetch(pc, instr);
+			if (regs[BASE] != base)
+			{
+				pc += regs[BASE] - base;
+				sp += regs[BASE] - base;
+				base = regs[BASE];
+			}
+
+			//Run fused sequences the same way execute does
+			if (m_fusion)
+			{
+				int kind = getFusionHint(pc);
+				if (kind != FUSE_NONE)
+				{
+					regs[PC] = pc;
+					regs[SP] = sp;
+					int fused = runFused(kind, instr);
+					pc = regs[PC];
+					sp = regs[SP];
+					base = regs[BASE];
+					lim = regs[LIM];
+					if (fused >= 0)
+					{
+						leader = (fused > 0);
+						continue;
+					}
+				}
+			}
+
+			int instrPC = pc;
+			int op = instr[0];
+			int a1 = instr[1];
+			int a2 = instr[2];
+			int a3 = instr[3];
+			boolean slow = false;
+			switch(op)
 			{
-			//Set the value of a register to a literal
 			case SET:
-				m_registers[instruction[1]] = instruction[2];
+				if (!areGeneral(a1, R0, R0)) { slow = true; break; }
+				regs[a1] = a2;
 				break;
 
-				//Add the value of two registers, place the sum in a third register
 			case ADD:
-				m_registers[instruction[1]] = m_registers[instruction[2]] + m_registers[instruction[3]];
+				if (!areGeneral(a1, a2, a3)) { slow = true; break; }
+				regs[a1] = regs[a2] + regs[a3];
 				break;
 
-				//Subtract the values of two registers, place the result in a third register
 			case SUB:
-				m_registers[instruction[1]] = m_registers[instruction[2]] - m_registers[instruction[3]];
+				if (!areGeneral(a1, a2, a3)) { slow = true; break; }
+				regs[a1] = regs[a2] - regs[a3];
 				break;
 
-				//Multiply the values of two registers, place the result in a third register
 			case MUL:
-				m_registers[instruction[1]] = m_registers[instruction[2]] * m_registers[instruction[3]];
+				if (!areGeneral(a1, a2, a3)) { slow = true; break; }
+				regs[a1] = regs[a2] * regs[a3];
 				break;
 
-				//Divide the values of two registers, place the result in a third register
 			case DIV:
-				//check for divide by zero error
-				if(m_registers[instruction[3]] == 0){
-					m_TH.interruptDivideByZero();
-				} else {
-					m_registers[instruction[1]] = m_registers[instruction[2]] /  m_registers[instruction[3]];
-				}
-
+				if (!areGeneral(a1, a2, a3) || (regs[a3] == 0)) { slow = true; break; }
+				regs[a1] = regs[a2] / regs[a3];
 				break;
-				//Copy the value of one register to another
+
 			case COPY:
-				m_registers[instruction[1]] = m_registers[instruction[2]];
+				if (!areGeneral(a1, a2, R0)) { slow = true; break; }
+				regs[a1] = regs[a2];
 				break;
 
-				//Goto an address given by a register
 			case BRANCH:
-				//Check that specified branch address is in memory bounds
-				if(!isMemAddressInRange(instruction[1]+getBASE()))
-					m_TH.interruptIllegalMemoryAccess(instruction[1]+getBASE());
-
-				//The program counter is set to the specified address. 
-				setPC(instruction[1]+getBASE() - INSTRSIZE);
-				//Must decrement by INSTRSIZE since we increment @ end of switch statement
-				//This ensures we branch and execute the specified instruction
+				if ((a1 < 0) || (a1 >= lim)) { slow = true; break; }
+				pc = a1 + base - INSTRSIZE;
 				break;
 
-				//Goto an address given by a register if the values of two registers are not equal
 			case BNE:
-				//Check that PC address is in memory bounds
-				if(!isMemAddressInRange(instruction[3]+getBASE()))
-					m_TH.interruptIllegalMemoryAccess(instruction[1]+getBASE());
-
-
-				if(m_registers[instruction[1]] != m_registers[instruction[2]])
-					setPC(instruction[3]+getBASE() - INSTRSIZE);
-				//Must decrement by INSTRSIZE since we increment @ end of switch statement
-				//This ensures we branch and execute the specified instruction
+				if (!areGeneral(a1, a2, R0) || (a3 < 0) || (a3 >= lim)) { slow = true; break; }
+				if (regs[a1] != regs[a2])
+					pc = a3 + base - INSTRSIZE;
 				break;
 
-				//Goto an adress given by a register, if the value of one register is less than another
 			case BLT:
-				//Check that PC address is in memory bounds
-				if(!isMemAddressInRange(instruction[3]+getBASE()))
-					m_TH.interruptIllegalMemoryAccess(instruction[1]+getBASE());
-
-
-				if(m_registers[instruction[1]] < m_registers[instruction[2]])
-					setPC(instruction[3]+getBASE() - INSTRSIZE); 
-				//Must decrement by INSTRSIZE since we increment @ end of switch statement
-				//This ensures we branch and execute the specified instruction
+				if (!areGeneral(a1, a2, R0) || (a3 < 0) || (a3 >= lim)) { slow = true; break; }
+				if (regs[a1] < regs[a2])
+					pc = a3 + base - INSTRSIZE;
 				break;
 
-				//Pop an item off the stack
 			case POP:
-				//on sperate line for debug purposes
-				int newVal = pop();
-				m_registers[instruction[1]] = newVal;
+				if (!areGeneral(a1, R0, R0) || (sp + STACKITEMSIZE < base)
+				    || (sp + STACKITEMSIZE >= base + lim)) { slow = true; break; }
+				sp += STACKITEMSIZE;
+				regs[a1] = m_MMU.read(sp - STACKITEMSIZE);
 				break;
 
-				//push an item to the stack
 			case PUSH:
-				push(m_registers[instruction[1]]); 
+				if (!areGeneral(a1, R0, R0) || (sp - STACKITEMSIZE < base)
+				    || (sp - STACKITEMSIZE >= base + lim)) { slow = true; break; }
+				sp -= STACKITEMSIZE;
+				m_MMU.write(sp, regs[a1]);
 				break;
 
 			case LOAD:
-				//check that memory address is in range. If not, print error message
-				if(!isMemAddressInRange(m_registers[instruction[2]]+getBASE()))
-					m_TH.interruptIllegalMemoryAccess(instruction[2]+getBASE());
-
-				//The value in RAM at the address specified by the register 
-				//specified by arg2 is placed into the register specified by arg1.
-				m_registers[instruction[1]] =  m_MMU.read(m_registers[instruction[2]] + getBASE());
+				if (!areGeneral(a1, a2, R0) || (regs[a2] < 0) || (regs[a2] >= lim)) { slow = true; break; }
+				regs[a1] = m_MMU.read(regs[a2] + base);
 				break;
 
 			case SAVE:
-				//check that memory address is in range. If not, print error message
-				if(!isMemAddressInRange(m_registers[instruction[2]]+getBASE()))
-					m_TH.interruptIllegalMemoryAccess(instruction[2]+getBASE());
-
-				//The value of the register specified by arg1 is placed 
-				//in RAM at the address specified by the register specified by arg2.
-				m_MMU.write(m_registers[instruction[2]] + getBASE(), m_registers[instruction[1]]);
+				if (!areGeneral(a1, a2, R0) || (regs[a2] < 0) || (regs[a2] >= lim)) { slow = true; break; }
+				m_MMU.write(regs[a2] + base, regs[a1]);
 				break;
 
-				//Initializes a system call
-			case TRAP:
-
-				m_TH.systemCall();
+			default:
+				slow = true;
 				break;
-
-			default:        // should never be reached
-				m_TH.interruptIllegalInstruction(instruction);
-				break;          
 			}//switch
 
+			if (slow)
+			{
+				regs[PC] = pc;
+				regs[SP] = sp;
+				leader = runInstruction(instr);
+				pc = regs[PC];
+				sp = regs[SP];
+				base = regs[BASE];
+				lim = regs[LIM];
+				continue;
+			}
+
+			if (m_fusion)
+			{
+				learnFusion(instrPC, instr);
+			}
+
+			//A page fault may have let another core move the process
+			if (regs[BASE] != base)
+			{
+				pc += regs[BASE] - base;
+				sp += regs[BASE] - base;
+				base = regs[BASE];
+			}
 
+			//Retire the instruction (see retire)
 			++m_ticks;
-			if (m_ticks % CLOCK_FREQ == 0) {
+			++m_instructions;
+			if (m_ticks >= m_nextClock)
+			{
+				regs[PC] = pc;
+				regs[SP] = sp;
 				m_TH.interruptClock();
+				resetClock();
+				pc = regs[PC];
+				sp = regs[SP];
+				base = regs[BASE];
+				lim = regs[LIM];
 			}
-			
-			setPC(getPC() + INSTRSIZE); //update program counter
-			
-		} //while
+			pc += INSTRSIZE;
+			leader = (op == BRANCH) || (op == BNE) || (op == BLT);
+		}//while
 
-	}//run
+	}//executeThreaded
 
 
 	//======================================================================
@@ -545,6 +1593,7 @@ public class CPU implements Runnable
 		public void interruptIOReadComplete(int devID, int addr, int data);
         public void interruptIOWriteComplete(int devID, int addr);
         public void interruptClock();
+        public void interruptPageFault(int addr);
 		void systemCall();
 	};//interface TrapHandler
 
@@ -553,45 +1602,59 @@ public class CPU implements Runnable
      * checkForIOInterrupt
      *
      * Checks the databus for signals from the interrupt controller and, if
-     * found, invokes the appropriate handler in the operating system.
+     * found, invokes the appropriate handler in the operating system.  Every
+     * interrupt that is pending for this core is handled in one batch.
      *
      */
     private void checkForIOInterrupt()
     {
-        //If there is no interrupt to process, do nothing
-        if (m_IC.isEmpty())
+        //If there is no interrupt for this core to process, do nothing
+        if (m_IC.isEmpty(m_coreId))
         {
             return;
         }
         
         //Retreive the interrupt data
-        int[] intData = m_IC.getData();
-
-        //Report the data if in verbose mode
-        if (m_verbose)
+        int[] intData = m_intData;
+        while(m_IC.poll(m_coreId, intData))
         {
-            System.out.println("CPU received interrupt: type=" + intData[0]
-                               + " dev=" + intData[1] + " addr=" + intData[2]
-                               + " data=" + intData[3]);
-        }
-
-        //Dispatch the interrupt to the OS
-        switch(intData[0])
-        {
-            case InterruptController.INT_READ_DONE:
-                m_TH.interruptIOReadComplete(intData[1], intData[2], intData[3]);
-                break;
-            case InterruptController.INT_WRITE_DONE:
-                m_TH.interruptIOWriteComplete(intData[1], intData[2]);
-                break;
-            default:
-                System.out.println("CPU ERROR:  Illegal Interrupt Received.");
-                System.exit(-1);
-                break;
-        }//switch
+            //Report the data if in verbose mode
+            if (m_verbose)
+            {
+                System.out.println("CPU received interrupt: type=" + intData[0]
+                                   + " dev=" + intData[1] + " addr=" + intData[2]
+                                   + " data=" + intData[3]);
+            }
+
+            //Dispatch the interrupt to the OS
+            switch(intData[0])
+            {
+                case InterruptController.INT_READ_DONE:
+                    m_TH.interruptIOReadComplete(intData[1], intData[2], intData[3]);
+                    break;
+                case InterruptController.INT_WRITE_DONE:
+                    m_TH.interruptIOWriteComplete(intData[1], intData[2]);
+                    break;
+                default:
+                    System.out.println("CPU ERROR:  Illegal Interrupt Received.");
+                    System.exit(-1);
+                    break;
+            }//switch
+        }//while
 
     }//checkForIOInterrupt
 
+	/**
+	 * setBlockCompiler
+	 *
+	 * gives the CPU a compiler for hot basic blocks.  Pass null to always
+	 * interpret.
+	 */
+	public void setBlockCompiler(BlockCompiler jit)
+	{
+		m_JIT = jit;
+	}
+
 	/**
 	 * registerTrapHandler
 	 *
@@ -3,9 +3,12 @@ package sos;
 import java.util.*;
 
 /**
- * This class simulates a simple, sharable write-only device.  
+ * This class simulates a simple, sharable write-only device.  Requests are
+ * completed by a {@link DeviceEngine} (which calls {@link #run}) once their
+ * latency has passed.
  *
  * @see Sim
+ * @see DeviceEngine
  * @see CPU
  * @see SOS
  * @see Device
@@ -15,24 +18,26 @@ public class ConsoleDevice implements Device, Runnable
     private int m_maxLatency = 1000;   // maximum latency in ns
     private int m_minLatency = 500;    // minimum latnecy in ns
     private int m_Id = -999;           // the OS assigned device ID
-    private boolean m_request = false; // is the device currently processing a request?
+    private volatile boolean m_request = false; // is the device currently processing a request?
     private int m_addr = 0;            // address to write to
     private int m_data = 0;            // data associated with the current request
     private InterruptController m_IC;  // reference to the interrupt controller
+    private DeviceEngine m_engine;     // completes requests after their latency
 
     /**
      * This constructor uses the default values for latency)
      */
-    public ConsoleDevice(InterruptController ic)
+    public ConsoleDevice(InterruptController ic, DeviceEngine engine)
     {
         m_IC = ic;
+        m_engine = engine;
     }
 
     /**
      * This constructor expects values for the minimum and maximum latency
      * of this device expressed as a number of nanoseconds
      */
-    public ConsoleDevice(InterruptController ic, int min, int max)
+    public ConsoleDevice(InterruptController ic, DeviceEngine engine, int min, int max)
     {
         //If latencies are out of order swap them
         if (min > max)
@@ -45,6 +50,7 @@ public class ConsoleDevice implements Device, Runnable
         m_minLatency = min;
         m_maxLatency = max;
         m_IC = ic;
+        m_engine = engine;
     }//ctor
 
     /**
@@ -138,51 +144,35 @@ public class ConsoleDevice implements Device, Runnable
         m_addr = addr;
         m_data = data;
         m_request = true;
+
+        //Insert a random latency to simulate the amount of time required.
+        //(I have no idea whether the default latency setting (500-1000 ns) is
+        //at all realistic.  If someone has info on raw video latencies I will
+        //change this code to reflect that data.)
+        int rn = (int)(Math.random() * 2147483647); // random #
+        int latency = (rn % (m_maxLatency - m_minLatency)) + m_minLatency;
+        m_engine.schedule(latency, this);
     }
     
     /**
      * run
      *
-     * This method represents the device + controller.  It watches for reqeusts
-     * (via m_request and m_data) and handles them.  It also inserts a random
-     * latency to simulate the amount of time required.
-     *
-     * (I have no idea whether the default latency setting (500-1000 ns) is at
-     * all realistic and, of course, the time spent calling System.out.println
-     * and Math.random() probably overshadows it.  If someone has info on raw
-     * video latencies I will change this code to reflect that data.)
+     * This method represents the device + controller finishing the current
+     * request.  The engine calls it once the request's latency has passed.
      */
     public void run()
     {
-        //Device runs until program ends
-        while(true)
-        {
-            //While there is no request to process, yield the CPU to another thread
-            while (!m_request)
-            {
-                Thread.yield();
-            }
-
-            //We've received a request.  Sleep to simulate the latency
-            try
-            {
-                int rn = (int)(Math.random() * 2147483647); // random #
-                int latency = (rn % (m_maxLatency - m_minLatency)) + m_minLatency;
-                Thread.sleep(latency / 1000, latency % 1000);
-            }
-            catch(InterruptedException e) {} // should never happen
-            
-            //print the data
-         
-            System.out.println("\nCONSOLE: " + m_data);
-			
+        //print the data
+        System.out.println("\nCONSOLE: " + m_data);
 
-            //Notify the CPU of completed operation
-            m_IC.putData(InterruptController.INT_WRITE_DONE, m_Id, m_addr, -999);
+        //Make the device available for another request.  (This must happen
+        //before the CPU hears about it since the OS may immediately start
+        //another request, so the address is saved first.)
+        int addr = m_addr;
+        m_request = false;
 
-            //Make the device available for another request
-            m_request = false;
-        }//while
+        //Notify the CPU of completed operation
+        m_IC.putData(InterruptController.INT_WRITE_DONE, m_Id, addr, -999);
     }//run
 
 }//class ConsoleDevice
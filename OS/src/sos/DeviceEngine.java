@@ -0,0 +1,162 @@
+package sos;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class simulates the passage of time for every device in the
+ * simulation using a single thread.  A device that receives a request
+ * schedules its completion here with the request's latency; when the
+ * latency has elapsed the engine calls the device back so that it can
+ * finish the request and interrupt the CPU.
+ *
+ * The engine thread parks until the earliest pending completion is due (or
+ * indefinitely if there is none) so idle devices cost nothing.
+ *
+ * @see Device
+ * @see InterruptController
+ */
+public class DeviceEngine implements Runnable
+{
+    /*======================================================================
+     * Inner Classes
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Event
+     *
+     * is a completion that is waiting for its deadline.  Events with the
+     * same deadline complete in the order they were scheduled.
+     */
+    private static class Event implements Comparable<Event>
+    {
+        public final long deadline;    // System.nanoTime() when it is due
+        public final long seq;         // breaks ties
+        public final Runnable task;    // completes the request
+
+        public Event(long deadline, long seq, Runnable task)
+        {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        public int compareTo(Event other)
+        {
+            if (deadline != other.deadline)
+            {
+                return (deadline < other.deadline) ? -1 : 1;
+            }
+            return (seq < other.seq) ? -1 : ((seq == other.seq) ? 0 : 1);
+        }
+    };//class Event
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the completions that haven't happened yet, earliest first
+     */
+    private PriorityQueue<Event> m_events = new PriorityQueue<Event>();
+
+    /**
+     * the number of events scheduled so far
+     */
+    private long m_nextSeq = 0;
+
+    /**
+     * the thread running the engine (or null if it hasn't started)
+     */
+    private volatile Thread m_thread = null;
+
+    /**
+     * statistics
+     */
+    private volatile long m_completions = 0;
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * schedule
+     *
+     * arranges for a task to be run on the engine thread once a given
+     * amount of time has passed.  This can be called from any thread.
+     *
+     * @param delay  the number of nanoseconds to wait
+     * @param task   the work to do (typically completing a device request)
+     */
+    public void schedule(long delay, Runnable task)
+    {
+        boolean earliest;
+        synchronized(this)
+        {
+            Event e = new Event(System.nanoTime() + delay, m_nextSeq++, task);
+            m_events.add(e);
+            earliest = (m_events.peek() == e);
+        }
+
+        //The engine may be parked until a later deadline (or forever)
+        Thread t = m_thread;
+        if (earliest && (t != null))
+        {
+            LockSupport.unpark(t);
+        }
+    }//schedule
+
+    /**
+     * run
+     *
+     * runs each scheduled task when its deadline arrives.  This never
+     * returns.
+     */
+    public void run()
+    {
+        m_thread = Thread.currentThread();
+        while(true)
+        {
+            Event due = null;
+            long wait = 0;
+            synchronized(this)
+            {
+                Event next = m_events.peek();
+                if (next != null)
+                {
+                    wait = next.deadline - System.nanoTime();
+                    if (wait <= 0)
+                    {
+                        due = m_events.poll();
+                    }
+                }
+            }
+
+            if (due != null)
+            {
+                due.task.run();
+                m_completions++;
+            }
+            else if (wait > 0)
+            {
+                LockSupport.parkNanos(this, wait);
+            }
+            else
+            {
+                LockSupport.park(this);
+            }
+        }//while
+    }//run
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the engine's work
+     */
+    public String toString()
+    {
+        return "Device Engine: " + m_completions + " requests completed";
+    }//toString
+
+};//class DeviceEngine
@@ -0,0 +1,324 @@
+package sos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class simulates a decoded-instruction cache that sits between the RAM
+ * and the CPU.  Each line holds one complete instruction (see
+ * {@link CPU#INSTRSIZE}) and is tagged with the physical address it was
+ * fetched from.  The cache is direct mapped so a lookup is a single array
+ * index plus a tag compare.
+ *
+ * A line is never modified once it has been filled (a refill or an
+ * invalidation replaces the whole line) and lines are published through an
+ * atomic array so several cores can share a cache without ever seeing a torn
+ * instruction.  Each line also has a stamp that every invalidation of it
+ * bumps; a fill that raced with an invalidation (i.e., read the instruction
+ * from RAM just before another core overwrote it) sees the stamp change and
+ * takes its line back out.
+ *
+ * The RAM is responsible for calling {@link #invalidate} whenever a word is
+ * written so that the cache never hands the CPU a stale instruction.
+ *
+ * @see RAM
+ * @see CPU
+ * @see MMU
+ */
+public class InstructionCache
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+    public static final int DEFAULT_NUM_LINES = 1024;
+
+    /** the index of the tag within a line */
+    private static final int TAG = CPU.INSTRSIZE;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * whether or not lookups are currently served from the cache
+     */
+    private volatile boolean m_enabled = true;
+
+    /**
+     * the number of lines in the cache (always a power of 2)
+     */
+    private int m_numLines = 0;
+
+    /**
+     * contains a 1 in every bit of a line number
+     */
+    private int m_lineMask = 0;
+
+    /**
+     * the decoded instructions themselves.  Each line is the instruction
+     * followed by the physical address it came from (its tag) or null if the
+     * line is empty.
+     */
+    private AtomicReferenceArray<int[]> m_lines = null;
+
+    /**
+     * the number of times each line has been invalidated (see fill)
+     */
+    private AtomicLongArray m_stamps = null;
+
+    /**
+     * statistics.  These are updated by every core that shares the cache.
+     */
+    private final LongAdder m_hits = new LongAdder();
+    private final LongAdder m_misses = new LongAdder();
+    private final LongAdder m_invalidations = new LongAdder();
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates an empty cache
+     *
+     * @param numLines the number of instructions the cache can hold.  If this
+     *                 is not a power of 2 it will be adjusted to the next
+     *                 power of 2.
+     */
+    public InstructionCache(int numLines)
+    {
+        m_numLines = 1;
+        while(m_numLines < numLines)
+        {
+            m_numLines = m_numLines << 1;
+        }
+        m_lineMask = m_numLines - 1;
+
+        m_lines = new AtomicReferenceArray<int[]>(m_numLines);
+        m_stamps = new AtomicLongArray(m_numLines);
+    }//ctor
+
+    /**
+     * This constructor uses the default number of lines
+     */
+    public InstructionCache()
+    {
+        this(DEFAULT_NUM_LINES);
+    }
+
+    //======================================================================
+    // Accessor Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * isEnabled
+     *
+     * @return true if lookups are being served from the cache
+     */
+    public boolean isEnabled()
+    {
+        return m_enabled;
+    }
+
+    /**
+     * setEnabled
+     *
+     * turns the cache on or off.  The cache is emptied either way: RAM
+     * doesn't invalidate a disabled cache so it mustn't keep any lines
+     * (including one from a fill that was in progress when it was turned
+     * off) once it is turned back on.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        m_enabled = enabled;
+        flush();
+    }
+
+    /**
+     * getNumLines
+     */
+    public int getNumLines()
+    {
+        return m_numLines;
+    }
+
+    /**
+     * getHits
+     */
+    public long getHits()
+    {
+        return m_hits.sum();
+    }
+
+    /**
+     * getMisses
+     */
+    public long getMisses()
+    {
+        return m_misses.sum();
+    }
+
+    /**
+     * getInvalidations
+     */
+    public long getInvalidations()
+    {
+        return m_invalidations.sum();
+    }
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * lineFor
+     *
+     * @return the line an instruction at the given physical address maps to
+     */
+    private int lineFor(int physAddr)
+    {
+        return (physAddr / CPU.INSTRSIZE) & m_lineMask;
+    }
+
+    /**
+     * lookup
+     *
+     * copies a cached instruction into a caller supplied buffer
+     *
+     * @param physAddr  the physical address of the instruction
+     * @param instr     receives the instruction if it is cached
+     * @return          true on a hit, false on a miss
+     */
+    public boolean lookup(int physAddr, int[] instr)
+    {
+        int line[] = m_lines.get(lineFor(physAddr));
+        if ((line == null) || (line[TAG] != physAddr))
+        {
+            m_misses.increment();
+            return false;
+        }
+
+        for(int i = 0; i < CPU.INSTRSIZE; i++)
+        {
+            instr[i] = line[i];
+        }
+        m_hits.increment();
+        return true;
+    }//lookup
+
+    /**
+     * getStamp
+     *
+     * is called just before an instruction is read from RAM to be filled
+     * into the cache
+     *
+     * @param physAddr  the physical address of the instruction
+     * @return          the stamp to pass to fill
+     */
+    public long getStamp(int physAddr)
+    {
+        return m_stamps.get(lineFor(physAddr));
+    }//getStamp
+
+    /**
+     * fill
+     *
+     * places an instruction that was just read from RAM into the cache.  If
+     * the line was invalidated since the stamp was taken the instruction may
+     * already be stale so it is removed again.  (Checking the stamp after the
+     * line is installed means that either this check sees the invalidation
+     * or the invalidation sees the line.)
+     *
+     * @param physAddr  the physical address the instruction was read from
+     * @param instr     the instruction
+     * @param stamp     the stamp returned by getStamp before the read
+     */
+    public void fill(int physAddr, int[] instr, long stamp)
+    {
+        int line[] = new int[CPU.INSTRSIZE + 1];
+        for(int i = 0; i < CPU.INSTRSIZE; i++)
+        {
+            line[i] = instr[i];
+        }
+        line[TAG] = physAddr;
+
+        int idx = lineFor(physAddr);
+        m_lines.set(idx, line);
+        if (m_stamps.get(idx) != stamp)
+        {
+            m_lines.compareAndSet(idx, line, null);
+        }
+    }//fill
+
+    /**
+     * invalidate
+     *
+     * is called when a single word of RAM is written.  Any cached instruction
+     * that contains that word is dropped.
+     *
+     * @param physAddr  the physical address that was written
+     */
+    public void invalidate(int physAddr)
+    {
+        invalidateRange(physAddr, 1);
+    }//invalidate
+
+    /**
+     * invalidateRange
+     *
+     * drops every cached instruction that overlaps a range of physical
+     * addresses
+     *
+     * @param physAddr  the first physical address in the range
+     * @param len       the number of words in the range
+     */
+    public void invalidateRange(int physAddr, int len)
+    {
+        //An instruction that starts up to INSTRSIZE-1 words before the range
+        //still overlaps it
+        int start = Math.max(0, physAddr - CPU.INSTRSIZE + 1);
+        int end = physAddr + len;
+        for(int addr = start; addr < end; addr++)
+        {
+            int idx = lineFor(addr);
+            m_stamps.incrementAndGet(idx);
+            int line[] = m_lines.get(idx);
+            if ((line != null) && (line[TAG] == addr)
+                && m_lines.compareAndSet(idx, line, null))
+            {
+                m_invalidations.increment();
+            }
+        }
+    }//invalidateRange
+
+    /**
+     * flush
+     *
+     * empties the cache
+     */
+    public void flush()
+    {
+        for(int i = 0; i < m_numLines; i++)
+        {
+            m_stamps.incrementAndGet(i);
+            m_lines.set(i, null);
+        }
+    }//flush
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the cache statistics
+     */
+    public String toString()
+    {
+        long hits = m_hits.sum();
+        long misses = m_misses.sum();
+        long total = hits + misses;
+        double hitRate = (total == 0) ? 0.0 : (100.0 * hits) / total;
+        return "Instruction Cache: " + m_numLines + " lines, hits=" + hits
+            + " misses=" + misses + " invalidations=" + m_invalidations.sum()
+            + String.format(" (%.2f%% hit rate)", hitRate);
+    }//toString
+
+};//class InstructionCache
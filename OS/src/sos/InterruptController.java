@@ -1,13 +1,16 @@
 package sos;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * This class represents the CPU's interrupt controller.  More abstractly is the
- * container object between a producer (device(s)) and consumer (CPU).
+ * container object between producers (devices) and consumers (CPU cores).
  *
- * Adapted from an example in the Concurrent Programming Tutorial written by Sun
- * Microsystems Inc.
+ * Each core has its own bounded queue of pending interrupts.  A queue is a
+ * lock-free ring that any number of devices can add to while its core
+ * removes interrupts from it.  A device only has to wait if its core's ring
+ * is full.
  *
  * @see Device
  * @see CPU
@@ -21,26 +24,175 @@ public class InterruptController
     //Each interrupt that this controller handles has a unique ID
     public static final int INT_READ_DONE   = 100;
     public static final int INT_WRITE_DONE  = 101;
-    
+
+    /** the number of interrupts that can be pending for a single core */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** the number of ints in an interrupt record (see {@link #poll}) */
+    public static final int RECORD_SIZE = 4;
+
+    /*======================================================================
+     * Inner Classes
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Ring
+     *
+     * is a bounded multi-producer/single-consumer queue of interrupt
+     * records.  Every slot has a sequence number that says whose turn it is:
+     * a producer may fill slot i when its sequence number equals the
+     * producer's position and the consumer may empty it when the sequence
+     * number is one more than that.  Producers claim positions with a
+     * compare-and-set on the tail; the consumer is the only thread that
+     * moves the head.
+     */
+    private static class Ring
+    {
+        private final int m_mask;
+        private final int m_records[];
+        private final AtomicLongArray m_sequences;
+        private final AtomicLong m_tail = new AtomicLong(0);
+        private long m_head = 0;
+
+        public Ring(int capacity)
+        {
+            m_mask = capacity - 1;
+            m_records = new int[capacity * RECORD_SIZE];
+            m_sequences = new AtomicLongArray(capacity);
+            for(int i = 0; i < capacity; i++)
+            {
+                m_sequences.set(i, i);
+            }
+        }
+
+        /**
+         * @return true if the consumer has nothing to remove
+         */
+        public boolean isEmpty()
+        {
+            return m_sequences.get((int)m_head & m_mask) != m_head + 1;
+        }
+
+        /**
+         * adds a record, waiting for the consumer if the ring is full
+         */
+        public void offer(int operation, int devNum, int addr, int data)
+        {
+            long pos;
+            int slot;
+            while(true)
+            {
+                pos = m_tail.get();
+                slot = (int)pos & m_mask;
+                long seq = m_sequences.get(slot);
+                if ((seq == pos) && m_tail.compareAndSet(pos, pos + 1))
+                {
+                    break;    // the slot is ours
+                }
+                if (seq < pos)
+                {
+                    Thread.yield();    // full
+                }
+            }
+
+            int base = slot * RECORD_SIZE;
+            m_records[base]     = operation;
+            m_records[base + 1] = devNum;
+            m_records[base + 2] = addr;
+            m_records[base + 3] = data;
+
+            //Publish the record
+            m_sequences.set(slot, pos + 1);
+        }//offer
+
+        /**
+         * removes a record if there is one
+         *
+         * @param record  receives the record
+         * @return        false if the ring was empty
+         */
+        public boolean poll(int[] record)
+        {
+            int slot = (int)m_head & m_mask;
+            if (m_sequences.get(slot) != m_head + 1)
+            {
+                return false;
+            }
+
+            int base = slot * RECORD_SIZE;
+            record[0] = m_records[base];
+            record[1] = m_records[base + 1];
+            record[2] = m_records[base + 2];
+            record[3] = m_records[base + 3];
+
+            //Hand the slot back to the producers for their next lap
+            m_sequences.set(slot, m_head + m_mask + 1);
+            m_head++;
+            return true;
+        }//poll
+    };//class Ring
+
     //======================================================================
     // Variables
     //----------------------------------------------------------------------
-    private int m_operation = 0;    // What interrupt is to be generated?
-    private int m_devNum = 0;       // the id of the device that has data
-    private int m_addr = 0;         // the address where data was read/wrote
-    private int m_data = 0;         // the data 
-    private boolean m_empty = true; // whether or not there is an interrupt
-    
+
+    /**
+     * the pending interrupts of each core (indexed by core id)
+     */
+    private Ring m_rings[] = null;
+
+    /**
+     * maps a device number to the core its interrupts are delivered to.
+     * Devices that are not in the table interrupt core 0.  The table is
+     * replaced rather than modified so that devices can read it without a
+     * lock.
+     */
+    private volatile int m_routes[] = new int[0];
+
     //======================================================================
     // Methods
     //----------------------------------------------------------------------
-    
+
     /**
-     * the constructor does nothing
+     * the constructor creates an empty queue for each core
      *
+     * @param numCores  the number of cores that take interrupts
+     * @param capacity  the number of interrupts that can be pending for a
+     *                  core.  If this is not a power of 2 it will be adjusted
+     *                  to the next power of 2.
+     */
+    public InterruptController(int numCores, int capacity)
+    {
+        int size = 1;
+        while(size < capacity)
+        {
+            size = size << 1;
+        }
+
+        m_rings = new Ring[numCores];
+        for(int i = 0; i < numCores; i++)
+        {
+            m_rings[i] = new Ring(size);
+        }
+    }//ctor
+
+    /**
+     * This constructor uses the default capacity
+     *
+     * @param numCores  the number of cores that take interrupts
+     */
+    public InterruptController(int numCores)
+    {
+        this(numCores, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * This constructor creates a controller for a single core
      */
     public InterruptController()
     {
+        this(1);
     }
 
     /**
@@ -49,64 +201,87 @@ public class InterruptController
      */
     public boolean isEmpty()
     {
-        return m_empty;
+        for(Ring r : m_rings)
+        {
+            if (!r.isEmpty())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Is there data available for a given core to take?
+     *
+     * @param core  the id of the core that is asking
+     */
+    public boolean isEmpty(int core)
+    {
+        return m_rings[core].isEmpty();
     }
 
     /**
-     * getData
+     * setRoute
+     *
+     * routes all interrupts from a given device to a given core
      *
-     * is used by the CPU to retrieve the data associated with the interrupt.
+     * @param devNum  the id of the device
+     * @param core    the id of the core that should handle its interrupts
+     *                (must be less than the number of cores)
      */
-    public synchronized int[] getData()
+    public synchronized void setRoute(int devNum, int core)
     {
-        while(m_empty)
+        int routes[] = m_routes;
+        if (devNum >= routes.length)
         {
-            try
-            {
-                wait();
-            }
-            catch(InterruptedException e) {} // should never happen
+            routes = Arrays.copyOf(routes, devNum + 1);
         }
+        else
+        {
+            routes = routes.clone();
+        }
+        routes[devNum] = core;
+        m_routes = routes;
+    }
 
-        //Fill an array with the device number and data
-        int[] retVal = new int[4];
-        retVal[0] = m_operation;
-        retVal[1] = m_devNum;
-        retVal[2] = m_addr;
-        retVal[3] = m_data;
-
-        //Make the interrupt controller available for other devices
-        m_empty = true;
-        notifyAll();
+    /**
+     * getRoute
+     *
+     * @return the id of the core that handles interrupts from a given device
+     */
+    public int getRoute(int devNum)
+    {
+        int routes[] = m_routes;
+        return (devNum < routes.length) ? routes[devNum] : 0;
+    }
 
-        return retVal;
-        
-    }//getData
+    /**
+     * poll
+     *
+     * is used by a core to retrieve the next interrupt routed to it.  The
+     * record is the interrupt's type followed by the device number, address
+     * and data.
+     *
+     * @param core    the id of the core
+     * @param record  receives the interrupt (must hold RECORD_SIZE ints)
+     * @return        false if there was no interrupt for the core
+     */
+    public boolean poll(int core, int[] record)
+    {
+        return m_rings[core].poll(record);
+    }//poll
 
     /**
      * putData
      *
-     * is used by a device to signal that it has data for the CPU.
+     * is used by a device to signal that it has data for the CPU.  This only
+     * waits if the target core already has the maximum number of pending
+     * interrupts.
      */
-    public synchronized void putData(int operation, int devNum, int addr, int data)
+    public void putData(int operation, int devNum, int addr, int data)
     {
-        while(!m_empty)
-        {
-            try
-            {
-                wait();
-            }
-            catch(InterruptedException e) {} // should never happen
-        }
-        
-        //Make the data on the bus available to the CPU
-        m_empty = false;
-        m_devNum = devNum;
-        m_operation = operation;
-        m_addr = addr;
-        m_data = data;
-        notifyAll();
-            
+        m_rings[getRoute(devNum)].offer(operation, devNum, addr, data);
     }//putData
-    
+
 };//class InterruptController
@@ -4,20 +4,25 @@ import java.util.*;
 
 /**
  * This class simulates a simple, non-sharable read-only device.  It always
- * returns a random number to the CPU via the data bus.  
+ * returns a random number to the CPU via the data bus.  Requests are
+ * completed by a {@link DeviceEngine} (which calls {@link #run}) once their
+ * latency has passed.
  *
  * @see Sim
+ * @see DeviceEngine
  * @see CPU
  * @see Device
  */
 public class KeyboardDevice implements Device, Runnable
 {
     private int m_Id = -1;             // The OS assigned device ID
-    private boolean m_request = false; // is the device currently processing a request?
+    private volatile boolean m_request = false; // is the device currently processing a request?
     private int m_addr = 0;            // address to read from
     private int m_maxLatency = 10000;  // maximum latency in ns
     private int m_minLatency = 500;    // minimum latnecy in ns
+    private int m_data = 0;            // the number that will be read
     private InterruptController m_IC = null; // reference to the interrupt controller
+    private DeviceEngine m_engine = null;    // completes requests after their latency
 
     /**
      * Verbose mode generates helpful debugging printlns
@@ -27,16 +32,17 @@ public class KeyboardDevice implements Device, Runnable
     /**
      * This constructor does nothing
      */
-    public KeyboardDevice(InterruptController ic)
+    public KeyboardDevice(InterruptController ic, DeviceEngine engine)
     {
         m_IC = ic;
+        m_engine = engine;
     }
 
     /**
      * This constructor expects values for the minimum and maximum latency
      * of this device expressed as a number of nanoseconds
      */
-    public KeyboardDevice(InterruptController ic, int min, int max)
+    public KeyboardDevice(InterruptController ic, DeviceEngine engine, int min, int max)
     {
         //If latencies are out of order swap them
         if (min > max)
@@ -49,6 +55,7 @@ public class KeyboardDevice implements Device, Runnable
         m_minLatency = min;
         m_maxLatency = max;
         m_IC = ic;
+        m_engine = engine;
     }//ctor
 
     /**
@@ -126,6 +133,13 @@ public class KeyboardDevice implements Device, Runnable
         m_addr = addr;
         m_request = true;
 
+        //generate a random multiple of 1000
+        m_data = (int)(Math.random() * 999999) * 1000;
+
+        //Insert a random latency to simulate the amount of time required
+        int latency = (m_data % (m_maxLatency - m_minLatency)) + m_minLatency;
+        m_engine.schedule(latency, this);
+
         return -9999;           // no longer used
     }//read
     
@@ -142,43 +156,26 @@ public class KeyboardDevice implements Device, Runnable
     /**
      * run
      *
-     * This method represents the device + controller.  It watches for reqeusts
-     * (via m_request and m_data) and handles them.  It also inserts a random
-     * latency to simulate the amount of time required.
+     * This method represents the device + controller finishing the current
+     * request.  The engine calls it once the request's latency has passed.
      *
      */
     public void run()
     {
-        //Device runs until program ends
-        while(true)
+        //Notify the interrupt controller of the available data
+        if (m_verbose)
         {
-            //If there is no request to process, yield the CPU to another thread
-            while (!m_request)
-            {
-                Thread.yield();
-            }
-
-            //generate a random multiple of 1000
-            int rn = (int)(Math.random() * 999999) * 1000;
+            System.out.println("Keyboard puts '" + m_data + "' on the data bus.");
+        }
 
-            //Sleep to simulate the latency
-            try
-            {
-                int latency = (rn % (m_maxLatency - m_minLatency)) + m_minLatency;
-                Thread.sleep(latency / 1000, latency % 1000);
-            }
-            catch(InterruptedException e) {} // should never happen
-            
-            //Notify the interrupt controller of the available data
-            if (m_verbose)
-            {
-                System.out.println("Keyboard puts '" + rn + "' on the data bus.");
-            }
-            m_IC.putData(InterruptController.INT_READ_DONE, m_Id, m_addr, rn);
+        //Make the device available for another request.  (This must happen
+        //before the CPU hears about it since the OS may immediately start
+        //another request, so the request is saved first.)
+        int addr = m_addr;
+        int data = m_data;
+        m_request = false;
 
-            //Make the device available for another request
-            m_request = false;
-        }//while
+        m_IC.putData(InterruptController.INT_READ_DONE, m_Id, addr, data);
     }//run
 
 }//class KeyboardDevice
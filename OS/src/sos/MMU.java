@@ -10,8 +10,14 @@ import java.util.*;
  * maintaining a page table for this MMU.  The MMU assumes that the
  * page table is stored in the bottom of RAM so that page numbers
  * correspond directly to the physical address of the page table entry
- * Corresponding to that page.  Each entry should contain a frame
- * number (if valid) plus a state (see the constants defined below).
+ * Corresponding to that page.  Each entry should contain the physical
+ * address of a frame (i.e., a frame number that has been shifted left by
+ * the offset size) plus a state (see the constants defined below).
+ *
+ * Accessing a page whose entry is not VALID causes a page fault, as does
+ * writing to a page whose entry is COPY_ON_WRITE.  The MMU sets the
+ * REFERENCED bit of an entry when it loads it into a TLB (or on every access
+ * if there is no TLB) and the DIRTY bit on the first write.
  *
  * @see CPU
  * @see SOS
@@ -26,6 +32,12 @@ public class MMU
     public static final int DEFAULT_PAGE_SIZE = 256; //8 bits
     public static final int MINIMUM_PAGE_SIZE = 64;  //6 bits
 
+    //These constants define the status bits of a page table entry
+    public static final int VALID      = 1;    /* the page is in a frame */
+    public static final int DIRTY      = 2;    /* the page has been written */
+    public static final int REFERENCED = 4;    /* the page has been used */
+    public static final int COPY_ON_WRITE = 8; /* the frame is shared (read only) */
+
     //======================================================================
     // Member Variables
     //----------------------------------------------------------------------
@@ -75,7 +87,7 @@ public class MMU
      * This int contains a 1 in every bit that corresponds to the status of a
      * page table entry.
      */
-    private int m_statusMask = 7;  
+    private int m_statusMask = 15;
     
     /**
      * This int will contain a 1 in every bit that corresponds to the
@@ -88,6 +100,17 @@ public class MMU
      */
     private CPU.TrapHandler m_TH = null;
 
+    /**
+     * the translation lookaside buffer of each CPU core (indexed by core
+     * id).  A core without one reads the page table on every access.
+     */
+    private TLB[] m_TLBs = new TLB[0];
+
+    /**
+     * if this is not null every page that is translated is recorded in it
+     */
+    private PageTrace m_trace = null;
+
     //======================================================================
     // Constructors
     //----------------------------------------------------------------------
@@ -237,10 +260,126 @@ public class MMU
         return m_pageMask;
     }
 
+    /**
+     * getTLB
+     *
+     * @return the TLB used by a given core or null if it doesn't have one
+     */
+    public TLB getTLB(int coreId)
+    {
+        return (coreId < m_TLBs.length) ? m_TLBs[coreId] : null;
+    }
+
+    /**
+     * setTLB
+     *
+     * gives a core a TLB.  Pass null to remove it.
+     */
+    public void setTLB(int coreId, TLB tlb)
+    {
+        if (coreId >= m_TLBs.length)
+        {
+            m_TLBs = Arrays.copyOf(m_TLBs, coreId + 1);
+        }
+        m_TLBs[coreId] = tlb;
+    }
+
+    /**
+     * getTrace
+     *
+     * @return the page reference trace being recorded or null if there isn't
+     *         one
+     */
+    public PageTrace getTrace()
+    {
+        return m_trace;
+    }
+
+    /**
+     * setTrace
+     *
+     * starts recording every translated page in a given trace.  Pass null to
+     * stop recording.  (A block of compiled code is recorded as a single
+     * reference since it never leaves its page.)
+     */
+    public void setTrace(PageTrace trace)
+    {
+        m_trace = trace;
+    }
+
     //======================================================================
     // Methods
     //----------------------------------------------------------------------
 
+    /**
+     * currentTLB
+     *
+     * @return the TLB of the core running on the calling thread or null if
+     *         there isn't one
+     */
+    private TLB currentTLB()
+    {
+        CPU core = CPU.getCurrentCore();
+        if ((core == null) || (core.getCoreId() >= m_TLBs.length))
+        {
+            return null;
+        }
+        return m_TLBs[core.getCoreId()];
+    }//currentTLB
+
+    /**
+     * flushTLB
+     *
+     * empties every core's TLB.  The OS must call this (or
+     * {@link #invalidatePage}) after changing the page table.  Other cores
+     * must not be running while their TLBs are flushed.
+     */
+    public void flushTLB()
+    {
+        for(TLB tlb : m_TLBs)
+        {
+            if (tlb != null)
+            {
+                tlb.flush();
+            }
+        }
+    }//flushTLB
+
+    /**
+     * flushTLB
+     *
+     * empties the TLB of a single core
+     *
+     * @param coreId  the id of the core
+     */
+    public void flushTLB(int coreId)
+    {
+        TLB tlb = getTLB(coreId);
+        if (tlb != null)
+        {
+            tlb.flush();
+        }
+    }//flushTLB
+
+    /**
+     * invalidatePage
+     *
+     * shoots down the translation for a single page in every core's TLB.
+     * Other cores must not be running while this is done.
+     *
+     * @param page  the page whose page table entry changed
+     */
+    public void invalidatePage(int page)
+    {
+        for(TLB tlb : m_TLBs)
+        {
+            if (tlb != null)
+            {
+                tlb.invalidate(page);
+            }
+        }
+    }//invalidatePage
+
     /**
      * registerTrapHandler
      *
@@ -306,19 +445,112 @@ public class MMU
      * @param virtAddr the logical address
      * @return the physical address
      */
-    private int translate(int virtAddr)
+    public int translate(int virtAddr)
+    {
+        return translate(virtAddr, false);
+    }//translate
+
+    /**
+     * peek
+     *
+     * Converts a logical address to physical without simulating anything:
+     * no RAM latency is charged, the TLB, page trace and status bits are
+     * left alone and a page that isn't in RAM doesn't fault.  The CPU uses
+     * this to look up compiled code so that turning the block compiler on
+     * doesn't change the timing of a program.
+     *
+     * @param virtAddr the logical address
+     * @return the physical address or -1 if the page isn't in RAM
+     */
+    public int peek(int virtAddr)
+    {
+        int page = virtAddr >> m_offsetSize;
+        if ((page < 0) || (page >= m_numPages))
+        {
+            return -1;
+        }
+
+        int entry = m_RAM.load(page);
+        if ((entry & VALID) == 0)
+        {
+            return -1;
+        }
+        return (entry & m_pageMask) | (virtAddr & m_offsetMask);
+    }//peek
+
+    /**
+     * translate
+     * 
+     * Converts a logical address to physical
+     * 
+     * @param virtAddr the logical address
+     * @param write    true if the address is about to be written
+     * @return the physical address
+     */
+    private int translate(int virtAddr, boolean write)
     {
         
-    	int page = virtAddr / m_pageSize;
-    	int relAddr = virtAddr % m_pageSize;
+    	int page = virtAddr >> m_offsetSize;
+    	int relAddr = virtAddr & m_offsetMask;
     	
-    	int frame = m_RAM.read(page);
+    	if (m_trace != null)
+    	{
+    		m_trace.record(page);
+    	}
     	
-    	int phyAddr = frame * m_pageSize + relAddr;
+    	//Consult the TLB before walking the page table.  A cached entry that
+    	//isn't dirty yet can't be used for a write since the page table
+    	//needs to be updated.
+    	TLB tlb = currentTLB();
+    	int entry = (tlb == null) ? -1 : tlb.lookup(page);
+    	if ((entry < 0) || (write && ((entry & DIRTY) == 0)))
+    	{
+    		entry = walk(page, write);
+    		if (tlb != null)
+    		{
+    			tlb.insert(page, entry);
+    		}
+    	}
+    	
+    	int phyAddr = (entry & m_pageMask) | relAddr;
     	
         return phyAddr;
     }//translate
 
+    /**
+     * walk
+     *
+     * reads the page table entry for a page, taking a page fault until it is
+     * valid (and, for a write, until it isn't copy-on-write), and updates its
+     * status bits
+     *
+     * @param page  the virtual page number
+     * @param write true if the page is about to be written
+     * @return the (valid) page table entry
+     */
+    private int walk(int page, boolean write)
+    {
+        int entry = m_RAM.read(page);
+        while(((entry & VALID) == 0)
+              || (write && ((entry & COPY_ON_WRITE) != 0)))
+        {
+            m_TH.interruptPageFault(page << m_offsetSize);
+            entry = m_RAM.read(page);
+        }
+
+        int newEntry = entry | REFERENCED;
+        if (write)
+        {
+            newEntry |= DIRTY;
+        }
+        if (newEntry != entry)
+        {
+            m_RAM.write(page, newEntry);
+        }
+
+        return newEntry;
+    }//walk
+
     /**
      * write
      *
@@ -331,7 +563,7 @@ public class MMU
     public void write(int virtAddr, int data)
     {
         //Perform the write
-        int physAddr = translate(virtAddr);
+        int physAddr = translate(virtAddr, true);
         m_RAM.write(physAddr, data);
     }//write
 
@@ -376,6 +608,25 @@ public class MMU
         
     }//fetch
 
+    /**
+     * fetch
+     *
+     * retrieves an entire program instruction into a caller supplied buffer.
+     * Unlike {@link #fetch(int)} this does not allocate so it is the version
+     * used by the CPU on every cycle.
+     *
+     * @param pc    the virtual address to load the instruction from (program
+     *              counter)
+     * @param instr receives the instruction.  The first entry is the opcode
+     *              followed by the arguments in order.
+     *
+     * @see CPU#INSTRSIZE
+     */
+    public void fetch(int pc, int[] instr)
+    {
+        m_RAM.fetch(translate(pc), instr);
+    }//fetch
+
      
 
 }//class MMU
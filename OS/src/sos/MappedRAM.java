@@ -0,0 +1,206 @@
+package sos;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * This class simulates a random access memory whose words are stored in a
+ * memory-mapped file instead of on the Java heap.  The file is sparse so
+ * pages of the simulated RAM that are never touched cost nothing, which
+ * means very large RAMs (up to 2^31 words) can be created instantly.
+ *
+ * A single mapping can't be larger than 2GB so the file is mapped in
+ * chunks of 2^{@link #CHUNK_BITS} words.
+ *
+ * @see RAM
+ * @see MMU
+ */
+public class MappedRAM extends RAM
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the number of bits in an address within a chunk */
+    public static final int CHUNK_BITS = 24;
+
+    /** the number of words in a chunk */
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /** the number of bytes in a simulated word */
+    private static final int WORD_BYTES = 4;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the file the RAM is stored in
+     */
+    private File m_path = null;
+
+    /**
+     * the open file
+     */
+    private RandomAccessFile m_file = null;
+
+    /**
+     * the mapped contents of the file.  Chunk i holds addresses
+     * i*CHUNK_SIZE through (i+1)*CHUNK_SIZE - 1.
+     */
+    private IntBuffer m_chunks[] = null;
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates a RAM in a given file.  Any existing contents
+     * of the file are discarded.
+     *
+     * @param path     the file to store the RAM in
+     * @param size     number of integers ("words") in ram
+     * @param latency  the number of CPU cycles charged for each access
+     */
+    public MappedRAM(File path, int size, int latency) throws IOException
+    {
+        super(size, latency, false);
+        m_path = path;
+
+        //Truncating the file first guarantees that it is all zeroes (and
+        //takes up no disk space)
+        m_file = new RandomAccessFile(path, "rw");
+        m_file.setLength(0);
+        m_file.setLength((long)size * WORD_BYTES);
+
+        FileChannel channel = m_file.getChannel();
+        int numChunks = (int)(((long)size + CHUNK_SIZE - 1) >> CHUNK_BITS);
+        m_chunks = new IntBuffer[numChunks];
+        for(int i = 0; i < numChunks; i++)
+        {
+            long start = (long)i << CHUNK_BITS;
+            long words = Math.min(CHUNK_SIZE, size - start);
+            m_chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                      start * WORD_BYTES, words * WORD_BYTES)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }//ctor
+
+    /**
+     * This constructor stores the RAM in a temporary file that is deleted
+     * when the simulation ends.
+     */
+    public MappedRAM(int size, int latency) throws IOException
+    {
+        this(createTempFile(), size, latency);
+    }
+
+    /**
+     * createTempFile
+     *
+     * @return a new file that will be deleted on exit
+     */
+    private static File createTempFile() throws IOException
+    {
+        File f = File.createTempFile("sos", ".ram");
+        f.deleteOnExit();
+        return f;
+    }
+
+    //======================================================================
+    // Accessor Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * getPath
+     */
+    public File getPath()
+    {
+        return m_path;
+    }
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * load
+     *
+     * @see RAM#load
+     */
+    protected int load(int addr)
+    {
+        return m_chunks[addr >>> CHUNK_BITS].get(addr & (CHUNK_SIZE - 1));
+    }//load
+
+    /**
+     * store
+     *
+     * @see RAM#store
+     */
+    protected void store(int addr, int val)
+    {
+        m_chunks[addr >>> CHUNK_BITS].put(addr & (CHUNK_SIZE - 1), val);
+    }//store
+
+    /**
+     * loadRange
+     *
+     * copies the range a chunk at a time
+     *
+     * @see RAM#loadRange
+     */
+    protected void loadRange(int addr, int[] buf, int off, int len)
+    {
+        while(len > 0)
+        {
+            int index = addr & (CHUNK_SIZE - 1);
+            int n = Math.min(len, CHUNK_SIZE - index);
+
+            //Use a duplicate so that cores don't share a buffer position
+            IntBuffer chunk = m_chunks[addr >>> CHUNK_BITS].duplicate();
+            chunk.position(index);
+            chunk.get(buf, off, n);
+
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }//loadRange
+
+    /**
+     * storeRange
+     *
+     * copies the range a chunk at a time
+     *
+     * @see RAM#storeRange
+     */
+    protected void storeRange(int addr, int[] buf, int off, int len)
+    {
+        while(len > 0)
+        {
+            int index = addr & (CHUNK_SIZE - 1);
+            int n = Math.min(len, CHUNK_SIZE - index);
+
+            IntBuffer chunk = m_chunks[addr >>> CHUNK_BITS].duplicate();
+            chunk.position(index);
+            chunk.put(buf, off, n);
+
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }//storeRange
+
+    /**
+     * close
+     *
+     * releases the file.  The RAM can't be used afterwards.
+     */
+    public void close() throws IOException
+    {
+        m_file.close();
+    }//close
+
+};//class MappedRAM
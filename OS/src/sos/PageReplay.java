@@ -0,0 +1,669 @@
+package sos;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class replays a page reference trace (see {@link PageTrace}) through
+ * several page replacement policies for a range of frame counts and prints
+ * the fault rate of each.  It is a standalone tool:
+ *
+ * <pre>
+ *   java sos.PageReplay trace [-frames min max] [-step n] [-shift bits]
+ *                             [-pid id] [-threads n]
+ * </pre>
+ *
+ * -shift merges every 2^bits adjacent pages into one so that larger page
+ * sizes can be evaluated from the same trace.  -pid only replays the
+ * references made by a single process (by default every process shares the
+ * frames, as they do in SOS).  Each (policy, frame count) pair is simulated
+ * as a separate task so the whole table is computed in parallel.
+ *
+ * @see PageTrace
+ * @see MMU
+ */
+public class PageReplay
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+    public static final int DEFAULT_MIN_FRAMES = 4;
+    public static final int DEFAULT_MAX_FRAMES = 64;
+
+    /** the number of references between two shifts of the aging counters */
+    public static final int AGING_INTERVAL = 64;
+
+    /** the bit the aging policy sets for a page that was referenced */
+    private static final int AGING_BIT = 1 << 30;
+
+    /** the value of a page's slot when it is not in a frame */
+    private static final int NOT_RESIDENT = -1;
+
+    /** the next use of a page that is never referenced again */
+    private static final int NEVER = Integer.MAX_VALUE;
+
+    /*======================================================================
+     * Inner Classes
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Policy
+     *
+     * is a page replacement policy.  Every call to simulate starts with all
+     * of the frames empty.
+     */
+    public interface Policy
+    {
+        /**
+         * @return the name printed at the top of the policy's column
+         */
+        public String getName();
+
+        /**
+         * @param refs       the page numbers that are referenced, in order
+         * @param numPages   one more than the largest page number in refs
+         * @param numFrames  the number of frames the pages share
+         * @return           the number of page faults
+         */
+        public long simulate(int[] refs, int numPages, int numFrames);
+    };//interface Policy
+
+    /**
+     * FifoPolicy
+     *
+     * evicts the page that has been in memory the longest
+     */
+    public static class FifoPolicy implements Policy
+    {
+        public String getName()
+        {
+            return "FIFO";
+        }
+
+        public long simulate(int[] refs, int numPages, int numFrames)
+        {
+            int slotOf[] = new int[numPages];
+            Arrays.fill(slotOf, NOT_RESIDENT);
+            int frames[] = new int[numFrames];
+            int used = 0;
+            int hand = 0;
+            long faults = 0;
+
+            for(int page : refs)
+            {
+                if (slotOf[page] != NOT_RESIDENT) continue;
+
+                faults++;
+                int slot;
+                if (used < numFrames)
+                {
+                    slot = used++;
+                }
+                else
+                {
+                    slot = hand;
+                    hand = (hand + 1) % numFrames;
+                    slotOf[frames[slot]] = NOT_RESIDENT;
+                }
+                frames[slot] = page;
+                slotOf[page] = slot;
+            }
+
+            return faults;
+        }//simulate
+    };//class FifoPolicy
+
+    /**
+     * ClockPolicy
+     *
+     * is FIFO that gives a page a second chance if it has been referenced
+     * since the hand last passed it (this is what {@link SOS} uses)
+     */
+    public static class ClockPolicy implements Policy
+    {
+        public String getName()
+        {
+            return "Clock";
+        }
+
+        public long simulate(int[] refs, int numPages, int numFrames)
+        {
+            int slotOf[] = new int[numPages];
+            Arrays.fill(slotOf, NOT_RESIDENT);
+            int frames[] = new int[numFrames];
+            boolean referenced[] = new boolean[numFrames];
+            int used = 0;
+            int hand = 0;
+            long faults = 0;
+
+            for(int page : refs)
+            {
+                if (slotOf[page] != NOT_RESIDENT)
+                {
+                    referenced[slotOf[page]] = true;
+                    continue;
+                }
+
+                faults++;
+                int slot;
+                if (used < numFrames)
+                {
+                    slot = used++;
+                }
+                else
+                {
+                    while(referenced[hand])
+                    {
+                        referenced[hand] = false;
+                        hand = (hand + 1) % numFrames;
+                    }
+                    slot = hand;
+                    hand = (hand + 1) % numFrames;
+                    slotOf[frames[slot]] = NOT_RESIDENT;
+                }
+                frames[slot] = page;
+                slotOf[page] = slot;
+                referenced[slot] = true;
+            }
+
+            return faults;
+        }//simulate
+    };//class ClockPolicy
+
+    /**
+     * AgingPolicy
+     *
+     * approximates LRU.  Every {@link #AGING_INTERVAL} references each
+     * frame's counter is shifted right and its referenced bit is shifted in
+     * at the top.  The page with the smallest counter is evicted.
+     */
+    public static class AgingPolicy implements Policy
+    {
+        public String getName()
+        {
+            return "Aging";
+        }
+
+        public long simulate(int[] refs, int numPages, int numFrames)
+        {
+            int slotOf[] = new int[numPages];
+            Arrays.fill(slotOf, NOT_RESIDENT);
+            int frames[] = new int[numFrames];
+            int counters[] = new int[numFrames];
+            boolean referenced[] = new boolean[numFrames];
+            int used = 0;
+            int hand = 0;
+            long faults = 0;
+
+            for(int i = 0; i < refs.length; i++)
+            {
+                if ((i % AGING_INTERVAL) == 0)
+                {
+                    for(int j = 0; j < used; j++)
+                    {
+                        counters[j] = (counters[j] >> 1) | (referenced[j] ? AGING_BIT : 0);
+                        referenced[j] = false;
+                    }
+                }
+
+                int page = refs[i];
+                if (slotOf[page] != NOT_RESIDENT)
+                {
+                    referenced[slotOf[page]] = true;
+                    continue;
+                }
+
+                faults++;
+                int slot;
+                if (used < numFrames)
+                {
+                    slot = used++;
+                }
+                else
+                {
+                    //Compare the counters as they will be after the next
+                    //shift so that a page loaded since the last one isn't
+                    //the first to go.  Ties are broken round robin.
+                    slot = hand;
+                    int oldest = Integer.MAX_VALUE;
+                    for(int k = 0; k < numFrames; k++)
+                    {
+                        int j = (hand + k) % numFrames;
+                        int age = (counters[j] >> 1) | (referenced[j] ? AGING_BIT : 0);
+                        if (age < oldest)
+                        {
+                            oldest = age;
+                            slot = j;
+                        }
+                    }
+                    hand = (slot + 1) % numFrames;
+                    slotOf[frames[slot]] = NOT_RESIDENT;
+                }
+                frames[slot] = page;
+                slotOf[page] = slot;
+                counters[slot] = 0;
+                referenced[slot] = true;
+            }
+
+            return faults;
+        }//simulate
+    };//class AgingPolicy
+
+    /**
+     * ArcPolicy
+     *
+     * is the Adaptive Replacement Cache.  It keeps pages that have been
+     * referenced once (T1) apart from pages that have been referenced more
+     * than once (T2) and remembers recently evicted pages of each kind (B1
+     * and B2) so that it can adapt the share of the frames given to T1.
+     * Each list is kept in LRU order (least recently used first).
+     */
+    public static class ArcPolicy implements Policy
+    {
+        public String getName()
+        {
+            return "ARC";
+        }
+
+        public long simulate(int[] refs, int numPages, int numFrames)
+        {
+            LinkedHashSet<Integer> t1 = new LinkedHashSet<Integer>();
+            LinkedHashSet<Integer> t2 = new LinkedHashSet<Integer>();
+            LinkedHashSet<Integer> b1 = new LinkedHashSet<Integer>();
+            LinkedHashSet<Integer> b2 = new LinkedHashSet<Integer>();
+            int c = numFrames;
+            int p = 0;             // the target size of T1
+            long faults = 0;
+
+            for(int page : refs)
+            {
+                Integer x = page;
+
+                //A hit moves the page to the most recently used end of T2
+                if (t1.remove(x) || t2.remove(x))
+                {
+                    t2.add(x);
+                    continue;
+                }
+
+                faults++;
+                if (b1.contains(x))
+                {
+                    p = Math.min(c, p + Math.max(b2.size() / b1.size(), 1));
+                    replace(t1, t2, b1, b2, false, p);
+                    b1.remove(x);
+                    t2.add(x);
+                }
+                else if (b2.contains(x))
+                {
+                    p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+                    replace(t1, t2, b1, b2, true, p);
+                    b2.remove(x);
+                    t2.add(x);
+                }
+                else
+                {
+                    int l1 = t1.size() + b1.size();
+                    int total = l1 + t2.size() + b2.size();
+                    if (l1 == c)
+                    {
+                        if (t1.size() < c)
+                        {
+                            removeLRU(b1);
+                            replace(t1, t2, b1, b2, false, p);
+                        }
+                        else
+                        {
+                            removeLRU(t1);
+                        }
+                    }
+                    else if (total >= c)
+                    {
+                        if (total == 2 * c)
+                        {
+                            removeLRU(b2);
+                        }
+                        replace(t1, t2, b1, b2, false, p);
+                    }
+                    t1.add(x);
+                }
+            }
+
+            return faults;
+        }//simulate
+
+        /**
+         * replace
+         *
+         * evicts a page from T1 or T2 (depending on the target size of T1)
+         * and remembers it in the matching ghost list
+         */
+        private void replace(LinkedHashSet<Integer> t1, LinkedHashSet<Integer> t2,
+                             LinkedHashSet<Integer> b1, LinkedHashSet<Integer> b2,
+                             boolean inB2, int p)
+        {
+            if ((t1.size() > 0)
+                && ((t2.size() == 0) || (t1.size() > p) || (inB2 && (t1.size() == p))))
+            {
+                b1.add(removeLRU(t1));
+            }
+            else
+            {
+                b2.add(removeLRU(t2));
+            }
+        }//replace
+
+        /**
+         * removeLRU
+         *
+         * @return the least recently used page of a list (which is removed)
+         */
+        private Integer removeLRU(LinkedHashSet<Integer> list)
+        {
+            Iterator<Integer> it = list.iterator();
+            Integer page = it.next();
+            it.remove();
+            return page;
+        }//removeLRU
+    };//class ArcPolicy
+
+    /**
+     * OptPolicy
+     *
+     * is Belady's optimal policy: it evicts the page whose next use is
+     * furthest in the future.  It can't be implemented in an OS but it is a
+     * lower bound for the other policies.
+     */
+    public static class OptPolicy implements Policy
+    {
+        public String getName()
+        {
+            return "OPT";
+        }
+
+        public long simulate(int[] refs, int numPages, int numFrames)
+        {
+            //Find the next reference to the same page for every reference
+            int next[] = new int[refs.length];
+            int nextUse[] = new int[numPages];
+            Arrays.fill(nextUse, NEVER);
+            for(int i = refs.length - 1; i >= 0; i--)
+            {
+                next[i] = nextUse[refs[i]];
+                nextUse[refs[i]] = i;
+            }
+
+            int slotOf[] = new int[numPages];
+            Arrays.fill(slotOf, NOT_RESIDENT);
+            int frames[] = new int[numFrames];
+            int used = 0;
+            long faults = 0;
+
+            for(int i = 0; i < refs.length; i++)
+            {
+                int page = refs[i];
+                nextUse[page] = next[i];
+                if (slotOf[page] != NOT_RESIDENT) continue;
+
+                faults++;
+                int slot;
+                if (used < numFrames)
+                {
+                    slot = used++;
+                }
+                else
+                {
+                    slot = 0;
+                    for(int j = 1; j < numFrames; j++)
+                    {
+                        if (nextUse[frames[j]] > nextUse[frames[slot]])
+                        {
+                            slot = j;
+                        }
+                    }
+                    slotOf[frames[slot]] = NOT_RESIDENT;
+                }
+                frames[slot] = page;
+                slotOf[page] = slot;
+            }
+
+            return faults;
+        }//simulate
+    };//class OptPolicy
+
+    /*======================================================================
+     * Methods
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * loadTrace
+     *
+     * reads the references in a trace file
+     *
+     * @param path    the trace file
+     * @param shift   the number of bits to shift each page number right by
+     * @param pid     the process whose references are wanted or -1 for all
+     * @param counts  receives the number of references made by each process
+     * @return        the page numbers that were referenced, in order
+     */
+    public static int[] loadTrace(File path, int shift, int pid,
+                                  Map<Integer, Long> counts) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            IntBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+            if ((buf.remaining() < 2) || (buf.get() != PageTrace.MAGIC))
+            {
+                throw new IOException(path + " is not a page trace");
+            }
+            buf.get();    // the offset size
+
+            int refs[] = new int[buf.remaining()];
+            int numRefs = 0;
+            int curr = PageTrace.NO_PROCESS;
+            long count = 0;
+            while(buf.hasRemaining())
+            {
+                int value = buf.get();
+                if (value < 0)
+                {
+                    //A process switch
+                    addCount(counts, curr, count);
+                    curr = ~value;
+                    count = 0;
+                }
+                else
+                {
+                    count++;
+                    if ((pid < 0) || (pid == curr))
+                    {
+                        refs[numRefs++] = value >> shift;
+                    }
+                }
+            }
+            addCount(counts, curr, count);
+
+            return Arrays.copyOf(refs, numRefs);
+        }
+        finally
+        {
+            file.close();
+        }
+    }//loadTrace
+
+    /**
+     * addCount
+     *
+     * adds to a process's reference count
+     */
+    private static void addCount(Map<Integer, Long> counts, int pid, long count)
+    {
+        if (count > 0)
+        {
+            Long old = counts.get(pid);
+            counts.put(pid, (old == null) ? count : old + count);
+        }
+    }//addCount
+
+    /**
+     * readOffsetSize
+     *
+     * @return the offset size recorded in a trace's header
+     */
+    private static int readOffsetSize(File path) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try
+        {
+            in.readInt();
+            return in.readInt();
+        }
+        finally
+        {
+            in.close();
+        }
+    }//readOffsetSize
+
+    /**
+     * usage
+     */
+    private static void usage()
+    {
+        System.out.println("usage: java sos.PageReplay trace [-frames min max] [-step n]"
+                           + " [-shift bits] [-pid id] [-threads n]");
+    }//usage
+
+    /**
+     * main
+     *
+     * replays a trace and prints the fault rate (as a percentage of the
+     * references) of each policy for each frame count
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            usage();
+            return;
+        }
+
+        //Parse the options
+        File path = new File(args[0]);
+        int minFrames = DEFAULT_MIN_FRAMES;
+        int maxFrames = DEFAULT_MAX_FRAMES;
+        int step = 1;
+        int shift = 0;
+        int pid = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for(int i = 1; i < args.length; i++)
+        {
+            if (args[i].equals("-frames") && (i + 2 < args.length))
+            {
+                minFrames = Integer.parseInt(args[++i]);
+                maxFrames = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-step") && (i + 1 < args.length))
+            {
+                step = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-shift") && (i + 1 < args.length))
+            {
+                shift = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-pid") && (i + 1 < args.length))
+            {
+                pid = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-threads") && (i + 1 < args.length))
+            {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else
+            {
+                usage();
+                return;
+            }
+        }
+        if ((minFrames < 1) || (maxFrames < minFrames) || (step < 1) || (threads < 1))
+        {
+            usage();
+            return;
+        }
+
+        //Load the trace
+        TreeMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        final int refs[] = loadTrace(path, shift, pid, counts);
+        int pageSize = 1 << (readOffsetSize(path) + shift);
+        int maxPage = -1;
+        for(int page : refs)
+        {
+            maxPage = Math.max(maxPage, page);
+        }
+        final int numPages = maxPage + 1;
+
+        System.out.println("Trace: " + path + " (" + refs.length + " references to "
+                           + numPages + " pages of " + pageSize + " words)");
+        for(Map.Entry<Integer, Long> e : counts.entrySet())
+        {
+            System.out.println("  process " + e.getKey() + ": " + e.getValue() + " references");
+        }
+        if (refs.length == 0)
+        {
+            return;
+        }
+
+        //Simulate every (policy, frame count) pair in parallel
+        final Policy policies[] = { new FifoPolicy(), new ClockPolicy(), new AgingPolicy(),
+                                    new ArcPolicy(), new OptPolicy() };
+        int numRows = (maxFrames - minFrames) / step + 1;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Vector<Vector<Future<Long>>> results = new Vector<Vector<Future<Long>>>();
+        for(int row = 0; row < numRows; row++)
+        {
+            final int frames = minFrames + row * step;
+            Vector<Future<Long>> rowResults = new Vector<Future<Long>>();
+            for(final Policy policy : policies)
+            {
+                rowResults.add(pool.submit(new Callable<Long>() {
+                        public Long call()
+                        {
+                            return policy.simulate(refs, numPages, frames);
+                        }
+                    }));
+            }
+            results.add(rowResults);
+        }
+
+        //Print the fault rate curves
+        StringBuilder header = new StringBuilder(String.format("%8s", "Frames"));
+        for(Policy policy : policies)
+        {
+            header.append(String.format("%9s", policy.getName()));
+        }
+        System.out.println(header);
+        try
+        {
+            for(int row = 0; row < numRows; row++)
+            {
+                StringBuilder line = new StringBuilder(String.format("%8d", minFrames + row * step));
+                for(Future<Long> f : results.get(row))
+                {
+                    line.append(String.format("%8.3f%%", (100.0 * f.get()) / refs.length));
+                }
+                System.out.println(line);
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }//main
+
+};//class PageReplay
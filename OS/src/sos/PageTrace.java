@@ -0,0 +1,225 @@
+package sos;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * This class records the stream of virtual page numbers that the MMU
+ * resolves so that page replacement policies can be compared offline (see
+ * {@link PageReplay}).
+ *
+ * The trace is a binary file of big-endian ints.  It begins with a header
+ * (the magic number and the MMU's offset size) which is followed by one int
+ * per memory reference.  A reference is recorded as its page number.  When
+ * the process making references changes a marker is recorded first; the
+ * marker is the one's complement of the new process id (so it is always
+ * negative).
+ *
+ * @see MMU
+ * @see PageReplay
+ */
+public class PageTrace
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** identifies a trace file ("SOSt") */
+    public static final int MAGIC = 0x534f5374;
+
+    /** the number of bytes buffered before they are written to the file */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** the process id used for references made before any process runs */
+    public static final int NO_PROCESS = 0;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the file the trace is written to
+     */
+    private File m_path = null;
+
+    /**
+     * the open file
+     */
+    private FileChannel m_channel = null;
+
+    /**
+     * holds references until there are enough of them to be worth a write
+     */
+    private ByteBuffer m_buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * the process running on each core (indexed by core id)
+     */
+    private int m_pids[] = new int[1];
+
+    /**
+     * the process of the last reference that was recorded
+     */
+    private int m_lastPid = NO_PROCESS;
+
+    /**
+     * statistics
+     */
+    private long m_references = 0;
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates an empty trace.  Any existing contents of the
+     * file are replaced.
+     *
+     * @param path        the file to write the trace to
+     * @param offsetSize  the number of bits in a page offset (see
+     *                    {@link MMU#getOffsetSize})
+     */
+    public PageTrace(File path, int offsetSize) throws IOException
+    {
+        m_path = path;
+        m_channel = new FileOutputStream(path).getChannel();
+        m_buf.putInt(MAGIC);
+        m_buf.putInt(offsetSize);
+    }//ctor
+
+    //======================================================================
+    // Accessor Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * getPath
+     */
+    public File getPath()
+    {
+        return m_path;
+    }
+
+    /**
+     * getReferences
+     *
+     * @return the number of references recorded so far
+     */
+    public long getReferences()
+    {
+        return m_references;
+    }
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * setProcess
+     *
+     * tells the trace which process a core is now running.  Subsequent
+     * references made by that core are attributed to this process.
+     *
+     * @param coreId  the id of the core
+     * @param pid     the id of the process
+     */
+    public synchronized void setProcess(int coreId, int pid)
+    {
+        if (coreId >= m_pids.length)
+        {
+            m_pids = Arrays.copyOf(m_pids, coreId + 1);
+        }
+        m_pids[coreId] = pid;
+    }//setProcess
+
+    /**
+     * record
+     *
+     * records a reference to a page made by the core running on the calling
+     * thread.  References made after the trace is closed are ignored.
+     *
+     * @param page  the virtual page number
+     */
+    public synchronized void record(int page)
+    {
+        if (!m_channel.isOpen())
+        {
+            return;
+        }
+
+        CPU core = CPU.getCurrentCore();
+        int coreId = (core == null) ? 0 : core.getCoreId();
+        int pid = (coreId < m_pids.length) ? m_pids[coreId] : NO_PROCESS;
+
+        if (pid != m_lastPid)
+        {
+            put(~pid);
+            m_lastPid = pid;
+        }
+        put(page);
+        m_references++;
+    }//record
+
+    /**
+     * put
+     *
+     * appends an int to the buffer, writing the buffer out if it is full
+     */
+    private void put(int value)
+    {
+        if (m_buf.remaining() < 4)
+        {
+            drain();
+        }
+        m_buf.putInt(value);
+    }//put
+
+    /**
+     * drain
+     *
+     * writes everything in the buffer to the file
+     */
+    private void drain()
+    {
+        m_buf.flip();
+        try
+        {
+            while(m_buf.hasRemaining())
+            {
+                m_channel.write(m_buf);
+            }
+        }
+        catch(IOException ioe)
+        {
+            System.out.println("ERROR: Could not write the page trace: " + ioe);
+        }
+        m_buf.clear();
+    }//drain
+
+    /**
+     * close
+     *
+     * writes any buffered references and closes the file.  Nothing more can
+     * be recorded afterwards.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (m_channel.isOpen())
+        {
+            drain();
+            m_channel.close();
+        }
+    }//close
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the trace
+     */
+    public String toString()
+    {
+        return "Page Trace: " + m_references + " references written to " + m_path;
+    }//toString
+
+};//class PageTrace
@@ -0,0 +1,114 @@
+package sos;
+
+/**
+ * This class records how long a series of pauses (e.g., the times that the
+ * OS stopped everything to compact memory) lasted.  Pauses are counted in
+ * buckets whose bounds are powers of two microseconds so that both the
+ * typical pause and the worst ones show up in a short summary.
+ */
+public class PauseHistogram
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the number of buckets.  The last one holds everything longer. */
+    public static final int NUM_BUCKETS = 24;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the name of the thing that paused (used by toString)
+     */
+    private String m_name = null;
+
+    /**
+     * bucket 0 counts pauses under 1us and bucket i counts pauses from
+     * 2^(i-1) to 2^i microseconds
+     */
+    private long m_buckets[] = new long[NUM_BUCKETS];
+
+    /**
+     * statistics
+     */
+    private long m_count = 0;
+    private long m_totalNanos = 0;
+    private long m_maxNanos = 0;
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates an empty histogram
+     *
+     * @param name  what paused
+     */
+    public PauseHistogram(String name)
+    {
+        m_name = name;
+    }
+
+    /**
+     * record
+     *
+     * adds a pause to the histogram
+     *
+     * @param nanos  the length of the pause in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        m_buckets[Math.min(bucket, NUM_BUCKETS - 1)]++;
+
+        m_count++;
+        m_totalNanos += nanos;
+        m_maxNanos = Math.max(m_maxNanos, nanos);
+    }//record
+
+    /**
+     * getCount
+     *
+     * @return the number of pauses recorded
+     */
+    public long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * toString
+     *
+     * @return the number of pauses, their mean and maximum and the non-empty
+     *         buckets
+     */
+    public String toString()
+    {
+        double mean = (m_count == 0) ? 0.0 : m_totalNanos / 1000.0 / m_count;
+        StringBuilder sb = new StringBuilder();
+        sb.append(m_name).append(": ").append(m_count)
+          .append(String.format(" pauses, mean=%.1fus max=%.1fus",
+                                mean, m_maxNanos / 1000.0));
+        for(int i = 0; i < NUM_BUCKETS; i++)
+        {
+            if (m_buckets[i] == 0)
+            {
+                continue;
+            }
+            if (i == NUM_BUCKETS - 1)
+            {
+                sb.append(" [>=").append(1L << (i - 1)).append("us ");
+            }
+            else
+            {
+                sb.append(" [<").append(1L << i).append("us ");
+            }
+            sb.append(m_buckets[i]).append("]");
+        }
+        return sb.toString();
+    }//toString
+
+};//class PauseHistogram
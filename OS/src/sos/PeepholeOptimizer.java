@@ -0,0 +1,712 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This class optimizes an assembled program before it is loaded.  It
+ * repeats these passes until none of them changes anything:
+ *
+ * <ul>
+ * <li>Constant folding: within a basic block the value of each register is
+ *     tracked and ADD/SUB/MUL/DIV/COPY of known values become a SET.  A
+ *     BNE or BLT whose outcome is known becomes a BRANCH or is deleted.</li>
+ * <li>Stack round trips: a PUSH and the POP that takes the same value off
+ *     the stack (in the same block, with no TRAP between them) are
+ *     replaced with a SET (if the value is known) or a COPY (if the
+ *     register that was pushed hasn't changed) or nothing at all.</li>
+ * <li>Dead-store elimination: an instruction that only writes a register
+ *     is deleted if no path reads the register before it is written again.
+ *     Every register is assumed to be read by a TRAP.</li>
+ * <li>A branch to the next instruction and any instruction that can't be
+ *     reached are deleted.</li>
+ * </ul>
+ *
+ * Branch targets (and labels used as SET values) are renumbered as
+ * instructions are deleted; a reference to a deleted instruction refers to
+ * the one after it.  A program that uses a register other than R0-R4,
+ * branches somewhere that isn't an instruction or uses a label as anything
+ * other than a branch target or a SET value is left alone, as is one that
+ * does a LOAD or SAVE at a (known) address inside its code.  The optimizer
+ * assumes that a program reads and writes its stack only with PUSH, POP
+ * and TRAP and never reads or writes its own code.
+ *
+ * @see Program
+ */
+public class PeepholeOptimizer
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** has a bit set for each general purpose register */
+    private static final int ALL_REGS = (1 << CPU.NUMGENREG) - 1;
+
+    /** the filler the assembler puts in unused arguments */
+    private static final int NO_ARG = 99999;
+
+    /** marks a deleted instruction until the program is compacted */
+    private static final int DELETED = -1;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the instructions (opcode and arguments).  While the program is being
+     * optimized branch targets are instruction numbers, not addresses.
+     */
+    private int[][] m_code = null;
+
+    /**
+     * whether each SET's value is an address (a label) rather than a number
+     */
+    private boolean[] m_isAddr = null;
+
+    /**
+     * whether each instruction starts a basic block
+     */
+    private boolean[] m_leader = null;
+
+    /**
+     * the number of instructions before and after optimizing
+     */
+    private int m_before = 0;
+    private int m_after = 0;
+
+    /**
+     * the number of words in the program before optimizing
+     */
+    private int m_codeWords = 0;
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor decodes a program for optimizing
+     *
+     * @param prog       the program's words
+     * @param size       the number of words used
+     * @param labelRefs  the words that hold the address of a label
+     * @throws IllegalArgumentException if the program can't be optimized
+     *         (see the class comment)
+     */
+    public PeepholeOptimizer(int[] prog, int size, BitSet labelRefs)
+    {
+        if (size % CPU.INSTRSIZE != 0)
+        {
+            throw new IllegalArgumentException("the program isn't a whole number of instructions");
+        }
+
+        int n = size / CPU.INSTRSIZE;
+        m_code = new int[n][];
+        m_isAddr = new boolean[n];
+        for(int i = 0; i < n; i++)
+        {
+            m_code[i] = Arrays.copyOfRange(prog, i * CPU.INSTRSIZE, (i + 1) * CPU.INSTRSIZE);
+        }
+
+        for(int i = 0; i < n; i++)
+        {
+            int[] instr = m_code[i];
+            int target = getTargetArg(instr[0]);
+            for(int arg = 1; arg < CPU.INSTRSIZE; arg++)
+            {
+                boolean isLabel = labelRefs.get(i * CPU.INSTRSIZE + arg);
+                if (arg == target)
+                {
+                    instr[arg] = toIndex(instr[arg]);
+                }
+                else if ((instr[0] == CPU.SET) && (arg == 2))
+                {
+                    if (isLabel)
+                    {
+                        instr[arg] = toIndex(instr[arg]);
+                        m_isAddr[i] = true;
+                    }
+                }
+                else if (isLabel)
+                {
+                    throw new IllegalArgumentException("instruction " + i + " uses a label as a register");
+                }
+            }
+            if (((getUses(instr) | getDefs(instr)) & ~ALL_REGS) != 0)
+            {
+                throw new IllegalArgumentException("instruction " + i + " uses a special register");
+            }
+        }
+
+        m_before = n;
+        m_after = n;
+        m_codeWords = size;
+    }//ctor
+
+    /**
+     * getInstructionsBefore
+     *
+     * @return the number of instructions before optimizing
+     */
+    public int getInstructionsBefore()
+    {
+        return m_before;
+    }
+
+    /**
+     * getInstructionsAfter
+     *
+     * @return the number of instructions after optimizing
+     */
+    public int getInstructionsAfter()
+    {
+        return m_after;
+    }
+
+    /**
+     * optimize
+     *
+     * runs the passes until the program stops changing
+     *
+     * @return the optimized program's words
+     * @throws IllegalArgumentException if the program turns out to read or
+     *         write its own code
+     */
+    public int[] optimize()
+    {
+        boolean changed = true;
+        while(changed)
+        {
+            findLeaders();
+            changed = foldConstants();
+            changed |= removeUnreachable();
+            changed |= removeDeadStores();
+            compact();
+        }
+        m_after = m_code.length;
+
+        //Turn instruction numbers back into addresses
+        int[] words = new int[m_code.length * CPU.INSTRSIZE];
+        for(int i = 0; i < m_code.length; i++)
+        {
+            int[] instr = m_code[i];
+            int target = getTargetArg(instr[0]);
+            for(int arg = 0; arg < CPU.INSTRSIZE; arg++)
+            {
+                int word = instr[arg];
+                if ((arg == target) || ((arg == 2) && m_isAddr[i]))
+                {
+                    word *= CPU.INSTRSIZE;
+                }
+                words[i * CPU.INSTRSIZE + arg] = word;
+            }
+        }
+        return words;
+    }//optimize
+
+    /**
+     * toIndex
+     *
+     * @param addr  the address of an instruction
+     * @return the instruction's number
+     * @throws IllegalArgumentException if no instruction starts there
+     */
+    private int toIndex(int addr)
+    {
+        if ((addr < 0) || (addr % CPU.INSTRSIZE != 0)
+            || (addr / CPU.INSTRSIZE >= m_code.length))
+        {
+            throw new IllegalArgumentException("address " + addr + " isn't an instruction");
+        }
+        return addr / CPU.INSTRSIZE;
+    }//toIndex
+
+    /**
+     * getTargetArg
+     *
+     * @param opcode  an opcode
+     * @return which argument of the instruction is a branch target -OR- -1
+     *         if it isn't a branch
+     */
+    private static int getTargetArg(int opcode)
+    {
+        switch(opcode)
+        {
+            case CPU.BRANCH:
+                return 1;
+            case CPU.BNE:
+            case CPU.BLT:
+                return 3;
+            default:
+                return -1;
+        }
+    }//getTargetArg
+
+    /**
+     * getUses
+     *
+     * @param instr  an instruction
+     * @return a mask of the registers that it reads
+     * @throws IllegalArgumentException if it isn't a valid instruction
+     */
+    private static int getUses(int[] instr)
+    {
+        switch(instr[0])
+        {
+            case CPU.SET:
+            case CPU.BRANCH:
+            case CPU.POP:
+                return 0;
+            case CPU.ADD:
+            case CPU.SUB:
+            case CPU.MUL:
+            case CPU.DIV:
+                return bit(instr[2]) | bit(instr[3]);
+            case CPU.COPY:
+            case CPU.LOAD:
+                return bit(instr[2]);
+            case CPU.BNE:
+            case CPU.BLT:
+            case CPU.SAVE:
+                return bit(instr[1]) | bit(instr[2]);
+            case CPU.PUSH:
+                return bit(instr[1]);
+            case CPU.TRAP:
+                return ALL_REGS;
+            default:
+                throw new IllegalArgumentException("unknown opcode " + instr[0]);
+        }
+    }//getUses
+
+    /**
+     * getDefs
+     *
+     * @param instr  an instruction
+     * @return a mask of the registers that it writes
+     */
+    private static int getDefs(int[] instr)
+    {
+        switch(instr[0])
+        {
+            case CPU.SET:
+            case CPU.ADD:
+            case CPU.SUB:
+            case CPU.MUL:
+            case CPU.DIV:
+            case CPU.COPY:
+            case CPU.POP:
+            case CPU.LOAD:
+                return bit(instr[1]);
+            default:
+                return 0;
+        }
+    }//getDefs
+
+    /**
+     * bit
+     *
+     * @param reg  a register number
+     * @return the register's bit in a mask (which is outside ALL_REGS if it
+     *         isn't a general purpose register)
+     */
+    private static int bit(int reg)
+    {
+        return ((reg >= 0) && (reg < CPU.NUMGENREG)) ? (1 << reg) : (1 << CPU.NUMGENREG);
+    }//bit
+
+    /**
+     * findLeaders
+     *
+     * marks the first instruction of each basic block: the first
+     * instruction, every branch target and every instruction after a branch
+     * or a TRAP
+     */
+    private void findLeaders()
+    {
+        m_leader = new boolean[m_code.length];
+        if (m_code.length > 0)
+        {
+            m_leader[0] = true;
+        }
+        for(int i = 0; i < m_code.length; i++)
+        {
+            int target = getTargetArg(m_code[i][0]);
+            if ((target >= 0) && (m_code[i][target] < m_code.length))
+            {
+                m_leader[m_code[i][target]] = true;
+            }
+            if (((target >= 0) || (m_code[i][0] == CPU.TRAP)) && (i + 1 < m_code.length))
+            {
+                m_leader[i + 1] = true;
+            }
+        }
+    }//findLeaders
+
+    /**
+     * foldConstants
+     *
+     * folds constants, removes stack round trips and useless branches (see
+     * the class comment) one basic block at a time
+     *
+     * @return true if the program changed
+     */
+    private boolean foldConstants()
+    {
+        boolean changed = false;
+        boolean[] known = new boolean[CPU.NUMGENREG];
+        int[] value = new int[CPU.NUMGENREG];
+        int[] version = new int[CPU.NUMGENREG];
+
+        //Each PUSH in the block whose value hasn't been popped yet, as
+        //{instruction, register, register's version, known, value}
+        ArrayDeque<int[]> pushes = new ArrayDeque<int[]>();
+
+        for(int i = 0; i < m_code.length; i++)
+        {
+            int[] instr = m_code[i];
+            if (m_leader[i])
+            {
+                Arrays.fill(known, false);
+                pushes.clear();
+            }
+
+            int dest = instr[1];
+            switch(instr[0])
+            {
+                case CPU.SET:
+                    known[dest] = !m_isAddr[i];
+                    value[dest] = instr[2];
+                    version[dest]++;
+                    break;
+
+                case CPU.ADD:
+                case CPU.SUB:
+                case CPU.MUL:
+                case CPU.DIV:
+                    if (known[instr[2]] && known[instr[3]]
+                        && ((instr[0] != CPU.DIV) || (value[instr[3]] != 0)))
+                    {
+                        setConstant(i, dest, compute(instr[0], value[instr[2]], value[instr[3]]));
+                        changed = true;
+                    }
+                    known[dest] = (m_code[i][0] == CPU.SET);
+                    value[dest] = m_code[i][2];
+                    version[dest]++;
+                    break;
+
+                case CPU.COPY:
+                    if (dest == instr[2])
+                    {
+                        instr[0] = DELETED;
+                        changed = true;
+                        break;
+                    }
+                    if (known[instr[2]])
+                    {
+                        setConstant(i, dest, value[instr[2]]);
+                        changed = true;
+                    }
+                    known[dest] = known[instr[2]];
+                    value[dest] = value[instr[2]];
+                    version[dest]++;
+                    break;
+
+                case CPU.BRANCH:
+                    if (instr[1] == i + 1)
+                    {
+                        instr[0] = DELETED;
+                        changed = true;
+                    }
+                    break;
+
+                case CPU.BNE:
+                case CPU.BLT:
+                    //Decide the branch if possible (it is never taken if both
+                    //registers are the same)
+                    int a = instr[1];
+                    int b = instr[2];
+                    if ((a == b) || (instr[3] == i + 1))
+                    {
+                        instr[0] = DELETED;
+                        changed = true;
+                    }
+                    else if (known[a] && known[b])
+                    {
+                        boolean taken = (instr[0] == CPU.BNE) ? (value[a] != value[b])
+                                                             : (value[a] < value[b]);
+                        if (taken)
+                        {
+                            m_code[i] = new int[] { CPU.BRANCH, instr[3], NO_ARG, NO_ARG };
+                        }
+                        else
+                        {
+                            instr[0] = DELETED;
+                        }
+                        changed = true;
+                    }
+                    break;
+
+                case CPU.PUSH:
+                    pushes.push(new int[] { i, dest, version[dest],
+                                            known[dest] ? 1 : 0, value[dest] });
+                    break;
+
+                case CPU.POP:
+                    int[] pushed = pushes.poll();
+                    known[dest] = false;
+                    if (pushed != null)
+                    {
+                        int src = pushed[1];
+                        if (pushed[3] != 0)
+                        {
+                            setConstant(i, dest, pushed[4]);
+                            known[dest] = true;
+                            value[dest] = pushed[4];
+                        }
+                        else if (version[src] == pushed[2])
+                        {
+                            m_code[i] = new int[] { CPU.COPY, dest, src, NO_ARG };
+                            known[dest] = known[src];
+                            value[dest] = value[src];
+                        }
+                        else
+                        {
+                            //The register changed so the round trip is needed
+                            version[dest]++;
+                            break;
+                        }
+                        m_code[pushed[0]][0] = DELETED;
+                        changed = true;
+                    }
+                    version[dest]++;
+                    break;
+
+                case CPU.LOAD:
+                case CPU.SAVE:
+                    int addr = instr[2];
+                    if (known[addr] && (value[addr] >= 0) && (value[addr] < m_codeWords))
+                    {
+                        throw new IllegalArgumentException("instruction " + i + " accesses address "
+                                                           + value[addr] + " in the code");
+                    }
+                    if (instr[0] == CPU.LOAD)
+                    {
+                        known[dest] = false;
+                        version[dest]++;
+                    }
+                    break;
+
+                case CPU.TRAP:
+                    //The system call takes its arguments off the stack
+                    pushes.clear();
+                    break;
+
+                default:
+                    break;
+            }//switch
+        }//for
+
+        return changed;
+    }//foldConstants
+
+    /**
+     * setConstant
+     *
+     * replaces an instruction with one that sets a register to a constant
+     */
+    private void setConstant(int i, int reg, int val)
+    {
+        m_code[i] = new int[] { CPU.SET, reg, val, NO_ARG };
+        m_isAddr[i] = false;
+    }//setConstant
+
+    /**
+     * compute
+     *
+     * @return the result of an arithmetic instruction (the same way the CPU
+     *         computes it)
+     */
+    private static int compute(int opcode, int a, int b)
+    {
+        switch(opcode)
+        {
+            case CPU.ADD:
+                return a + b;
+            case CPU.SUB:
+                return a - b;
+            case CPU.MUL:
+                return a * b;
+            default:
+                return a / b;
+        }
+    }//compute
+
+    /**
+     * removeUnreachable
+     *
+     * deletes the instructions that no path from the first one reaches
+     * (e.g., after a BNE that is always taken became a BRANCH)
+     *
+     * @return true if the program changed
+     */
+    private boolean removeUnreachable()
+    {
+        int n = m_code.length;
+        boolean[] reached = new boolean[n + 1];
+        ArrayDeque<Integer> todo = new ArrayDeque<Integer>();
+        todo.push(0);
+        while(!todo.isEmpty())
+        {
+            int i = todo.pop();
+            if (reached[i])
+            {
+                continue;
+            }
+            reached[i] = true;
+            if (i == n)
+            {
+                continue;
+            }
+
+            int[] instr = m_code[i];
+            int target = getTargetArg(instr[0]);
+            if (target >= 0)
+            {
+                todo.push(instr[target]);
+            }
+            if (instr[0] != CPU.BRANCH)
+            {
+                todo.push(i + 1);
+            }
+        }//while
+
+        boolean removed = false;
+        for(int i = 0; i < n; i++)
+        {
+            if (!reached[i] && (m_code[i][0] != DELETED))
+            {
+                m_code[i][0] = DELETED;
+                removed = true;
+            }
+        }
+        return removed;
+    }//removeUnreachable
+
+    /**
+     * removeDeadStores
+     *
+     * deletes each instruction that only writes a register that is written
+     * again before anything reads it.  Liveness is computed over the whole
+     * program; every register is live at the end of it.
+     *
+     * @return true if the program changed
+     */
+    private boolean removeDeadStores()
+    {
+        int n = m_code.length;
+        int[] liveIn = new int[n + 1];
+        int[] liveOut = new int[n];
+        liveIn[n] = ALL_REGS;
+
+        boolean changed = true;
+        while(changed)
+        {
+            changed = false;
+            for(int i = n - 1; i >= 0; i--)
+            {
+                int[] instr = m_code[i];
+                if (instr[0] == DELETED)
+                {
+                    liveOut[i] = liveIn[i + 1];
+                    liveIn[i] = liveOut[i];
+                    continue;
+                }
+                int target = getTargetArg(instr[0]);
+                int out = (instr[0] == CPU.BRANCH) ? 0 : liveIn[i + 1];
+                if (target >= 0)
+                {
+                    out |= liveIn[instr[target]];
+                }
+                int in = getUses(instr) | (out & ~getDefs(instr));
+                if ((in != liveIn[i]) || (out != liveOut[i]))
+                {
+                    liveIn[i] = in;
+                    liveOut[i] = out;
+                    changed = true;
+                }
+            }
+        }//while
+
+        //DIVs that are left may divide by zero so they aren't removed
+        boolean removed = false;
+        for(int i = 0; i < n; i++)
+        {
+            switch(m_code[i][0])
+            {
+                case CPU.SET:
+                case CPU.ADD:
+                case CPU.SUB:
+                case CPU.MUL:
+                case CPU.COPY:
+                    if ((liveOut[i] & getDefs(m_code[i])) == 0)
+                    {
+                        m_code[i][0] = DELETED;
+                        removed = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return removed;
+    }//removeDeadStores
+
+    /**
+     * compact
+     *
+     * removes the deleted instructions and renumbers the references to the
+     * rest
+     */
+    private void compact()
+    {
+        int n = m_code.length;
+        int[] newIndex = new int[n + 1];
+        int kept = 0;
+        for(int i = 0; i < n; i++)
+        {
+            newIndex[i] = kept;
+            if (m_code[i][0] != DELETED)
+            {
+                kept++;
+            }
+        }
+        newIndex[n] = kept;
+        if (kept == n)
+        {
+            return;
+        }
+
+        int[][] code = new int[kept][];
+        boolean[] isAddr = new boolean[kept];
+        for(int i = 0; i < n; i++)
+        {
+            int[] instr = m_code[i];
+            if (instr[0] == DELETED)
+            {
+                continue;
+            }
+            int target = getTargetArg(instr[0]);
+            if (target >= 0)
+            {
+                instr[target] = newIndex[instr[target]];
+            }
+            if (m_isAddr[i])
+            {
+                instr[2] = newIndex[instr[2]];
+            }
+            code[newIndex[i]] = instr;
+            isAddr[newIndex[i]] = m_isAddr[i];
+        }
+        m_code = code;
+        m_isAddr = isAddr;
+    }//compact
+
+};//class PeepholeOptimizer
@@ -1,7 +1,11 @@
 package sos;
 
 import java.util.*;
+import java.util.zip.CRC32;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 
 /**
  * This class stores a program in the pidgin assembly language used by the
@@ -9,6 +13,13 @@ import java.io.*;
  * containing the code into an array of integers that can be used by
  * the CPU.
  *
+ * A program that has been assembled can be saved in (and loaded from) an
+ * object file.  Its header is OBJ_HEADER_SIZE words: OBJ_MAGIC,
+ * OBJ_VERSION, the number of words in the program, the default alloc size,
+ * the number of instructions before the program was optimized (0 if it
+ * wasn't) and a CRC-32 of the program's words.  The program's words follow.
+ * Every word is a big-endian int.
+ *
  * @see CPU
  * @see SOS
  *
@@ -16,31 +27,45 @@ import java.io.*;
 public class Program
 {
     /**
-     * This class contains the name and location of a label found in the pidgin
-     * assembly code.
+     * These constants describe the object file format
      */
-    private class Label
-    {
-        int addr;               // the address of the label
-        String name;            // the name of the label
-    };
-    
+    public static final String OBJ_EXTENSION = ".sobj";
+    public static final int OBJ_MAGIC = 0x534F424A;   // "SOBJ"
+    public static final int OBJ_VERSION = 2;
+    public static final int OBJ_HEADER_SIZE = 6;
+
+    /**
+     * the words of the program as it is parsed.  Only the first m_size words
+     * are used; the array is replaced by a bigger one when it fills up.
+     **/
+    private int[] m_prog = null;
+    private int m_size = 0;
+
     /**
-     * a Vector of Integer used to store the program as it is parsed
+     * the program as it is loaded into RAM.  This is created when
+     * {@link #load} succeeds and never changes afterwards, so every process
+     * running this program can be loaded from it without copying m_prog
+     * again.
      **/
-    private Vector<Integer> m_prog = null;
+    private int[] m_image = null;
 
     /**
-     * an Vector of Label used to store all the labels found in the code
+     * maps the name of each label found in the code to its address
      **/
-    private Vector<Label> m_labels = null;
+    private HashMap<String, Integer> m_labels = null;
 
     /**
-     * an Vector of Label used to store all the forward references to
-     * as-yet-unparsed labels in the code.  These are resolved after the entire
-     * program has been parsed.
+     * maps the name of each label that has been referenced but not yet
+     * defined to the addresses of the words that refer to it.  Those words
+     * are backpatched when the label is defined.
      **/
-    private Vector<Label> m_orphans = null;
+    private HashMap<String, ArrayList<Integer>> m_orphans = null;
+
+    /**
+     * the words that hold the address of a label (so that the optimizer can
+     * move the label)
+     **/
+    private BitSet m_labelRefs = null;
 
     /**
      * identifies which line of a file is currently being parsed (handy for
@@ -59,6 +84,24 @@ public class Program
      **/
     private boolean m_verbose = false;
 
+    /**
+     * whether the image was read from an object file instead of being
+     * parsed
+     **/
+    private boolean m_fromObject = false;
+
+    /**
+     * whether the program is run through the {@link PeepholeOptimizer}
+     * after it is parsed
+     **/
+    private boolean m_optimize = false;
+
+    /**
+     * the number of instructions before the program was optimized (0 if it
+     * wasn't)
+     **/
+    private int m_unoptimizedInstrs = 0;
+
     /**
      * when this program is being used by the simulation, this variable tracks
      * how many times it has been used to create a process
@@ -72,9 +115,10 @@ public class Program
      */
     public Program()
     {
-        m_prog = new Vector<Integer>();
-        m_labels = new Vector<Label>();
-        m_orphans = new Vector<Label>();
+        m_prog = new int[256];
+        m_labels = new HashMap<String, Integer>();
+        m_orphans = new HashMap<String, ArrayList<Integer>>();
+        m_labelRefs = new BitSet();
     }
 
     /**
@@ -95,7 +139,7 @@ public class Program
      */
     public int getSize()
     {
-        return m_prog.size();
+        return (m_image != null) ? m_image.length : m_size;
     }
 
     /**
@@ -107,6 +151,49 @@ public class Program
     {
         return m_defaultAllocSize;
     }//getDefaultAllocSize
+
+    /**
+     * isFromObject
+     *
+     * @return true if the program was read from an object file rather than
+     *         parsed from its assembly
+     */
+    public boolean isFromObject()
+    {
+        return m_fromObject;
+    }//isFromObject
+
+    /**
+     * setOptimize
+     *
+     * chooses whether the program is optimized after it is parsed (see
+     * {@link PeepholeOptimizer}).  This must be called before {@link #load}.
+     */
+    public void setOptimize(boolean optimize)
+    {
+        m_optimize = optimize;
+    }//setOptimize
+
+    /**
+     * getInstructionCount
+     *
+     * @return the number of instructions in the program
+     */
+    public int getInstructionCount()
+    {
+        return getSize() / CPU.INSTRSIZE;
+    }//getInstructionCount
+
+    /**
+     * getUnoptimizedInstructionCount
+     *
+     * @return the number of instructions the program had before it was
+     *         optimized -OR- 0 if it wasn't optimized
+     */
+    public int getUnoptimizedInstructionCount()
+    {
+        return m_unoptimizedInstrs;
+    }//getUnoptimizedInstructionCount
     
     /**
      * skipWhite
@@ -167,23 +254,36 @@ public class Program
      */
     private String getToken(String line, int i)
     {
-        String result = "";     // the return value of this function
-        if (line.length() <= i) return result;
-        while((line.charAt(i) != ' ') && (line.charAt(i) != '\t'))
+        int start = i;          // where the token begins
+        while((i < line.length()) && (line.charAt(i) != ' ') && (line.charAt(i) != '\t'))
         {
-            result += line.charAt(i);
             i++;
-            if (line.length() <= i) return result;
         }
 
-        return result;
+        return (start < i) ? line.substring(start, i) : "";
     }//getToken
 
+    /**
+     * emit
+     *
+     * appends a word to the program
+     *
+     * @param word  the word
+     */
+    private void emit(int word)
+    {
+        if (m_size == m_prog.length)
+        {
+            m_prog = Arrays.copyOf(m_prog, m_size * 2);
+        }
+        m_prog[m_size++] = word;
+    }//emit
+
     /**
      * parseLabel
      *
-     * parses a single label definition found in the code and places it in the
-     * m_labels list
+     * parses a single label definition found in the code, places it in
+     * m_labels and backpatches any earlier references to it
      * 
      * @param line the entire line of text containing the instruction
      * @param i    the position in the line where the instruction begins.  This
@@ -196,14 +296,22 @@ public class Program
      */
     private int parseLabel(String line, int i)
     {
-        Label l = new Label();  // the parsed label is placed in here
-        
         i++;                    // skip the ':'
-        l.name = getToken(line, i);
-        l.addr = m_prog.size();
-        m_labels.add(l);
+        String name = getToken(line, i);
+        int addr = m_size;
+        m_labels.put(name, addr);
+
+        //Resolve the forward references to this label
+        ArrayList<Integer> refs = m_orphans.remove(name);
+        if (refs != null)
+        {
+            for(int ref : refs)
+            {
+                m_prog[ref] = addr;
+            }
+        }
 
-        if (m_verbose) System.out.print("parsed label '" + l.name + "' at address " + l.addr);
+        if (m_verbose) System.out.print("parsed label '" + name + "' at address " + addr);
 
         return 0;
     }//parseLabel
@@ -339,38 +447,33 @@ public class Program
         //part of "BRANCH foobar")
         else
         {
-            //Search the m_labels list to see if this label reference refers to
-            //a label that's already been parsed.  If so, insert the
-            //corresponding offset into the code
-            boolean bFound = false; // set to true if found
-            for(Label l : m_labels)
-            {
-                if (arg.equals(l.name))
-                {
-                    intArg = new Integer(l.addr);
-                    bFound = true;
-                }
-            }//for
+            //If this label reference refers to a label that's already been
+            //parsed then insert the corresponding offset into the code
+            intArg = m_labels.get(arg);
+            m_labelRefs.set(m_size);
 
-            //If the label does not already exist, record an orphan label
-            //reference storing it's location offset in the addr field
-            if (!bFound)
+            //Otherwise record where the reference is so that it can be
+            //backpatched when the label is defined
+            if (intArg == null)
             {
                 //This is probably a forward reference to an as-yet-unparsed label
-                Label o = new Label();
-                o.name = arg;
-                o.addr = m_prog.size();
-                m_orphans.add(o);
+                ArrayList<Integer> refs = m_orphans.get(arg);
+                if (refs == null)
+                {
+                    refs = new ArrayList<Integer>();
+                    m_orphans.put(arg, refs);
+                }
+                refs.add(m_size);
                 if (m_verbose)
                 {
-                    System.out.println("  label '" + o.name + "' will be resolved post-parse.");
+                    System.out.println("  label '" + arg + "' will be resolved when it is defined.");
                 }
                 
                 intArg = new Integer(42424); //put in a flag for now
             }
         }//else
 
-        m_prog.add(intArg);
+        emit(intArg);
         if ( (m_verbose) && (arg.length() > 0) )
         {
             System.out.print("\t" + arg + "=" + intArg.intValue());
@@ -416,7 +519,7 @@ public class Program
         if (m_verbose) System.out.print("" + instr + "=" + intInstr);
 
         //Add the code to the program
-        m_prog.add(intInstr);
+        emit(intInstr);
 
         //Read the arguments of the instruction.  Fill in zero values so that
         //all instructions are exactly CPU.INSTRSIZE ints
@@ -485,59 +588,83 @@ public class Program
     }//parse
 
     /**
-     * fixOrphans
+     * checkOrphans
      *
-     * is called once the entire program has been parsed.  It resolves all
-     * forward references to labels.
+     * is called once the entire program has been parsed.  Every forward
+     * reference to a label has been backpatched by then unless the label was
+     * never defined.
      * 
      * @return a success/error code (0 is success; anything else is failure)
      */
-    private int fixOrphans()
+    private int checkOrphans()
     {
-        //For each orphaned label reference...
-        for(Label o : m_orphans)
+        for(String name : m_orphans.keySet())
         {
-            boolean bFound = false; // was this orphan's label found?
-            if (m_verbose)
-            {
-                System.out.print("Searching for orphan label: " + o.name + " among: ");
-            }
+            System.out.println("\nERROR: label " + name + " was referenced but never defined.");
+            return -1;
+        }
 
-            //...find the corresponding label
-            for(Label l : m_labels)
-            {
-                if (m_verbose)
-                {
-                    System.out.print(l.name + " ");
-                }
-                
-                if (o.name.equals(l.name))
-                {
-                    Integer intAddr = new Integer(l.addr);
-                    m_prog.set(o.addr, intAddr);
-                    bFound = true;
-                }
+        return 0;
+    }//checkOrphans
 
-            }//for
+    /**
+     * load
+     *
+     * loads a program from a pidgin assembly file or, if its name ends with
+     * OBJ_EXTENSION, an object file.  The assembly is only parsed if there
+     * isn't an object file next to it (with the same name but the extension
+     * changed to OBJ_EXTENSION) that is at least as new and was optimized
+     * only if this program is to be (see {@link #setOptimize}).  Otherwise
+     * the object file is loaded instead, and after a successful parse it is
+     * written (or rewritten) so that the next load can skip parsing.
+     *
+     * @param fileName the filename of the file containing the code
+     * @param verbose  if set 'true' this will print detailed output as it
+     *                 parses (the assembly is always parsed)
+     * @return         0 is success; anything else is a failure code
+     * @throws IllegalStateException if a program has already been loaded
+     * @see #parseFile
+     * 
+     */
+    public int load(String fileName, boolean verbose)
+    {
+        if (m_image != null)
+        {
+            throw new IllegalStateException("a program has already been loaded");
+        }
+        if (fileName.endsWith(OBJ_EXTENSION))
+        {
+            return loadObject(fileName);
+        }
 
-            if (m_verbose)
+        //Use the object file if it is up to date
+        File src = new File(fileName);
+        File obj = new File(getObjectFileName(fileName));
+        if (!verbose && obj.exists() && (obj.lastModified() >= src.lastModified())
+            && (readObject(obj, true) == 0))
+        {
+            return 0;
+        }
+
+        int retVal = parseFile(fileName, verbose);
+        if (retVal == 0)
+        {
+            try
             {
-                System.out.println();
+                saveObject(obj.getPath());
             }
-
-            //If the label wasn't found then report an error
-            if (!bFound)
+            catch(IOException e)
             {
-                System.out.println("\nERROR: label " + o.name + " was referenced but never defined.");
-                return -1;
+                //The object file only saves time so the program is still
+                //loaded.  (The directory may be read only, for example.)
+                if (m_verbose) System.out.println("\nCould not write " + obj + ": " + e);
             }
-        }//for
-
-        return 0;
-    }//fixOrphans
+        }
+        return retVal;
+    }//load
 
     /**
-     * load
+     * parseFile
      *
      * opens a given file and sends the pidgin assembly program found within to
      * the parse routines.
@@ -549,7 +676,7 @@ public class Program
      * @see #parseLine
      * 
      */
-    public int load(String fileName, boolean verbose)
+    private int parseFile(String fileName, boolean verbose)
     {
         int retVal = 0;         // return value (success is default)
         m_verbose = verbose;    // init verbose mode
@@ -613,36 +740,255 @@ public class Program
         }
 
         //Step 4:  Check for empty file
-        if (m_prog.size() == 0)
+        if (m_size == 0)
         {
             System.out.println("\nERROR: empty program file: " + fileName);
             return -4;
         }
 
-        //Step 5:  Fix orphan label references
-        if (fixOrphans() != 0)
+        //Step 5:  Check for undefined labels
+        if (checkOrphans() != 0)
         {
             return -5;
         }
 
         //Step 6:  Add an exit system call to the end of the program
-        m_prog.add(new Integer(CPU.SET));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(CPU.PUSH));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(CPU.TRAP));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(0));
-        m_prog.add(new Integer(0));
+        emit(CPU.SET);
+        emit(0);
+        emit(0);
+        emit(0);
+        emit(CPU.PUSH);
+        emit(0);
+        emit(0);
+        emit(0);
+        emit(CPU.TRAP);
+        emit(0);
+        emit(0);
+        emit(0);
 
+        //Step 7:  Optimize the program if requested (and it parsed)
+        if ((retVal >= 0) && m_optimize)
+        {
+            optimize();
+        }
+
+        //Step 8:  Freeze the program into its image
+        if (retVal >= 0)
+        {
+            freeze(export());
+        }
 
         return retVal;
         
-    }//load
+    }//parseFile
+
+    /**
+     * optimize
+     *
+     * runs the parsed program through the {@link PeepholeOptimizer}.  A
+     * program that the optimizer can't handle is left as it is (but still
+     * counts as optimized so that its object file is used).
+     */
+    private void optimize()
+    {
+        try
+        {
+            PeepholeOptimizer opt = new PeepholeOptimizer(m_prog, m_size, m_labelRefs);
+            m_prog = opt.optimize();
+            m_size = m_prog.length;
+            m_unoptimizedInstrs = opt.getInstructionsBefore();
+            if (m_verbose)
+            {
+                System.out.print("\nOptimized: " + opt.getInstructionsBefore()
+                                 + " instructions before, " + opt.getInstructionsAfter()
+                                 + " after");
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            m_unoptimizedInstrs = m_size / CPU.INSTRSIZE;
+            if (m_verbose) System.out.print("\nNot optimized: " + e.getMessage());
+        }
+    }//optimize
+
+    /**
+     * freeze
+     *
+     * makes a given image this program's (immutable) image and discards the
+     * parser's state
+     *
+     * @param image  the program's words
+     */
+    private void freeze(int[] image)
+    {
+        m_image = image;
+        m_prog = null;
+        m_labels = null;
+        m_orphans = null;
+        m_labelRefs = null;
+    }//freeze
+
+    /**
+     * getObjectFileName
+     *
+     * @param fileName  the name of a pidgin assembly file
+     * @return the name of the object file that caches it (its extension, if
+     *         any, is replaced with OBJ_EXTENSION)
+     */
+    public static String getObjectFileName(String fileName)
+    {
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= fileName.lastIndexOf(File.separatorChar))
+        {
+            dot = fileName.length();
+        }
+        return fileName.substring(0, dot) + OBJ_EXTENSION;
+    }//getObjectFileName
+
+    /**
+     * loadObject
+     *
+     * loads a program from an object file (see {@link #saveObject}).  The
+     * file is memory-mapped and its words are copied straight into the
+     * program's image.
+     *
+     * @param fileName the filename of the object file
+     * @return         0 is success; anything else is a failure code
+     * @throws IllegalStateException if a program has already been loaded
+     */
+    public int loadObject(String fileName)
+    {
+        if (m_image != null)
+        {
+            throw new IllegalStateException("a program has already been loaded");
+        }
+
+        int retVal = readObject(new File(fileName), false);
+        if (retVal == -1)
+        {
+            System.out.println("\nError reading from file: " + fileName);
+        }
+        else if (retVal != 0)
+        {
+            System.out.println("\nERROR: " + fileName + " is not a valid object file");
+        }
+        return retVal;
+    }//loadObject
+
+    /**
+     * readObject
+     *
+     * does the work of {@link #loadObject} without reporting errors
+     *
+     * @param file           the object file
+     * @param checkOptimized if set 'true' an object file that was optimized
+     *                       when this program isn't to be (or vice versa) is
+     *                       not used
+     * @return      0 is success, -1 means the file couldn't be read, -7
+     *              means it isn't a valid object file and -8 means it wasn't
+     *              optimized the right way
+     */
+    private int readObject(File file, boolean checkOptimized)
+    {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long length = channel.size();
+            if ((length < OBJ_HEADER_SIZE * 4) || (length % 4 != 0)
+                || (length > Integer.MAX_VALUE))
+            {
+                return -7;
+            }
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            IntBuffer words = buf.asIntBuffer();
+            int size = words.get(2);
+            if ((words.get(0) != OBJ_MAGIC) || (words.get(1) != OBJ_VERSION)
+                || (size <= 0) || (size != words.limit() - OBJ_HEADER_SIZE))
+            {
+                return -7;
+            }
+
+            //Check the words before trusting them
+            buf.position(OBJ_HEADER_SIZE * 4);
+            CRC32 crc = new CRC32();
+            crc.update(buf);
+            if ((int)crc.getValue() != words.get(5))
+            {
+                return -7;
+            }
+            if (checkOptimized && ((words.get(4) != 0) != m_optimize))
+            {
+                return -8;
+            }
+
+            int image[] = new int[size];
+            words.position(OBJ_HEADER_SIZE);
+            words.get(image);
+
+            m_defaultAllocSize = words.get(3);
+            m_unoptimizedInstrs = words.get(4);
+            freeze(image);
+            m_fromObject = true;
+            return 0;
+        }
+        catch(IOException e)
+        {
+            return -1;
+        }
+    }//readObject
+
+    /**
+     * saveObject
+     *
+     * writes this program to an object file.  The file is written under a
+     * temporary name and then renamed so that a program loading it at the
+     * same time never sees part of it.
+     *
+     * @param fileName the filename of the object file
+     * @throws IOException if the file can't be written
+     * @throws IllegalStateException if no program has been loaded
+     */
+    public void saveObject(String fileName) throws IOException
+    {
+        if (m_image == null)
+        {
+            throw new IllegalStateException("no program has been loaded");
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((OBJ_HEADER_SIZE + m_image.length) * 4);
+        buf.position(OBJ_HEADER_SIZE * 4);
+        buf.asIntBuffer().put(m_image);
+        CRC32 crc = new CRC32();
+        crc.update(buf);
+
+        buf.clear();
+        buf.putInt(OBJ_MAGIC);
+        buf.putInt(OBJ_VERSION);
+        buf.putInt(m_image.length);
+        buf.putInt(m_defaultAllocSize);
+        buf.putInt(m_unoptimizedInstrs);
+        buf.putInt((int)crc.getValue());
+        buf.rewind();
+
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try
+        {
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+            {
+                while(buf.hasRemaining())
+                {
+                    channel.write(buf);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }//saveObject
  
 
     /**
@@ -655,9 +1001,8 @@ public class Program
     public void print()
     {
         int i = 0;              // counter variable
-        for(Integer intNum : m_prog)
+        for(int num : export())
         {
-            int num = intNum.intValue(); // extract int from Integer
             System.out.print("\t" + num);
             if ( (i > 0) && ((i+1) % CPU.INSTRSIZE == 0) )
             {
@@ -671,24 +1016,30 @@ public class Program
     /**
      * export
      *
-     * converts the current program from an Vector of Integer to int[] that
-     * can be loaded into RAM
+     * copies the current program to an int[] that can be loaded into RAM
      *
-     * @return the converted program
+     * @return a copy of the program (or null if it is empty)
      * @see RAM
      */
     public int[] export()
     {
-        if (m_prog.size() == 0) return null;
+        if (m_image != null) return m_image.clone();
+        if (m_size == 0) return null;
         
-        int result[] = new int[m_prog.size()]; // the return value
-        int i = 0;                             // counter/index
-        for(Integer intTmp : m_prog)
-        {
-            result[i] = intTmp.intValue();
-            i++;
-        }
-
-        return result;
+        return Arrays.copyOf(m_prog, m_size);
     }//export
+
+    /**
+     * getImage
+     *
+     * is {@link #export} without the copy.  The OS uses this to load the
+     * program each time it is run.
+     *
+     * @return the loaded program (which the caller must not modify) -OR-
+     *         null if no program has been loaded
+     */
+    int[] getImage()
+    {
+        return m_image;
+    }//getImage
 };//class Program
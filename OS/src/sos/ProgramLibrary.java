@@ -0,0 +1,339 @@
+package sos;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class loads a suite of programs at once.  Each program is assembled
+ * (or read from its object file, see {@link Program#load}) by its own task
+ * on a fork-join pool so a suite of hundreds of programs loads in about
+ * the time it takes to assemble the biggest ones on each core.  The time
+ * spent loading each file is kept so that slow files can be found.
+ *
+ * Programs are looked up by file name without the directory (e.g.,
+ * "thinker.asm").
+ *
+ * @see Program
+ */
+public class ProgramLibrary
+{
+    /*======================================================================
+     * Inner Classes
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Entry
+     *
+     * is the result of loading one file
+     */
+    private static class Entry
+    {
+        public final String path;       // the file that was loaded
+        public Program prog = null;     // the program (even if it failed)
+        public int result = 0;          // the return value of Program.load
+        public long nanos = 0;          // how long the load took
+
+        public Entry(String path)
+        {
+            this.path = path;
+        }
+    };//class Entry
+
+    /**
+     * LoadTask
+     *
+     * loads a range of entries by splitting it in half until each task has
+     * a single file
+     */
+    private static class LoadTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry[] m_entries;
+        private final int m_from;
+        private final int m_to;
+        private final boolean m_optimize;
+
+        public LoadTask(Entry[] entries, int from, int to, boolean optimize)
+        {
+            m_entries = entries;
+            m_from = from;
+            m_to = to;
+            m_optimize = optimize;
+        }
+
+        protected void compute()
+        {
+            if (m_to - m_from > 1)
+            {
+                int mid = (m_from + m_to) >>> 1;
+                invokeAll(new LoadTask(m_entries, m_from, mid, m_optimize),
+                          new LoadTask(m_entries, mid, m_to, m_optimize));
+                return;
+            }
+
+            Entry e = m_entries[m_from];
+            long start = System.nanoTime();
+            e.prog = new Program();
+            e.prog.setOptimize(m_optimize);
+            e.result = e.prog.load(e.path, false);
+            e.nanos = System.nanoTime() - start;
+        }
+    };//class LoadTask
+
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the extension of the files that {@link #loadDirectory} loads */
+    public static final String ASM_EXTENSION = ".asm";
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the pool that the files are loaded on
+     */
+    private ForkJoinPool m_pool = null;
+
+    /**
+     * every file loaded so far (keyed by name without the directory) in the
+     * order they were given
+     */
+    private LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * whether the programs are optimized (see {@link Program#setOptimize})
+     */
+    private boolean m_optimize = false;
+
+    /**
+     * statistics
+     */
+    private long m_wallNanos = 0;
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates an empty library that loads on the common
+     * pool
+     */
+    public ProgramLibrary()
+    {
+        this(ForkJoinPool.commonPool());
+    }//ctor
+
+    /**
+     * the constructor creates an empty library that loads on a given pool
+     *
+     * @param pool  the pool to load on
+     */
+    public ProgramLibrary(ForkJoinPool pool)
+    {
+        m_pool = pool;
+    }//ctor
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * setOptimize
+     *
+     * chooses whether the programs loaded from now on are optimized
+     */
+    public void setOptimize(boolean optimize)
+    {
+        m_optimize = optimize;
+    }//setOptimize
+
+    /**
+     * loadDirectory
+     *
+     * loads every file in a directory whose name ends with ASM_EXTENSION
+     *
+     * @param dir  the directory
+     * @return the number of files that could not be loaded -OR- -1 if the
+     *         directory could not be read
+     */
+    public int loadDirectory(File dir)
+    {
+        String[] names = dir.list();
+        if (names == null)
+        {
+            return -1;
+        }
+        Arrays.sort(names);
+
+        ArrayList<String> paths = new ArrayList<String>();
+        for(String name : names)
+        {
+            if (name.endsWith(ASM_EXTENSION))
+            {
+                paths.add(new File(dir, name).getPath());
+            }
+        }
+        return loadAll(paths);
+    }//loadDirectory
+
+    /**
+     * loadAll
+     *
+     * loads a list of files in parallel and waits for them all.  A file
+     * with the same name as one already in the library replaces it.
+     *
+     * @param paths  the files to load
+     * @return the number of files that could not be loaded
+     */
+    public int loadAll(List<String> paths)
+    {
+        if (paths.isEmpty())
+        {
+            return 0;
+        }
+
+        Entry[] batch = new Entry[paths.size()];
+        for(int i = 0; i < batch.length; i++)
+        {
+            batch[i] = new Entry(paths.get(i));
+        }
+
+        long start = System.nanoTime();
+        m_pool.invoke(new LoadTask(batch, 0, batch.length, m_optimize));
+        m_wallNanos += System.nanoTime() - start;
+
+        int failures = 0;
+        for(Entry e : batch)
+        {
+            m_entries.put(new File(e.path).getName(), e);
+            if (e.result != 0)
+            {
+                failures++;
+            }
+        }
+        return failures;
+    }//loadAll
+
+    /**
+     * loadAll
+     *
+     * @see #loadAll(List)
+     */
+    public int loadAll(String... paths)
+    {
+        return loadAll(Arrays.asList(paths));
+    }//loadAll
+
+    /**
+     * get
+     *
+     * @param name  the name of a file (without its directory)
+     * @return the program in that file -OR- null if it wasn't loaded
+     *         successfully
+     */
+    public Program get(String name)
+    {
+        Entry e = m_entries.get(name);
+        return ((e == null) || (e.result != 0)) ? null : e.prog;
+    }//get
+
+    /**
+     * getPrograms
+     *
+     * @return every program that was loaded successfully, in the order they
+     *         were given
+     */
+    public List<Program> getPrograms()
+    {
+        ArrayList<Program> result = new ArrayList<Program>();
+        for(Entry e : m_entries.values())
+        {
+            if (e.result == 0)
+            {
+                result.add(e.prog);
+            }
+        }
+        return result;
+    }//getPrograms
+
+    /**
+     * getFailures
+     *
+     * @return the names of the files that could not be loaded
+     */
+    public List<String> getFailures()
+    {
+        ArrayList<String> result = new ArrayList<String>();
+        for(Map.Entry<String, Entry> me : m_entries.entrySet())
+        {
+            if (me.getValue().result != 0)
+            {
+                result.add(me.getKey());
+            }
+        }
+        return result;
+    }//getFailures
+
+    /**
+     * getReport
+     *
+     * @return one line per file giving how it was loaded, its size (and
+     *         its size before it was optimized) and how long it took,
+     *         followed by a total
+     */
+    public String getReport()
+    {
+        StringBuilder sb = new StringBuilder();
+        long totalNanos = 0;
+        int parsed = 0;
+        for(Map.Entry<String, Entry> me : m_entries.entrySet())
+        {
+            Entry e = me.getValue();
+            totalNanos += e.nanos;
+            String how;
+            if (e.result != 0)
+            {
+                how = "FAILED (" + e.result + ")";
+            }
+            else if (e.prog.isFromObject())
+            {
+                how = "cached";
+            }
+            else
+            {
+                how = "parsed";
+                parsed++;
+            }
+            String instrs = "" + e.prog.getInstructionCount();
+            if (e.prog.getUnoptimizedInstructionCount() > 0)
+            {
+                instrs = e.prog.getUnoptimizedInstructionCount() + "->" + instrs;
+            }
+            sb.append(String.format("%-24s %-14s %9s instrs %9.3fms%n",
+                                    me.getKey(), how, instrs, e.nanos / 1000000.0));
+        }
+        sb.append(String.format("%d files (%d parsed) in %.3fms using %d threads"
+                                + " (%.3fms of loading)",
+                                m_entries.size(), parsed, m_wallNanos / 1000000.0,
+                                m_pool.getParallelism(), totalNanos / 1000000.0));
+        return sb.toString();
+    }//getReport
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the library
+     */
+    public String toString()
+    {
+        return "Program Library: " + m_entries.size() + " files, "
+            + getFailures().size() + " failed";
+    }//toString
+
+};//class ProgramLibrary
@@ -5,6 +5,11 @@ import java.util.*;
 /**
  * This class simulates a random access memory for the CPU class.
  *
+ * The words are stored in an array.  A subclass can store them elsewhere by
+ * overriding {@link #load}, {@link #store} and their bulk versions; the
+ * latency and instruction cache bookkeeping is done here either way.
+ *
+ * @see MappedRAM
  * @see CPU
  * @see SOS
  * @see Program
@@ -21,29 +26,55 @@ public class RAM
     private int m_size = 0;
     
     /**
-     * This array contains the simulated RAM itself
+     * This array contains the simulated RAM itself (or null if a subclass
+     * stores it)
      **/
     private int m_mem[] = null;
     
     /**
-     * This describes how long it takes the simulated RAM to retrieve a given
-     * value.  
+     * This describes how long it takes the simulated RAM to retrieve or store
+     * a given value (in CPU cycles).
      **/
     private int m_latency;
+
+    /**
+     * The decoded-instruction cache in front of this RAM (or null if there
+     * isn't one)
+     **/
+    private InstructionCache m_icache = null;
+
+    /**
+     * The compiler whose code was generated from this RAM (or null if there
+     * isn't one)
+     **/
+    private BlockCompiler m_jit = null;
     
     /**
      * the constructor does nothing special
      *
      * @param size number of integers ("words") in ram
-     * @param latency the number of nanoseconds to delay for RAM latency
+     * @param latency the number of CPU cycles charged for each access (see
+     *                {@link CPU#addTicks})
      */
     public RAM(int size, int latency)
+    {
+        this(size, latency, true);
+    }//ctor
+
+    /**
+     * this constructor allows a subclass to store the words itself
+     *
+     * @param size     number of integers ("words") in ram
+     * @param latency  the number of CPU cycles charged for each access
+     * @param allocate whether to store the words in an array (which the JVM
+     *                 zeroes for us)
+     */
+    protected RAM(int size, int latency, boolean allocate)
     {
         m_size = size;
-        m_mem = new int[m_size];
-        for(int i = 0; i < m_size; i++)
+        if (allocate)
         {
-            m_mem[i] = 0;
+            m_mem = new int[m_size];
         }
         m_latency = latency;
     }//ctor
@@ -62,7 +93,7 @@ public class RAM
     /**
      * getLatency
      *
-     * @return the time in nanoseconds required to retrieve a value from RAM
+     * @return the number of CPU cycles required to access a value in RAM
      *
      */
     public int getLatency()
@@ -70,6 +101,50 @@ public class RAM
         return m_latency;
     }
 
+    /**
+     * getInstructionCache
+     *
+     * @return the decoded-instruction cache in front of this RAM or null if
+     *         there isn't one
+     */
+    public InstructionCache getInstructionCache()
+    {
+        return m_icache;
+    }
+
+    /**
+     * setInstructionCache
+     *
+     * places a decoded-instruction cache in front of this RAM.  Pass null to
+     * remove the cache.
+     */
+    public void setInstructionCache(InstructionCache icache)
+    {
+        m_icache = icache;
+    }
+
+    /**
+     * getBlockCompiler
+     *
+     * @return the compiler whose code was generated from this RAM or null if
+     *         there isn't one
+     */
+    public BlockCompiler getBlockCompiler()
+    {
+        return m_jit;
+    }
+
+    /**
+     * setBlockCompiler
+     *
+     * registers a compiler whose compiled code must be discarded when the
+     * RAM it was generated from is written
+     */
+    public void setBlockCompiler(BlockCompiler jit)
+    {
+        m_jit = jit;
+    }
+
     /**
      * fetch
      * 
@@ -80,15 +155,138 @@ public class RAM
     public int[] fetch(int pc)
     {
         int instr[] = new int[CPU.INSTRSIZE];
-        for(int i = 0; i < CPU.INSTRSIZE; i++)
-        {
-            instr[i] = m_mem[pc+i];
-        }
+        loadRange(pc, instr, 0, CPU.INSTRSIZE);
 
         return instr;
         
     }//fetch
 
+    /**
+     * fetch
+     *
+     * retrieves an entire instruction into a caller supplied buffer.  If there
+     * is an instruction cache the instruction is served from it when possible.
+     *
+     * @param addr  the physical address of the instruction
+     * @param instr receives the instruction (must hold CPU.INSTRSIZE ints)
+     *
+     * @see CPU#INSTRSIZE
+     */
+    public void fetch(int addr, int[] instr)
+    {
+        boolean cached = (m_icache != null) && m_icache.isEnabled();
+        if (cached && m_icache.lookup(addr, instr))
+        {
+            return;
+        }
+
+        //The stamp is taken before the read so that a write by another core
+        //that lands during the read keeps the stale copy out of the cache
+        long stamp = cached ? m_icache.getStamp(addr) : 0;
+        readRange(addr, instr, 0, CPU.INSTRSIZE);
+
+        if (cached)
+        {
+            m_icache.fill(addr, instr, stamp);
+        }
+    }//fetch
+
+    /**
+     * invalidateInstructions
+     *
+     * drops any cached instructions that overlap a given range of RAM
+     *
+     * @param addr  the first physical address in the range
+     * @param len   the number of words in the range
+     */
+    public void invalidateInstructions(int addr, int len)
+    {
+        if ((m_icache != null) && m_icache.isEnabled())
+        {
+            m_icache.invalidateRange(addr, len);
+        }
+        if (m_jit != null)
+        {
+            m_jit.invalidateRange(addr, len);
+        }
+    }//invalidateInstructions
+
+    /**
+     * chargeLatency
+     *
+     * charges the cost of accessing some words to the core running on the
+     * calling thread.  This takes no real time so the simulation runs just as
+     * fast with latency as without it.  (Accesses made by other threads, e.g.
+     * while the simulation is being set up, are free.)
+     *
+     * @param words  the number of words accessed
+     */
+    private void chargeLatency(int words)
+    {
+        CPU core = CPU.getCurrentCore();
+        if (core != null)
+        {
+            core.addTicks(m_latency * words);
+        }
+    }//chargeLatency
+
+    /**
+     * load
+     *
+     * retrieves a word from wherever the RAM is stored.  This is the only
+     * thing {@link #read} does besides simulating latency.
+     *
+     * @param addr  the location to retrieve from
+     * @return      the value at the given location
+     */
+    protected int load(int addr)
+    {
+        return m_mem[addr];
+    }//load
+
+    /**
+     * store
+     *
+     * saves a word wherever the RAM is stored
+     *
+     * @param addr  the address to write to
+     * @param val   the value to write
+     */
+    protected void store(int addr, int val)
+    {
+        m_mem[addr] = val;
+    }//store
+
+    /**
+     * loadRange
+     *
+     * retrieves consecutive words from wherever the RAM is stored
+     *
+     * @param addr  the first location to retrieve from
+     * @param buf   receives the values
+     * @param off   the index in buf of the first value
+     * @param len   the number of words
+     */
+    protected void loadRange(int addr, int[] buf, int off, int len)
+    {
+        System.arraycopy(m_mem, addr, buf, off, len);
+    }//loadRange
+
+    /**
+     * storeRange
+     *
+     * saves consecutive words wherever the RAM is stored
+     *
+     * @param addr  the first address to write to
+     * @param buf   contains the values
+     * @param off   the index in buf of the first value
+     * @param len   the number of words
+     */
+    protected void storeRange(int addr, int[] buf, int off, int len)
+    {
+        System.arraycopy(buf, off, m_mem, addr, len);
+    }//storeRange
+
     /**
      * read
      *
@@ -102,15 +300,10 @@ public class RAM
         //Simulate RAM latency
         if (m_latency > 0)
         {
-            try
-            {
-                Thread.sleep(0, m_latency);
-            }
-            catch(InterruptedException ie)
-            {/* do nothing*/ }
+            chargeLatency(1);
         }
         
-        return m_mem[addr];
+        return load(addr);
     }//read
 
     /**
@@ -126,15 +319,65 @@ public class RAM
         //Simulate RAM latency 
         if (m_latency > 0)
         {
-            try
-            {
-                Thread.sleep(0, m_latency);
-            }
-            catch(InterruptedException ie)
-            {/* do nothing*/ }
+            chargeLatency(1);
         }
         
-        m_mem[addr] = val;
+        store(addr, val);
+
+        //Keep the instruction cache coherent
+        if ((m_icache != null) && m_icache.isEnabled())
+        {
+            m_icache.invalidate(addr);
+        }
+        if (m_jit != null)
+        {
+            m_jit.invalidate(addr);
+        }
     }//write
 
+    /**
+     * readRange
+     *
+     * loads consecutive integers from the simulated RAM.  This is equivalent
+     * to calling {@link #read} for each of them but faster.
+     *
+     * @param addr  the first location to retrieve from
+     * @param buf   receives the values
+     * @param off   the index in buf of the first value
+     * @param len   the number of words to read
+     */
+    public void readRange(int addr, int[] buf, int off, int len)
+    {
+        if (m_latency > 0)
+        {
+            chargeLatency(len);
+        }
+
+        loadRange(addr, buf, off, len);
+    }//readRange
+
+    /**
+     * writeRange
+     *
+     * saves consecutive integers to the simulated RAM.  This is equivalent
+     * to calling {@link #write} for each of them but faster.
+     *
+     * @param addr  the first address to write to
+     * @param buf   contains the values to write
+     * @param off   the index in buf of the first value
+     * @param len   the number of words to write
+     */
+    public void writeRange(int addr, int[] buf, int off, int len)
+    {
+        if (m_latency > 0)
+        {
+            chargeLatency(len);
+        }
+
+        storeRange(addr, buf, off, len);
+
+        //Keep the instruction cache coherent
+        invalidateInstructions(addr, len);
+    }//writeRange
+
 };
@@ -1,6 +1,7 @@
 package sos;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.text.html.MinimalHTMLWriter;
 
@@ -50,6 +51,52 @@ public class SOS implements CPU.TrapHandler
 
 	/**Error to indicate an alloc block failed*/
 	public static final int ALLOC_BLOCK_FAILED = -1;
+
+	//These constants select how blocks of memory are allocated to processes
+	//(see setMemoryAllocator)
+	public static final int ALLOC_FIRST_FIT = 0;   /* first-fit free list */
+	public static final int ALLOC_BUDDY     = 1;   /* binary buddy system */
+
+	//These constants select how the next process to run is chosen (see
+	//setSchedulingPolicy)
+	public static final int SCHED_RANDOM     = 0;   /* any Ready process, at random */
+	public static final int SCHED_STARVATION = 1;   /* the least starved Ready process */
+	public static final int SCHED_MLFQ       = 2;   /* multi-level feedback queue */
+	public static final int SCHED_CFS        = 3;   /* completely fair (least virtual runtime) */
+
+	/**The time slice (in ticks) of each level of the default MLFQ, highest
+	 * priority first*/
+	private static final int[] DEFAULT_MLFQ_QUANTA = { CPU.CLOCK_FREQ, 2 * CPU.CLOCK_FREQ,
+	                                                   4 * CPU.CLOCK_FREQ, 8 * CPU.CLOCK_FREQ };
+
+	/**A Ready process that has waited this many ticks is moved to the top
+	 * level of the default MLFQ*/
+	private static final int DEFAULT_MLFQ_STARVE_LIMIT = 1000;
+
+	/**The CFS tries to run every Ready process once within this many ticks*/
+	private static final int CFS_TARGET_LATENCY = 20 * CPU.CLOCK_FREQ;
+
+	/**The shortest time slice (in ticks) the CFS will give a process*/
+	private static final int CFS_MIN_GRANULARITY = CPU.CLOCK_FREQ;
+
+	/**With per-core run queues, the queues are rebalanced at most this
+	 * often (in ticks)*/
+	private static final int LOAD_BALANCE_INTERVAL = 20 * CPU.CLOCK_FREQ;
+
+	/**The weight of a process of normal priority.  A process's virtual
+	 * runtime advances by its runtime scaled by NORMAL_WEIGHT / its weight.*/
+	private static final int NORMAL_WEIGHT = 1024;
+
+	//These constants are stored in the frame table in place of a page number
+	private static final int FRAME_FREE   = -1;   /* no page is in the frame */
+	private static final int FRAME_PINNED = -2;   /* the frame holds the page table */
+	private static final int FRAME_SHARED = -3;   /* the frame holds shared program text */
+
+	/**The program run by an idle process.  (It is never modified.)*/
+	private static final int[] IDLE_IMAGE = { 0, 0, 0, 0,   //SET r0=0
+			0, 0, 0, 0,   //SET r0=0 (repeated instruction to account for vagaries in student implementation of the CPU class)
+			10, 0, 0, 0,   //PUSH r0
+			15, 0, 0, 0 }; //TRAP
 	
 	//======================================================================
 	//Member variables
@@ -67,16 +114,46 @@ public class SOS implements CPU.TrapHandler
 	public static final boolean m_debug = false;
 
 	/**
-	 * The CPU the operating system is managing.
+	 * Every process shares the same page table so a context switch doesn't
+	 * change any mappings.  Setting this flag flushes a core's TLB on every
+	 * switch anyway (as on hardware without address space ids) so that the
+	 * cost can be compared.
+	 */
+	public static final boolean FLUSH_TLB_ON_SWITCH = false;
+
+	/**
+	 * The CPU core that is currently executing kernel code.  (Only valid
+	 * while the kernel lock is held.)
 	 **/
 	private CPU m_CPU = null;
 
+	/**
+	 * All of the CPU cores the operating system is managing.  A core's
+	 * index in this array is its id.
+	 **/
+	private CPU[] m_cores = null;
+
+	/**
+	 * The process running on each core (indexed by core id)
+	 **/
+	private ProcessControlBlock[] m_currProcesses = null;
+
+	/**
+	 * Only one core may execute kernel code at a time.  Every trap handler
+	 * holds this lock for its entire duration.
+	 **/
+	private ReentrantLock m_kernelLock = new ReentrantLock();
+
 	/**
 	 * The RAM attached to the CPU.
 	 **/
 	private RAM m_RAM = null;
 
 
+	/**
+	 * The process running on the core that is currently executing kernel
+	 * code.  Use {@link #setCurrProcess} to change it.
+	 **/
 	private ProcessControlBlock m_currProcess = null;
 
 	/**
@@ -89,6 +166,11 @@ public class SOS implements CPU.TrapHandler
 	 */
 	private Vector<Program> m_programs = new Vector<Program>();
 
+	/**
+	 * Chooses the program that an Exec system call runs
+	 */
+	private Random m_execRand = new Random();
+
 	/**
 	 * ID of next process created
 	 */
@@ -99,11 +181,178 @@ public class SOS implements CPU.TrapHandler
 	 */
 	private Vector<ProcessControlBlock> m_processes = new Vector<ProcessControlBlock>();
 
+	/**
+	 * Holds the processes that are Ready (not blocked and not running on any
+	 * core) and decides which of them runs next
+	 */
+	private Scheduler m_scheduler = new RandomScheduler();
+
+	/**
+	 * The settings m_scheduler was created from (see
+	 * {@link #setSchedulingPolicy}, {@link #useMlfqScheduler} and
+	 * {@link #setPerCoreRunQueues})
+	 */
+	private int m_schedPolicy = SCHED_RANDOM;
+	private int[] m_mlfqQuanta = DEFAULT_MLFQ_QUANTA;
+	private int m_mlfqStarveLimit = DEFAULT_MLFQ_STARVE_LIMIT;
+	private boolean m_perCoreQueues = false;
+
+	/**
+	 * The number of times a process was dispatched on a different core than
+	 * the one it last ran on
+	 */
+	private long m_migrations = 0;
+
+	/**
+	 * Starvation statistics of the user processes that have exited
+	 */
+	private int m_numExited = 0;
+	private double m_totalAvgStarve = 0;
+	private int m_maxStarve = 0;
+
+	/**
+	 * Whether a line describing each user process's runtime and scheduling
+	 * latency is printed when it exits
+	 */
+	private boolean m_processReport = false;
+
+	/**
+	 * The blocked processes, indexed by the device, operation and address
+	 * they are waiting for.  Each list is in the order the processes
+	 * blocked.
+	 */
+	private HashMap<BlockKey, LinkedList<ProcessControlBlock>> m_blocked =
+		new HashMap<BlockKey, LinkedList<ProcessControlBlock>>();
+
+	/**
+	 * The serial number of the next ProcessControlBlock created
+	 */
+	private int m_nextSerial = 0;
+
+	/**
+	 * The number of processes in m_processes that are not idle processes
+	 */
+	private int m_numUserProcesses = 0;
+
 
 	private Vector<MemBlock> m_freeList;
-	
+
+	/**
+	 * If this isn't null it allocates memory (in pages) instead of
+	 * m_freeList.  See {@link #setMemoryAllocator}.
+	 */
+	private BuddyAllocator m_buddy = null;
+
+	/**
+	 * Memory allocation statistics.  The fragmentation is sampled before
+	 * every allocation.
+	 */
+	private long m_allocs = 0;
+	private long m_allocFailures = 0;
+	private long m_compactions = 0;
+	private long m_allocNanos = 0;
+	private long m_maxAllocNanos = 0;
+	private double m_totalFragmentation = 0;
+	private double m_totalUtilization = 0;
+
+	/**
+	 * The most pages that the incremental compactor may move during one
+	 * clock interrupt (0 turns it off).  See {@link #setCompactionRate}.
+	 */
+	private int m_compactPagesPerTick = 0;
+
+	/**
+	 * Compaction statistics.  The fragmentation is also sampled at every
+	 * clock interrupt so that it is tracked between allocations.
+	 */
+	private long m_compactionMoves = 0;
+	private long m_pagesCompacted = 0;
+	private long m_fragSamples = 0;
+	private double m_totalTickFragmentation = 0;
+	private PauseHistogram m_incrementalPauses = new PauseHistogram("incremental compaction");
+	private PauseHistogram m_syncPauses = new PauseHistogram("synchronous compaction");
+
 	private MMU m_MMU;
 
+	/**
+	 * The number of words at the bottom of virtual memory (and RAM) that are
+	 * used by the page table
+	 */
+	private int m_pageTableSize = 0;
+
+	/**
+	 * The virtual page held in each frame of RAM (or FRAME_FREE or
+	 * FRAME_PINNED)
+	 */
+	private int[] m_frameTable = null;
+
+	/**
+	 * A bitmap of the frames that don't hold a page (bit i of word i/64 is
+	 * set if frame i is free)
+	 */
+	private long[] m_freeFrameBits = null;
+	private int m_numFreeFrames = 0;
+
+	/**
+	 * The word of m_freeFrameBits where the search for a free frame starts
+	 */
+	private int m_freeFrameHint = 0;
+
+	/**
+	 * The next frame the page replacement algorithm (clock) will consider
+	 */
+	private int m_clockHand = 0;
+
+	/**
+	 * The swap area that evicted pages are written to (or null if pages can't
+	 * be evicted)
+	 */
+	private SwapFile m_swap = null;
+
+	/**
+	 * Holds one page while it is copied to or from swap
+	 */
+	private int[] m_pageBuf = null;
+
+	/**
+	 * Paging statistics
+	 */
+	private long m_pageFaults = 0;
+	private long m_evictions = 0;
+
+	/**
+	 * Whether processes running the same Program share the frames that hold
+	 * its image (see {@link #mapSharedImage})
+	 */
+	private boolean m_shareText = true;
+
+	/**
+	 * The shared image of each Program that a process is running.  Each
+	 * FRAME_SHARED frame is mapped copy-on-write by m_frameRefs[frame] pages
+	 * and belongs to the SharedText in m_frameText[frame].
+	 */
+	private HashMap<Program, SharedText> m_sharedText = new HashMap<Program, SharedText>();
+	private int[] m_frameRefs = null;
+	private SharedText[] m_frameText = null;
+	private int m_numSharedFrames = 0;
+
+	/**
+	 * Sharing statistics
+	 */
+	private long m_pagesShared = 0;
+	private long m_copyOnWrites = 0;
+
+	/**
+	 * See {@link #getSystemTime}
+	 */
+	private int m_systemTime = 0;
+
+	/**
+	 * How many times {@link #stopOtherCores} has been called without a
+	 * matching {@link #resumeOtherCores}
+	 */
+	private int m_stopDepth = 0;
+
 	/*======================================================================
 	 * Constructors & Debugging
 	 *----------------------------------------------------------------------
@@ -113,14 +362,36 @@ public class SOS implements CPU.TrapHandler
 	 * The constructor does nothing special
 	 */
 	public SOS(CPU c, RAM r, MMU mmu)
+	{
+		this(new CPU[] { c }, r, mmu);
+	}//SOS ctor
+
+	/**
+	 * This constructor manages several CPU cores that share the same RAM.
+	 *
+	 * @param cores  the cores.  Each core's id must be its index in this
+	 *               array.
+	 */
+	public SOS(CPU[] cores, RAM r, MMU mmu)
 	{
 		//Init member list
-		m_CPU = c;
+		m_cores = cores;
+		m_currProcesses = new ProcessControlBlock[cores.length];
+		m_CPU = cores[0];
 		m_RAM = r;
-		m_CPU.registerTrapHandler(this);
+		m_MMU = mmu;
 
-		m_currProcess = new ProcessControlBlock(m_nextProcessID);
-		m_currProcess.save(m_CPU);
+		//Each core starts out "running" a placeholder process that will be
+		//replaced the first time the core is scheduled
+		for(int i = 0; i < cores.length; i++)
+		{
+			m_CPU = cores[i];
+			m_CPU.registerTrapHandler(this);
+			setCurrProcess(new ProcessControlBlock(m_nextProcessID));
+			m_currProcess.save(m_CPU);
+		}
+		m_CPU = cores[0];
+		m_currProcess = m_currProcesses[0];
 		//		++m_nextProcessID;
 
 		m_devices = new Vector<DeviceInfo>();
@@ -130,8 +401,6 @@ public class SOS implements CPU.TrapHandler
 		MemBlock mb = new MemBlock(0, r.getSize());
 		m_freeList.add(mb);
 		
-		m_MMU = mmu;
-		
 		initPageTable();
 		
 	}//SOS ctor
@@ -158,6 +427,171 @@ public class SOS implements CPU.TrapHandler
 		}
 	}
 
+	/*======================================================================
+	 * Multiprocessor Support
+	 *----------------------------------------------------------------------
+	 */
+
+	/**
+	 * enterKernel
+	 *
+	 * acquires the kernel lock on behalf of the calling core and makes that
+	 * core (and the process running on it) current.  While a core waits for
+	 * the lock it is marked as being at a safepoint so that the lock holder
+	 * can still pause it (see {@link #stopOtherCores}).
+	 */
+	private void enterKernel()
+	{
+		CPU core = CPU.getCurrentCore();
+		if (core == null)
+		{
+			//Called from outside the simulation (e.g., while loading the
+			//first program) so act on behalf of the first core
+			core = m_cores[0];
+		}
+
+		if (m_kernelLock.isHeldByCurrentThread())
+		{
+			m_kernelLock.lock();
+		}
+		else
+		{
+			core.setAtSafepoint(true);
+			m_kernelLock.lock();
+			core.setAtSafepoint(false);
+		}
+
+		m_CPU = core;
+		m_currProcess = m_currProcesses[core.getCoreId()];
+
+		//Keep the cores' clocks together (see getSystemTime).  The process
+		//on the core didn't run during the ticks that were skipped.
+		m_currProcess.runStart += core.advanceTicksTo(m_systemTime);
+	}//enterKernel
+
+	/**
+	 * exitKernel
+	 *
+	 * releases the kernel lock acquired by {@link #enterKernel}
+	 */
+	private void exitKernel()
+	{
+		m_kernelLock.unlock();
+	}//exitKernel
+
+	/**
+	 * setCurrProcess
+	 *
+	 * makes a given process the one running on the current core
+	 *
+	 * @param p  the process
+	 */
+	private void setCurrProcess(ProcessControlBlock p)
+	{
+		int core = m_CPU.getCoreId();
+		ProcessControlBlock old = m_currProcesses[core];
+		if (old != null)
+		{
+			old.runningOn = -1;
+			if ((old != p) && old.isReady())
+			{
+				addReady(old);
+			}
+		}
+		removeReady(p);
+		p.runningOn = core;
+		if ((p.lastCore >= 0) && (p.lastCore != core))
+		{
+			m_migrations++;
+		}
+		p.lastCore = core;
+		m_currProcesses[core] = p;
+		m_currProcess = p;
+
+		if (FLUSH_TLB_ON_SWITCH)
+		{
+			m_MMU.flushTLB(core);
+		}
+
+		PageTrace trace = m_MMU.getTrace();
+		if (trace != null)
+		{
+			trace.setProcess(core, p.getProcessId());
+		}
+	}//setCurrProcess
+
+	/**
+	 * getSystemTime
+	 *
+	 * Each core counts its own ticks and their counts drift apart (e.g., a
+	 * core that is switching between idle processes races ahead), so times
+	 * recorded on one core can't be compared with times on another.  The
+	 * system time is the latest tick count the kernel has seen on any core,
+	 * which never goes backwards.  A core that is behind it catches up when
+	 * it enters the kernel.  The caller must hold the kernel lock.
+	 *
+	 * @return the current system time in ticks
+	 */
+	private int getSystemTime()
+	{
+		m_systemTime = Math.max(m_systemTime, m_CPU.getTicks());
+		return m_systemTime;
+	}//getSystemTime
+
+	/**
+	 * stopOtherCores
+	 *
+	 * pauses every core except the current one and waits until they have all
+	 * reached a safepoint.  This must be done before anything that changes
+	 * the memory of a process that may be running on another core or that
+	 * invalidates a mapping another core may have in its TLB.  The caller
+	 * must hold the kernel lock and must call {@link #resumeOtherCores} when
+	 * it is done.  Calls may be nested.
+	 */
+	private void stopOtherCores()
+	{
+		if (m_stopDepth++ > 0)
+		{
+			return;    // they are already stopped
+		}
+
+		for(CPU core : m_cores)
+		{
+			if (core != m_CPU)
+			{
+				core.requestPause();
+			}
+		}
+		for(CPU core : m_cores)
+		{
+			if (core != m_CPU)
+			{
+				core.waitUntilPaused();
+			}
+		}
+	}//stopOtherCores
+
+	/**
+	 * resumeOtherCores
+	 *
+	 * undoes {@link #stopOtherCores}
+	 */
+	private void resumeOtherCores()
+	{
+		if (--m_stopDepth > 0)
+		{
+			return;    // an outer caller still needs them stopped
+		}
+
+		for(CPU core : m_cores)
+		{
+			if (core != m_CPU)
+			{
+				core.resume();
+			}
+		}
+	}//resumeOtherCores
+
 	/*======================================================================
 	 * Process Management Methods
 	 *----------------------------------------------------------------------
@@ -173,10 +607,7 @@ public class SOS implements CPU.TrapHandler
 	 */
 	public void createIdleProcess()
 	{
-		int progArr[] = { 0, 0, 0, 0,   //SET r0=0
-				0, 0, 0, 0,   //SET r0=0 (repeated instruction to account for vagaries in student implementation of the CPU class)
-				10, 0, 0, 0,   //PUSH r0
-				15, 0, 0, 0 }; //TRAP
+		int progArr[] = IDLE_IMAGE;
 
 		//Initialize the starting position for this program
 		int baseAddr = allocBlock(progArr.length);
@@ -187,10 +618,7 @@ public class SOS implements CPU.TrapHandler
 		}
 
 		//Load the program into RAM
-		for(int i = 0; i < progArr.length; i++)
-		{
-			m_MMU.write(baseAddr + i, progArr[i]);
-		}
+		mapImage(baseAddr, progArr);
 
 		//Save the register info from the current process (if there is one)
 		if (m_currProcess != null)
@@ -206,9 +634,11 @@ public class SOS implements CPU.TrapHandler
 		m_CPU.setLIM(m_MMU.getPageSize());
 		
 		//Save the relevant info as a new entry in m_processes
-		m_currProcess = new ProcessControlBlock(IDLE_PROC_ID);  
+		ProcessControlBlock idle = new ProcessControlBlock(IDLE_PROC_ID);
+		m_processes.add(idle);
+		idle.inProcessTable = true;
+		setCurrProcess(idle);  
 		m_currProcess.save(m_CPU);
-		m_processes.add(m_currProcess);
 
 	}//createIdleProcess
 	
@@ -223,6 +653,26 @@ public class SOS implements CPU.TrapHandler
 			debugPrintln("The process " + m_currProcess.getProcessId() + " has been removed from RAM");
 
 		m_processes.remove(m_currProcess);
+		m_currProcess.inProcessTable = false;
+		removeReady(m_currProcess);
+		if (m_currProcess.isBlocked())
+		{
+			removeBlocked(m_currProcess);
+		}
+		if (m_currProcess.getProcessId() != IDLE_PROC_ID)
+		{
+			m_numUserProcesses--;
+
+			m_numExited++;
+			m_totalAvgStarve += m_currProcess.avgStarve;
+			m_maxStarve = Math.max(m_maxStarve, m_currProcess.maxStarve);
+
+			if (m_processReport)
+			{
+				m_currProcess.chargeRuntime(m_CPU);
+				System.out.println(m_currProcess.getReport(getSystemTime()));
+			}
+		}
 		freeCurrProcessMemBlock();
 
 		//if no other non-blocked process are available then scheduleNewProcess will novt
@@ -235,83 +685,43 @@ public class SOS implements CPU.TrapHandler
 	}//removeCurrentProcess
 
 	/**
-	 * getProcess
-	 * 
-	 * selects a process to run in a manner to minimize starvation and process switching
-	 * 
-	 */
-	public ProcessControlBlock getProcess() {
-
-		//Always let the idle process finish to avoid extra switching
-		if (m_currProcess.getProcessId() == SOS.IDLE_PROC_ID) {
-			if (m_processes.contains(m_currProcess)) 
-				return m_currProcess;
-		}
-
-		ProcessControlBlock selected = null;
-
-
-		//idle process tick minimization loop
-		for (int i = 0; i < m_processes.capacity(); ++i) {
-
-			double minValue = Double.MAX_VALUE;
-			for (ProcessControlBlock s : m_processes) {
-				if (!s.isBlocked() && s.avgStarve < minValue) {
-					selected = s;
-					minValue = s.avgStarve + 300;
-				}
-			}
-		}
-
-		return selected;
-	}
-
-	/**
-	 * getRandomProcess
-	 *
-	 * selects a non-Blocked process at random from the ProcessTable.
+	 * hasUserProcesses
 	 *
-	 * @return a reference to the ProcessControlBlock struct of the selected process
-	 * -OR- null if no non-blocked process exists
+	 * @return true if there is at least one process other than an idle
+	 *         process
 	 */
-	ProcessControlBlock getRandomProcess()
+	private boolean hasUserProcesses()
 	{
-		//Calculate a random offset into the m_processes list
-		int offset = ((int)(Math.random() * 2147483647)) % m_processes.size();
-
-		//Iterate until a non-blocked process is found
-		ProcessControlBlock newProc = null;
-		for(int i = 0; i < m_processes.size(); i++)
-		{
-			newProc = m_processes.get((i + offset) % m_processes.size());
-			if ( ! newProc.isBlocked())
-			{
-				return newProc;
-			}
-		}//for
-
-		return null;        // no processes are Ready
-	}//getRandomProcess
+		return (m_numUserProcesses > 0);
+	}//hasUserProcesses
 
 	/**
 	 * scheduleNewProcess
 	 * 
-	 * Checks if a random non-blocked process is available
-	 * if it is available then run it
+	 * Asks the scheduler which non-blocked process should run next
+	 * if there is one then run it
 	 * otherwise if no process are available end the simulation
 	 */
 	public void scheduleNewProcess()
 	{
 
 		
-		if (m_processes.isEmpty()) {
+		//(Other cores may still be running idle processes so those don't
+		//count)
+		if (!hasUserProcesses()) {
 			System.out.println("No more processes available");
 			System.exit(0);
 		}
-		ProcessControlBlock newProcess = getRandomProcess();
-//		ProcessControlBlock newProcess = getProcess();
 
-		if  (m_currProcess != newProcess) {
+		//The current process may keep running if it is still Ready
+		ProcessControlBlock curr = m_currProcess.isReady() ? m_currProcess : null;
+		ProcessControlBlock newProcess = m_scheduler.select(curr);
+
+		if ((newProcess != null) && (newProcess == m_currProcess)) {
+			//Its next time slice starts when this interrupt returns
+			m_CPU.setTimeSlice(m_scheduler.getTimeSlice(newProcess));
+		}
+		else if  (m_currProcess != newProcess) {
 			m_currProcess.save(m_CPU);
 
 			//If their isn't an unblocked process then make an idle process.
@@ -320,7 +730,7 @@ public class SOS implements CPU.TrapHandler
 				return;
 			}
 
-			m_currProcess = newProcess;
+			setCurrProcess(newProcess);
 
 			m_currProcess.restore(m_CPU);
 		}
@@ -360,44 +770,264 @@ public class SOS implements CPU.TrapHandler
 	 */
 	public ProcessControlBlock selectBlockedProcess(Device dev, int op, int addr)
 	{
-		ProcessControlBlock selected = null;
-		for(ProcessControlBlock pi : m_processes)
-		{
-			if (pi.isBlockedForDevice(dev, op, addr))
-			{
-				selected = pi;
-				break;
-			}
-		}//for
-
-		return selected;
+		LinkedList<ProcessControlBlock> waiting = m_blocked.get(new BlockKey(dev, op, addr));
+		return (waiting == null) ? null : waiting.peek();
 	}//selectBlockedProcess
 
-	/*======================================================================
-	 * Program Management Methods
-	 *----------------------------------------------------------------------
+	/**
+	 * addReady
+	 *
+	 * gives a process to the scheduler (if it doesn't already have it)
 	 */
+	private void addReady(ProcessControlBlock p)
+	{
+		if (!p.onReadyQueue)
+		{
+			p.onReadyQueue = true;
+			m_scheduler.add(p);
+		}
+	}//addReady
 
 	/**
-	 * createProcess
-	 * 
-	 * Allocates memory and initializes a process
-	 * 
-	 * @param prog, the program to that is running the process
-	 * @param allocSize, how much memory will this program need
+	 * removeReady
+	 *
+	 * takes a process away from the scheduler (if it has it)
 	 */
-	public boolean createProcess(Program prog, int allocSize)
+	private void removeReady(ProcessControlBlock p)
 	{
-		
-		int numPages = (int) Math.ceil(allocSize/m_MMU.getPageSize());	
-		allocSize = numPages * m_MMU.getPageSize();
-
-		int testProcess[] = prog.export(); //load parsed process
-
-		//TODO: try to figure out what this came from, can we get rid of it? It seems sketchy
-		if(prog.getSize() >= allocSize){
-			allocSize = prog.getSize()*3; //enlarge allocSize to fit program
+		if (p.onReadyQueue)
+		{
+			p.onReadyQueue = false;
+			m_scheduler.remove(p);
 		}
+	}//removeReady
+
+	/**
+	 * setSchedulingPolicy
+	 *
+	 * changes how the next process to run is chosen.  Processes that are
+	 * already Ready are handed to the new scheduler.
+	 *
+	 * @param policy  one of the SCHED constants.  SCHED_MLFQ uses the
+	 *                default levels (see {@link #useMlfqScheduler}).
+	 */
+	public void setSchedulingPolicy(int policy)
+	{
+		if ((policy < SCHED_RANDOM) || (policy > SCHED_CFS))
+		{
+			throw new IllegalArgumentException("unknown scheduling policy: " + policy);
+		}
+		m_schedPolicy = policy;
+		m_mlfqQuanta = DEFAULT_MLFQ_QUANTA;
+		m_mlfqStarveLimit = DEFAULT_MLFQ_STARVE_LIMIT;
+		setScheduler(createScheduler());
+	}//setSchedulingPolicy
+
+	/**
+	 * useMlfqScheduler
+	 *
+	 * schedules processes with a multi-level feedback queue
+	 *
+	 * @param quanta       the time slice (in ticks) of each level, highest
+	 *                     priority first.  There is one level per entry.
+	 * @param starveLimit  a Ready process that has waited this many ticks is
+	 *                     moved to the top level
+	 */
+	public void useMlfqScheduler(int[] quanta, int starveLimit)
+	{
+		m_schedPolicy = SCHED_MLFQ;
+		m_mlfqQuanta = quanta.clone();
+		m_mlfqStarveLimit = starveLimit;
+		setScheduler(createScheduler());
+	}//useMlfqScheduler
+
+	/**
+	 * setPerCoreRunQueues
+	 *
+	 * chooses between one run queue shared by every core and a run queue
+	 * for each core (see {@link PerCoreScheduler}).  Either way the queues
+	 * use the current scheduling policy.  This only matters if there is
+	 * more than one core.
+	 *
+	 * @param perCore  true for a run queue per core
+	 */
+	public void setPerCoreRunQueues(boolean perCore)
+	{
+		m_perCoreQueues = perCore;
+		setScheduler(createScheduler());
+	}//setPerCoreRunQueues
+
+	/**
+	 * createScheduler
+	 *
+	 * @return a new, empty scheduler with the current settings
+	 */
+	private Scheduler createScheduler()
+	{
+		if (m_perCoreQueues && (m_cores.length > 1))
+		{
+			return new PerCoreScheduler();
+		}
+		return createRunQueue();
+	}//createScheduler
+
+	/**
+	 * createRunQueue
+	 *
+	 * @return a new, empty scheduler for the current policy
+	 */
+	private Scheduler createRunQueue()
+	{
+		switch(m_schedPolicy)
+		{
+			case SCHED_STARVATION:
+				return new StarvationScheduler();
+			case SCHED_MLFQ:
+				return new MlfqScheduler(m_mlfqQuanta, m_mlfqStarveLimit);
+			case SCHED_CFS:
+				return new CfsScheduler();
+			default:
+				return new RandomScheduler();
+		}
+	}//createRunQueue
+
+	/**
+	 * setScheduler
+	 *
+	 * replaces the scheduler, moving every Ready process to the new one
+	 */
+	private void setScheduler(Scheduler sched)
+	{
+		enterKernel();
+		try
+		{
+			m_scheduler = sched;
+			for(ProcessControlBlock p : m_processes)
+			{
+				if (p.onReadyQueue)
+				{
+					m_scheduler.add(p);
+				}
+			}
+		}
+		finally
+		{
+			exitKernel();
+		}
+	}//setScheduler
+
+	/**
+	 * setProcessReport
+	 *
+	 * @param report  whether a summary of each user process's runtime and
+	 *                scheduling latency is printed when it exits
+	 */
+	public void setProcessReport(boolean report)
+	{
+		m_processReport = report;
+	}//setProcessReport
+
+	/**
+	 * getSchedulingStatistics
+	 *
+	 * @return a one line summary of the scheduler and how long the processes
+	 *         that have exited waited while they were Ready
+	 */
+	public String getSchedulingStatistics()
+	{
+		double avg = (m_numExited == 0) ? 0.0 : m_totalAvgStarve / m_numExited;
+		return "Scheduling: " + m_scheduler + ", " + m_numExited
+			+ " processes exited, avg starve=" + String.format("%.1f", avg)
+			+ " max starve=" + m_maxStarve + " migrations=" + m_migrations;
+	}//getSchedulingStatistics
+
+	/**
+	 * addBlocked
+	 *
+	 * records what a process that has just blocked is waiting for
+	 */
+	private void addBlocked(ProcessControlBlock p)
+	{
+		BlockKey key = p.getBlockKey();
+		LinkedList<ProcessControlBlock> waiting = m_blocked.get(key);
+		if (waiting == null)
+		{
+			waiting = new LinkedList<ProcessControlBlock>();
+			m_blocked.put(key, waiting);
+		}
+		waiting.add(p);
+	}//addBlocked
+
+	/**
+	 * removeBlocked
+	 *
+	 * forgets what a process is waiting for.  (It is normally the first
+	 * process waiting so this takes constant time.)
+	 */
+	private void removeBlocked(ProcessControlBlock p)
+	{
+		BlockKey key = p.getBlockKey();
+		LinkedList<ProcessControlBlock> waiting = m_blocked.get(key);
+		if (waiting != null)
+		{
+			waiting.remove(p);
+			if (waiting.isEmpty())
+			{
+				m_blocked.remove(key);
+			}
+		}
+	}//removeBlocked
+
+	/*======================================================================
+	 * Program Management Methods
+	 *----------------------------------------------------------------------
+	 */
+
+	/**
+	 * createProcess
+	 * 
+	 * Allocates memory and initializes a process
+	 * 
+	 * @param prog, the program to that is running the process
+	 * @param allocSize, how much memory will this program need
+	 */
+	public boolean createProcess(Program prog, int allocSize)
+	{
+		enterKernel();
+		try
+		{
+			return createProcessLocked(prog, allocSize);
+		}
+		finally
+		{
+			exitKernel();
+		}
+	}//createProcess
+
+	/**
+	 * createProcessLocked
+	 *
+	 * does the work of {@link #createProcess}.  The caller must hold the
+	 * kernel lock.
+	 */
+	private boolean createProcessLocked(Program prog, int allocSize)
+	{
+		
+		//load parsed process (a program that failed to load has no image)
+		int testProcess[] = prog.getImage();
+		if (testProcess == null) {
+			testProcess = prog.export();
+		}
+
+		//TODO: try to figure out what this came from, can we get rid of it? It seems sketchy
+		if(prog.getSize() >= allocSize){
+			allocSize = prog.getSize()*3; //enlarge allocSize to fit program
+		}
+
+		//Round up to a whole number of pages so that LIM matches the block
+		//allocBlock hands out
+		int pageSize = m_MMU.getPageSize();
+		allocSize = ((allocSize + pageSize - 1) / pageSize) * pageSize;
 
 		int newMemory = allocBlock(allocSize);
 
@@ -424,13 +1054,18 @@ public class SOS implements CPU.TrapHandler
 		m_CPU.setSP(newMemory + allocSize - 1); 
 
 		//load the program into memory so it can execute
-		for(int i = 0; i < testProcess.length; i++){
-			m_MMU.write(i + newMemory, testProcess[i]);
-		}//for
+		if (m_shareText && (testProcess == prog.getImage())) {
+			mapSharedImage(newMemory, prog);
+		}
+		else {
+			mapImage(newMemory, testProcess);
+		}
 
 
 		m_processes.add(newProcess);
-		m_currProcess = newProcess;
+		newProcess.inProcessTable = true;
+		m_numUserProcesses++;
+		setCurrProcess(newProcess);
 		m_currProcess.save(m_CPU);
 
 		if (m_debug)
@@ -438,7 +1073,7 @@ public class SOS implements CPU.TrapHandler
 
 		return true;
 
-	}//createProcess
+	}//createProcessLocked
 
 
 
@@ -457,46 +1092,52 @@ public class SOS implements CPU.TrapHandler
 	 */
 	public void systemCall()
 	{
+		enterKernel();
+		try
+		{
+			int syscall_input = m_CPU.pop();
 
-		int syscall_input = m_CPU.pop();
-
-		//See method headers for details of these operations
-
-		switch (syscall_input) {
-		case SYSCALL_EXIT:
-			syscallExit();
-			break;
-		case SYSCALL_OUTPUT:
-			syscallOutput();
-			break;
-		case SYSCALL_GETPID:
-			syscallGetPID();
-			break;
-		case SYSCALL_COREDUMP:
-			syscallCoreDump();
-			break;
-		case SYSCALL_OPEN:
-			syscallOpen();
-			break;
-		case SYSCALL_READ:
-			syscallRead();
-			break;
-		case SYSCALL_CLOSE:
-			syscallClose();
-			break;
-		case SYSCALL_WRITE:
-			syscallWrite();
-			break;
-		case SYSCALL_YIELD:
-			syscallYield();
-			break;
-		case SYSCALL_EXEC:
-			syscallExec();
-			break;
-		default:
-			break;
-		}
+			//See method headers for details of these operations
 
+			switch (syscall_input) {
+			case SYSCALL_EXIT:
+				syscallExit();
+				break;
+			case SYSCALL_OUTPUT:
+				syscallOutput();
+				break;
+			case SYSCALL_GETPID:
+				syscallGetPID();
+				break;
+			case SYSCALL_COREDUMP:
+				syscallCoreDump();
+				break;
+			case SYSCALL_OPEN:
+				syscallOpen();
+				break;
+			case SYSCALL_READ:
+				syscallRead();
+				break;
+			case SYSCALL_CLOSE:
+				syscallClose();
+				break;
+			case SYSCALL_WRITE:
+				syscallWrite();
+				break;
+			case SYSCALL_YIELD:
+				syscallYield();
+				break;
+			case SYSCALL_EXEC:
+				syscallExec();
+				break;
+			default:
+				break;
+			}
+		}
+		finally
+		{
+			exitKernel();
+		}
 	}
 
 
@@ -504,10 +1145,9 @@ public class SOS implements CPU.TrapHandler
 	 * syscallExec
 	 *
 	 * creates a new process.  The program used to create that process is chosen
-	 * semi-randomly from all the programs that have been registered with the OS
-	 * via {@link #addProgram}.  Limits are put into place to ensure that each
-	 * process is run an equal number of times.  If no programs have been
-	 * registered then the simulation is aborted with a fatal error.
+	 * at random from all the programs that have been registered with the OS
+	 * via {@link #addProgram}.  If no programs have been registered then the
+	 * simulation is aborted with a fatal error.
 	 *
 	 */
 	private void syscallExec()
@@ -519,29 +1159,8 @@ public class SOS implements CPU.TrapHandler
 			System.exit(-1);
 		}
 
-		//find out which program has been called the least and record how many
-		//times it has been called
-		int leastCallCount = m_programs.get(0).callCount;
-		for(Program prog : m_programs)
-		{
-			if (prog.callCount < leastCallCount)
-			{
-				leastCallCount = prog.callCount;
-			}
-		}
-
-		//Create a vector of all programs that have been called the least number
-		//of times
-		Vector<Program> cands = new Vector<Program>();
-		for(Program prog : m_programs)
-		{
-			cands.add(prog);
-		}
-
-		//Select a random program from the candidates list
-		Random rand = new Random();
-		int pn = rand.nextInt(m_programs.size());
-		Program prog = cands.get(pn);
+		//Select a random program
+		Program prog = m_programs.get(m_execRand.nextInt(m_programs.size()));
 
 		//Determine the address space size using the default if available.
 		//Otherwise, use a multiple of the program size.
@@ -552,7 +1171,7 @@ public class SOS implements CPU.TrapHandler
 		}
 
 		//Load the program into RAM
-		boolean wasSuccesful  = createProcess(prog, allocSize);
+		boolean wasSuccesful  = createProcessLocked(prog, allocSize);
 		if (wasSuccesful) {
 			//Adjust the PC since it's about to be incremented by the CPU
 			m_CPU.setPC(m_CPU.getPC() - CPU.INSTRSIZE);
@@ -866,10 +1485,17 @@ public class SOS implements CPU.TrapHandler
 	 */
 	@Override
 	public void interruptIllegalMemoryAccess(int addr) {
-		System.out.println("Illegal Memory Access of addr: " + addr + " by proccess " + m_currProcess.getProcessId());
+		enterKernel();
+		try
+		{
+			System.out.println("Illegal Memory Access of addr: " + addr + " by proccess " + m_currProcess.getProcessId());
 		
-		removeCurrentProcess();
-
+			removeCurrentProcess();
+		}
+		finally
+		{
+			exitKernel();
+		}
 	}
 
 	/**
@@ -880,9 +1506,17 @@ public class SOS implements CPU.TrapHandler
 	 */
 	@Override
 	public void interruptDivideByZero() {
-		System.out.println("Divide by Zero Error!");
+		enterKernel();
+		try
+		{
+			System.out.println("Divide by Zero Error!");
 
-		removeCurrentProcess();
+			removeCurrentProcess();
+		}
+		finally
+		{
+			exitKernel();
+		}
 	}
 
 	/**
@@ -893,9 +1527,17 @@ public class SOS implements CPU.TrapHandler
 	 */
 	@Override
 	public void interruptIllegalInstruction(int[] instr) {
-		System.out.println("Illegal Intruction!");
+		enterKernel();
+		try
+		{
+			System.out.println("Illegal Intruction!");
 
-		removeCurrentProcess();
+			removeCurrentProcess();
+		}
+		finally
+		{
+			exitKernel();
+		}
 	}
 
 	/**
@@ -910,25 +1552,31 @@ public class SOS implements CPU.TrapHandler
 	 */
 	@Override
 	public void interruptIOReadComplete(int devID, int addr, int data) {
+		enterKernel();
+		try
+		{
+			DeviceInfo devInfo = getDeviceInfo(devID);
 
-		DeviceInfo devInfo = getDeviceInfo(devID);
-
-		ProcessControlBlock blocked = selectBlockedProcess(devInfo.getDevice(), SYSCALL_READ, addr);
+			ProcessControlBlock blocked = selectBlockedProcess(devInfo.getDevice(), SYSCALL_READ, addr);
 
-		if (blocked == null) {
-			System.out.println("Null blocked process, interruptIOReadComplete");
+			if (blocked == null) {
+				System.out.println("Null blocked process, interruptIOReadComplete");
 			
-			removeCurrentProcess();
-		}
-
-		blocked.unblock();
+				removeCurrentProcess();
+			}
 
-		//Push the data we received from the read to the reading processes stack
-		blocked.push(data);
+			blocked.unblock();
 
-		//Push a successful system call indicator to the reading processes stack
-		blocked.push(SOS.SYSTEM_HANDLER_SUCCESS);
+			//Push the data we received from the read to the reading processes stack
+			blocked.push(data);
 
+			//Push a successful system call indicator to the reading processes stack
+			blocked.push(SOS.SYSTEM_HANDLER_SUCCESS);
+		}
+		finally
+		{
+			exitKernel();
+		}
 	}
 
 	/**
@@ -942,21 +1590,29 @@ public class SOS implements CPU.TrapHandler
 	 */
 	@Override
 	public void interruptIOWriteComplete(int devID, int addr) {
-		DeviceInfo devInfo = getDeviceInfo(devID);
+		enterKernel();
+		try
+		{
+			DeviceInfo devInfo = getDeviceInfo(devID);
 
-		ProcessControlBlock blocked = selectBlockedProcess(devInfo.getDevice(), SYSCALL_WRITE, addr);
+			ProcessControlBlock blocked = selectBlockedProcess(devInfo.getDevice(), SYSCALL_WRITE, addr);
 
 
-		System.out.println("Device Procs Size: "+devInfo.procs.size());
-		if (blocked == null) {
-			System.out.println("Null blocked process, interruptIOWriteComplete");
+			System.out.println("Device Procs Size: "+devInfo.procs.size());
+			if (blocked == null) {
+				System.out.println("Null blocked process, interruptIOWriteComplete");
 
-			removeCurrentProcess();
-		}
+				removeCurrentProcess();
+			}
 
-		blocked.push(SOS.SYSTEM_HANDLER_SUCCESS);
+			blocked.push(SOS.SYSTEM_HANDLER_SUCCESS);
 
-		blocked.unblock();
+			blocked.unblock();
+		}
+		finally
+		{
+			exitKernel();
+		}
 	}
 
 	/**
@@ -965,7 +1621,56 @@ public class SOS implements CPU.TrapHandler
 	 * schedules a new process
 	 */
 	public void interruptClock() {
-		scheduleNewProcess();
+		enterKernel();
+		try
+		{
+			//The process used up its time slice
+			if (m_currProcess.isReady())
+			{
+				m_scheduler.expired(m_currProcess);
+			}
+			compactStep();
+			scheduleNewProcess();
+		}
+		finally
+		{
+			exitKernel();
+		}
+	}
+
+	/**
+	 * interruptPageFault
+	 * 
+	 * brings a page that isn't in RAM into a frame.  The access that caused
+	 * the fault is retried by the MMU when this returns.
+	 * 
+	 * @param addr - the virtual address that caused the fault
+	 */
+	@Override
+	public void interruptPageFault(int addr) {
+		enterKernel();
+		try
+		{
+			int page = addr >> m_MMU.getOffsetSize();
+
+			//Another core may have brought the page in while this one was
+			//waiting to enter the kernel.  If it is valid and still shared
+			//then this was a write.
+			int entry = m_RAM.read(page);
+			if ((entry & MMU.VALID) != 0) {
+				if ((entry & MMU.COPY_ON_WRITE) != 0) {
+					copyOnWrite(page, entry);
+				}
+				return;
+			}
+
+			++m_pageFaults;
+			pageIn(page, allocFrame());
+		}
+		finally
+		{
+			exitKernel();
+		}
 	}
 
     /*======================================================================
@@ -977,91 +1682,562 @@ public class SOS implements CPU.TrapHandler
      * initPageTable
      * 
      * Initializes the page table, hides free memory, 
-     * set default values for the page table
+     * set default values for the page table.  The page table itself is
+     * mapped (and pinned) at the bottom of virtual memory.  Every other page
+     * starts out invalid so it is brought in by a page fault when it is
+     * first used.
      */
     private void initPageTable()
     {
         
     	int numFrames = m_MMU.getNumFrames();
+    	int numPages = m_MMU.getNumPages();
     	int pageSize = m_MMU.getPageSize();
-    	//    	int offset = m_MMU.getOffsetSize();
+    	int offset = m_MMU.getOffsetSize();
     	
     	//How many frames does the page table fill up?
-    	int pageTableFrames = (int)Math.ceil(((double)numFrames) / ((double)pageSize));
-    	int pageTableSize = pageTableFrames*pageSize;
+    	int pageTableFrames = (int)Math.ceil(((double)numPages) / ((double)pageSize));
+    	m_pageTableSize = pageTableFrames*pageSize;
     	
     	//Assuming this method is only ever called when ram is empty
     	m_freeList.clear();
-    	MemBlock notPageTable = new MemBlock(pageTableSize, m_RAM.getSize() - pageTableSize);
+    	MemBlock notPageTable = new MemBlock(m_pageTableSize, m_MMU.getSize() - m_pageTableSize);
     	m_freeList.add(notPageTable);
     	
     	//Initialize each element in the page table, set each element to not be in use
-    	for (int i = 0; i < numFrames; ++i) {
+    	for (int i = 0; i < numPages; ++i) {
     		
-//    		int value = i << offset;
-    		m_RAM.write(i, i);
+    		if (i < pageTableFrames) {
+    			m_RAM.write(i, (i << offset) | MMU.VALID);
+    		} else {
+    			m_RAM.write(i, 0);
+    		}
+    	}
+
+    	//All of the frames except the page table's are free
+    	m_frameTable = new int[numFrames];
+    	m_frameRefs = new int[numFrames];
+    	m_frameText = new SharedText[numFrames];
+    	m_sharedText.clear();
+    	m_numSharedFrames = 0;
+    	m_freeFrameBits = new long[(numFrames + 63) / 64];
+    	m_numFreeFrames = 0;
+    	m_freeFrameHint = 0;
+    	for (int i = 0; i < numFrames; ++i) {
+    		if (i < pageTableFrames) {
+    			m_frameTable[i] = FRAME_PINNED;
+    		} else {
+    			freeFrame(i);
+    		}
     	}
+    	m_clockHand = 0;
+    	m_pageBuf = new int[pageSize];
+
+    	//None of the old translations can be trusted
+    	m_MMU.flushTLB();
     	
     }//initPageTable
 
+    /**
+     * setSwapFile
+     *
+     * gives the OS a swap area to evict pages to.  Without one, running out
+     * of frames is fatal.
+     *
+     * @param swap  the swap area.  It must have a slot for every virtual page.
+     */
+    public void setSwapFile(SwapFile swap)
+    {
+        m_swap = swap;
+    }//setSwapFile
 
     /**
-     * createPageTableEntry
+     * getPagingStatistics
      *
-     * is a helper method for {@link #printPageTable} to create a single entry
-     * in the page table to print to the console.  This entry is formatted to be
-     * exactly 35 characters wide by appending spaces.
+     * @return a one line summary of the paging statistics
+     */
+    public String getPagingStatistics()
+    {
+        String result = "Paging: " + m_MMU.getNumPages() + " pages in "
+            + m_MMU.getNumFrames() + " frames, faults=" + m_pageFaults
+            + " evictions=" + m_evictions;
+        if (m_shareText)
+        {
+            result = result + "\nShared Text: " + m_numSharedFrames
+                + " frames shared, pages shared=" + m_pagesShared
+                + " copy-on-writes=" + m_copyOnWrites;
+        }
+        if (m_swap != null)
+        {
+            result = result + "\n" + m_swap;
+        }
+        return result;
+    }//getPagingStatistics
+
+    /**
+     * allocFrame
      *
-     * @param pageNum is the page to print an entry for
+     * finds a frame to hold a page, evicting another page if necessary.
+     * Any free frame will do since a process's pages don't have to be in
+     * contiguous frames.
      *
+     * @return the frame number
      */
-    private String createPageTableEntry(int pageNum)
+    private int allocFrame()
     {
-        int frameNum = m_MMU.read(pageNum);
-        int baseAddr = frameNum * m_MMU.getPageSize();
+        if (m_numFreeFrames == 0)
+        {
+            return evictFrame();
+        }
 
-        //check to see if student has pre-shifted frame numbers
-        //in their page table and, if so, correct the values
-        if (frameNum / m_MMU.getPageSize() != 0)
+        //Search the bitmap a word (64 frames) at a time
+        int words = m_freeFrameBits.length;
+        for(int i = 0; i < words; i++)
         {
-            baseAddr = frameNum;
-            frameNum /= m_MMU.getPageSize();
+            int w = (m_freeFrameHint + i) % words;
+            long bits = m_freeFrameBits[w];
+            if (bits != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(bits);
+                m_freeFrameBits[w] = bits & ~(1L << bit);
+                m_freeFrameHint = w;
+                m_numFreeFrames--;
+                return (w << 6) + bit;
+            }
         }
 
-        String entry = "page " + pageNum + "-->frame "
-                          + frameNum + " (@" + baseAddr +")";
+        //Not reached: m_numFreeFrames says there is a free frame
+        return evictFrame();
+    }//allocFrame
 
-        //pad out to 35 characters
-        String format = "%s%" + (35 - entry.length()) + "s";
-        return String.format(format, entry, " ");
-        
-    }//createPageTableEntry
+    /**
+     * freeFrame
+     *
+     * returns a frame to the pool of free frames
+     */
+    private void freeFrame(int frame)
+    {
+        m_frameTable[frame] = FRAME_FREE;
+        m_freeFrameBits[frame >> 6] |= 1L << (frame & 63);
+        m_numFreeFrames++;
+    }//freeFrame
 
     /**
-     * printPageTable      *DEBUGGING*
+     * mapImage
      *
-     * prints the page table in a human readable format
+     * loads a program image at a given virtual address.  Rather than letting
+     * each page of the image fault in, frames are taken from the free frame
+     * bitmap (wherever they are), filled with their part of the image and
+     * mapped into the page table.  The rest of the process's memory is still
+     * brought in on demand.
      *
+     * @param addr   the virtual address of the image (must be the start of
+     *               a page whose pages are all unmapped)
+     * @param image  the program image
      */
-    private void printPageTable()
+    private void mapImage(int addr, int[] image)
     {
-        //If verbose mode is off, do nothing
-        if (!m_verbose) return;
+        int pageSize = m_MMU.getPageSize();
+        int offset = m_MMU.getOffsetSize();
+        int firstPage = addr >> offset;
+        for(int i = 0; i < image.length; i += pageSize)
+        {
+            int page = firstPage + i / pageSize;
+            int frame = allocFrame();
+            loadImagePage(frame, image, i);
 
-        //Print a header
-        System.out.println("\n----------========== Page Table ==========----------");
+            m_frameTable[frame] = page;
+            m_RAM.write(page, (frame << offset) | MMU.VALID);
+        }
+    }//mapImage
 
-        //Print the entries in two columns
-        for(int i = 0; i < m_MMU.getNumPages() / 2; i++)
+    /**
+     * mapSharedImage
+     *
+     * is {@link #mapImage} for a Program.  Every process running the same
+     * Program maps the same frames for its image, copy-on-write, so an image
+     * that is already in RAM costs no frames and no copying.  A page that a
+     * process writes to is copied (see {@link #copyOnWrite}).  The frames go
+     * back to the free pool when the last process using them is done with
+     * them.
+     *
+     * Shared frames can't be evicted so no more than half of the frames may
+     * be shared; beyond that pages are loaded as with mapImage.
+     *
+     * @param addr   the virtual address of the image (must be the start of
+     *               a page whose pages are all unmapped)
+     * @param prog   the program (which must have been loaded)
+     */
+    private void mapSharedImage(int addr, Program prog)
+    {
+        int[] image = prog.getImage();
+        int pageSize = m_MMU.getPageSize();
+        int offset = m_MMU.getOffsetSize();
+        int firstPage = addr >> offset;
+        int maxShared = (m_frameTable.length - m_pageTableSize / pageSize) / 2;
+
+        //A loaded Program never changes so its frames can be reused as long
+        //as they are in RAM
+        SharedText text = m_sharedText.get(prog);
+        if (text == null)
         {
-            String line = createPageTableEntry(i);                       //left column
-            line += createPageTableEntry(i + (m_MMU.getNumPages() / 2)); //right column
-            System.out.println(line);
+            text = new SharedText((image.length + pageSize - 1) / pageSize);
+            m_sharedText.put(prog, text);
         }
-        
-        //Print a footer
-        System.out.println("-----------------------------------------------------------------");
-        
+
+        for(int i = 0; i < text.frames.length; i++)
+        {
+            int page = firstPage + i;
+            int frame = text.frames[i];
+            if (frame == FRAME_FREE)
+            {
+                frame = allocFrame();
+                loadImagePage(frame, image, i * pageSize);
+                if (m_numSharedFrames >= maxShared)
+                {
+                    m_frameTable[frame] = page;
+                    m_RAM.write(page, (frame << offset) | MMU.VALID);
+                    continue;
+                }
+
+                m_frameTable[frame] = FRAME_SHARED;
+                m_frameText[frame] = text;
+                text.frames[i] = frame;
+                m_numSharedFrames++;
+            }
+            else
+            {
+                m_pagesShared++;
+            }
+
+            m_frameRefs[frame]++;
+            m_RAM.write(page, (frame << offset) | MMU.VALID | MMU.COPY_ON_WRITE);
+        }
+    }//mapSharedImage
+
+    /**
+     * loadImagePage
+     *
+     * fills a frame with one page of a program image (padded with zeroes)
+     *
+     * @param frame  the frame
+     * @param image  the program image
+     * @param start  the index in the image of the page's first word
+     */
+    private void loadImagePage(int frame, int[] image, int start)
+    {
+        int pageSize = m_MMU.getPageSize();
+        int len = Math.min(pageSize, image.length - start);
+        m_RAM.writeRange(frame * pageSize, image, start, len);
+        if (len < pageSize)
+        {
+            Arrays.fill(m_pageBuf, 0);
+            m_RAM.writeRange(frame * pageSize + len, m_pageBuf, 0, pageSize - len);
+        }
+    }//loadImagePage
+
+    /**
+     * copyOnWrite
+     *
+     * gives a page that a process is about to write to a frame of its own.
+     * If no other page maps its shared frame then the page simply takes the
+     * frame over; otherwise the frame is copied.
+     *
+     * @param page   the virtual page number
+     * @param entry  its page table entry (VALID and COPY_ON_WRITE)
+     */
+    private void copyOnWrite(int page, int entry)
+    {
+        int offset = m_MMU.getOffsetSize();
+        int shared = entry >> offset;
+        m_copyOnWrites++;
+
+        //Other cores may have the read only mapping in their TLBs
+        stopOtherCores();
+        try
+        {
+            int frame = shared;
+            if (m_frameRefs[shared] == 1)
+            {
+                unshareFrame(shared, false);
+            }
+            else
+            {
+                frame = allocFrame();
+                int pageSize = m_MMU.getPageSize();
+                m_RAM.readRange(shared * pageSize, m_pageBuf, 0, pageSize);
+                m_RAM.writeRange(frame * pageSize, m_pageBuf, 0, pageSize);
+                unshareFrame(shared, true);
+            }
+
+            m_frameTable[frame] = page;
+            m_RAM.write(page, (frame << offset) | MMU.VALID);
+            m_MMU.invalidatePage(page);
+        }
+        finally
+        {
+            resumeOtherCores();
+        }
+    }//copyOnWrite
+
+    /**
+     * unshareFrame
+     *
+     * removes one page's mapping of a shared frame.  When it was the last
+     * one the frame stops being shared and, if asked, is freed.
+     *
+     * @param frame  a FRAME_SHARED frame
+     * @param free   whether to free the frame if nothing maps it any more
+     *               (otherwise the caller takes it over)
+     */
+    private void unshareFrame(int frame, boolean free)
+    {
+        if (--m_frameRefs[frame] > 0)
+        {
+            return;
+        }
+
+        //The next process to run the program will load this page again
+        SharedText text = m_frameText[frame];
+        for(int i = 0; i < text.frames.length; i++)
+        {
+            if (text.frames[i] == frame)
+            {
+                text.frames[i] = FRAME_FREE;
+            }
+        }
+        m_frameText[frame] = null;
+        m_numSharedFrames--;
+
+        if (free)
+        {
+            freeFrame(frame);
+        }
+    }//unshareFrame
+
+    /**
+     * setShareProgramText
+     *
+     * chooses whether processes running the same Program share the frames
+     * that hold its image
+     *
+     * @param share  true to share them copy-on-write, false to give every
+     *               process its own copy
+     */
+    public void setShareProgramText(boolean share)
+    {
+        m_shareText = share;
+    }//setShareProgramText
+
+    /**
+     * evictFrame
+     *
+     * uses the clock algorithm to pick a page that hasn't been referenced
+     * recently and writes it to swap
+     *
+     * @return the frame that the page was in (which is now unused)
+     */
+    private int evictFrame()
+    {
+        if (m_swap == null)
+        {
+            System.out.println("ERROR!  Out of physical memory and there is no swap area.");
+            System.exit(-1);
+        }
+
+        //Clearing a REFERENCED bit and evicting a page both invalidate
+        //mappings other cores may have cached
+        stopOtherCores();
+        try
+        {
+            while(true)
+            {
+                int frame = m_clockHand;
+                m_clockHand = (m_clockHand + 1) % m_frameTable.length;
+
+                int page = m_frameTable[frame];
+                if (page < 0)
+                {
+                    continue;    // free, pinned or shared
+                }
+
+                int entry = m_RAM.read(page);
+                if ((entry & MMU.REFERENCED) != 0)
+                {
+                    //Give the page a second chance.  Its TLB entries must go
+                    //so that the next access sets the bit again.
+                    m_RAM.write(page, entry & ~MMU.REFERENCED);
+                    m_MMU.invalidatePage(page);
+                    continue;
+                }
+
+                pageOut(page, frame, entry);
+                m_frameTable[frame] = FRAME_FREE;
+                return frame;
+            }//while
+        }
+        finally
+        {
+            resumeOtherCores();
+        }
+    }//evictFrame
+
+    /**
+     * pageOut
+     *
+     * removes a page from RAM, saving it to swap unless swap already has an
+     * up to date copy
+     *
+     * @param page   the virtual page number
+     * @param frame  the frame the page is in
+     * @param entry  the page's page table entry
+     */
+    private void pageOut(int page, int frame, int entry)
+    {
+        if (((entry & MMU.DIRTY) != 0) || !m_swap.contains(page))
+        {
+            int base = frame * m_MMU.getPageSize();
+            m_RAM.readRange(base, m_pageBuf, 0, m_pageBuf.length);
+            m_swap.writePage(page, m_pageBuf);
+        }
+
+        m_RAM.write(page, 0);
+        m_MMU.invalidatePage(page);
+        m_evictions++;
+
+        if (m_debug)
+            debugPrintln("Evicted page " + page + " from frame " + frame);
+    }//pageOut
+
+    /**
+     * pageIn
+     *
+     * loads a page into a frame from swap or, if the page has never been
+     * swapped out, fills the frame with zeroes
+     *
+     * @param page   the virtual page number
+     * @param frame  the frame to load it into
+     */
+    private void pageIn(int page, int frame)
+    {
+        if ((m_swap != null) && m_swap.contains(page))
+        {
+            m_swap.readPage(page, m_pageBuf);
+        }
+        else
+        {
+            Arrays.fill(m_pageBuf, 0);
+        }
+
+        int base = frame * m_MMU.getPageSize();
+        m_RAM.writeRange(base, m_pageBuf, 0, m_pageBuf.length);
+
+        m_frameTable[frame] = page;
+        m_RAM.write(page, (frame << m_MMU.getOffsetSize()) | MMU.VALID);
+    }//pageIn
+
+    /**
+     * releasePages
+     *
+     * unmaps every page in a range of virtual memory, freeing their frames
+     * and their copies in swap
+     *
+     * @param start  the first virtual address in the range
+     * @param size   the number of words in the range
+     */
+    private void releasePages(int start, int size)
+    {
+        int offset = m_MMU.getOffsetSize();
+        int firstPage = start >> offset;
+        int lastPage = (start + size - 1) >> offset;
+
+        stopOtherCores();
+        try
+        {
+            for(int page = firstPage; page <= lastPage; page++)
+            {
+                int entry = m_RAM.read(page);
+                if ((entry & MMU.VALID) != 0)
+                {
+                    int frame = entry >> offset;
+                    if (m_frameTable[frame] == FRAME_SHARED)
+                    {
+                        unshareFrame(frame, true);
+                    }
+                    else
+                    {
+                        freeFrame(frame);
+                    }
+                    m_RAM.write(page, 0);
+                    m_MMU.invalidatePage(page);
+                }
+                if (m_swap != null)
+                {
+                    m_swap.discard(page);
+                }
+            }
+        }
+        finally
+        {
+            resumeOtherCores();
+        }
+    }//releasePages
+
+
+    /**
+     * createPageTableEntry
+     *
+     * is a helper method for {@link #printPageTable} to create a single entry
+     * in the page table to print to the console.  This entry is formatted to be
+     * exactly 35 characters wide by appending spaces.
+     *
+     * @param pageNum is the page to print an entry for
+     *
+     */
+    private String createPageTableEntry(int pageNum)
+    {
+        int pte = m_MMU.read(pageNum);
+        int baseAddr = pte & m_MMU.getPageMask();
+        int frameNum = baseAddr / m_MMU.getPageSize();
+
+        String entry = "page " + pageNum + "-->frame "
+                          + frameNum + " (@" + baseAddr +")";
+        if ((pte & MMU.VALID) == 0)
+        {
+            entry = "page " + pageNum + "-->(not in RAM)";
+        }
+
+        //pad out to 35 characters
+        String format = "%s%" + (35 - entry.length()) + "s";
+        return String.format(format, entry, " ");
+        
+    }//createPageTableEntry
+
+    /**
+     * printPageTable      *DEBUGGING*
+     *
+     * prints the page table in a human readable format
+     *
+     */
+    private void printPageTable()
+    {
+        //If verbose mode is off, do nothing
+        if (!m_verbose) return;
+
+        //Print a header
+        System.out.println("\n----------========== Page Table ==========----------");
+
+        //Print the entries in two columns
+        for(int i = 0; i < m_MMU.getNumPages() / 2; i++)
+        {
+            String line = createPageTableEntry(i);                       //left column
+            line += createPageTableEntry(i + (m_MMU.getNumPages() / 2)); //right column
+            System.out.println(line);
+        }
+        
+        //Print a footer
+        System.out.println("-----------------------------------------------------------------");
+        
     }//printPageTable
     
 
@@ -1075,25 +2251,84 @@ public class SOS implements CPU.TrapHandler
 	/**
 	 * allocBlock
 	 * 
-	 * Description: First Fit. If a contiguous block of memory that is big enough to fit the given size program
-	 * 		exists then allocate memory. Otherwise, if the total amount of free space is enough for the program, 
-	 * 		compact memory for allocation. If there is not enough free space, failed.
+	 * Description: allocates a contiguous block of memory with the current
+	 * 		allocator (see setMemoryAllocator) and records statistics
 	 * 
 	 * @param size how much memory requested
 	 * @return the address of the allocated block
 	 */
-	private int allocBlock(int size)
+	int allocBlock(int size)
 	{
 		
-		int numPages = (int) Math.ceil(size/m_MMU.getPageSize());	
+		//Round up so that small requests (e.g., the idle process) still get
+		//a page of their own
+		int numPages = (size + m_MMU.getPageSize() - 1) / m_MMU.getPageSize();
 		size = numPages * m_MMU.getPageSize();
-		
+
+		m_totalFragmentation += getFragmentation();
+		m_totalUtilization += getFrameUtilization();
+		long start = System.nanoTime();
+
+		int addr = (m_buddy != null) ? allocBuddy(size) : allocFirstFit(size);
+
+		long elapsed = System.nanoTime() - start;
+		m_allocs++;
+		m_allocNanos += elapsed;
+		m_maxAllocNanos = Math.max(m_maxAllocNanos, elapsed);
+		if (addr == ALLOC_BLOCK_FAILED) {
+			m_allocFailures++;
+		}
+		return addr;
+	}//allocBlock
+
+	/**
+	 * allocBuddy
+	 * 
+	 * Description: Buddy System. Takes the pages from the buddy allocator. If there is enough free
+	 * 		space but no suitable block then memory is compacted first. 
+	 * 
+	 * @param size how much memory requested (a whole number of pages)
+	 * @return the address of the allocated block
+	 */
+	private int allocBuddy(int size)
+	{
+		int pageSize = m_MMU.getPageSize();
+		int numPages = size / pageSize;
+
+		int page = m_buddy.alloc(numPages);
+		if ((page == BuddyAllocator.ALLOC_FAILED) && (m_buddy.getFreeUnits() >= numPages)) {
+			int lowest = m_buddy.getLowestFree();
+			if (!compactMemory(lowest * pageSize)) {
+				return ALLOC_BLOCK_FAILED;
+			}
+			page = m_buddy.alloc(numPages);
+		}
+
+		if (page == BuddyAllocator.ALLOC_FAILED) {
+			return ALLOC_BLOCK_FAILED;
+		}
+		if (m_debug)
+			System.out.println("Allocated memory from " + (page * pageSize) + " to " + (page * pageSize + size));
+		return page * pageSize;
+	}//allocBuddy
+
+	/**
+	 * allocFirstFit
+	 * 
+	 * Description: First Fit. If a contiguous block of memory that is big enough to fit the given size program
+	 * 		exists then allocate memory. Otherwise, if the total amount of free space is enough for the program, 
+	 * 		compact memory for allocation. If there is not enough free space, failed.
+	 * 
+	 * @param size how much memory requested (a whole number of pages)
+	 * @return the address of the allocated block
+	 */
+	private int allocFirstFit(int size)
+	{
 		if (m_freeList.isEmpty()) {
 			return ALLOC_BLOCK_FAILED;
 		}
 
 		int totalAvailable = 0;
-		int firstEmptyBlock = Integer.MAX_VALUE; //The only way it could keep this value would be that m_freeList is empty
 
 		//Look through free memory blocks looking for one that is big enough to store the program
 		MemBlock selected = null;
@@ -1101,10 +2336,6 @@ public class SOS implements CPU.TrapHandler
 			//keep track of how much free memory is available
 			totalAvailable += mem.getSize();
 
-			if (firstEmptyBlock > mem.m_addr) {
-				firstEmptyBlock = mem.m_addr;
-			}
-
 			if (mem.getSize() >= size){
 				selected = mem;
 				break;
@@ -1113,34 +2344,16 @@ public class SOS implements CPU.TrapHandler
 
 		if (selected == null) {
 			//if there is enough room to allocate the space but it isn't contiguous then
-			//group all processes together
+			//slide processes down until there is a big enough block
 			if (totalAvailable >= size) {
-				
-				ProcessControlBlock lastBlock = defrag(firstEmptyBlock);
-				
-				//This "should" never happen
-				if (lastBlock == null) {
+
+				//This "should" never fail
+				if (!compactUntilFits(size)) {
 					return ALLOC_BLOCK_FAILED;
 				}
-				
-				int pageSize = m_MMU.getNumPages();
-				
-				int pageTableFrames = (int)Math.ceil(((double)m_MMU.getNumFrames()) / ((double)pageSize));
-		    	int pageTableSize = pageTableFrames*pageSize;
-				
-		    	
-		    	//Since things are compacted, update m_freelist
-				m_freeList.clear();
-
-				//Creates the Memblock for the space after compaction
-				int addr = lastBlock.getRegisterValue(CPU.LIM) + lastBlock.getRegisterValue(CPU.BASE);
-				int remainingSpace = m_MMU.getSize() - addr;
-
-				MemBlock newMemblock = new MemBlock(addr, remainingSpace);
-				m_freeList.add(newMemblock);
 
 				//recurse to actually allocate the space to the process
-				return allocBlock(size);
+				return allocFirstFit(size);
 
 			} else {
 				printPageTable();
@@ -1174,80 +2387,502 @@ public class SOS implements CPU.TrapHandler
 
 	
 	/**
-	 * getNextProcessInMemory
+	 * compactMemory
 	 * 
-	 * Description: This helper method finds the next process in memory after the given address.
+	 * Description: the buddy allocator's compaction.  Moves the processes above the given
+	 * 		address down (see {@link #defrag}) and then gives the buddy allocator back
+	 * 		everything above that address that no process occupies.
 	 * 
-	 * @param nextSlotAddress - look for a pcb with base after this index
-	 * @return the pcb if there is one, otherwise return null
+	 * @param firstEmptyBlock - the lowest free address
+	 * @return true if any process was moved
 	 */
-	private ProcessControlBlock getNextProcessInMemory(int nextSlotAddress) {
-		int nextProcess = Integer.MAX_VALUE;
+	private boolean compactMemory(int firstEmptyBlock)
+	{
+		//Processes on other cores can't run while they are moved
+		long start = System.nanoTime();
+		boolean moved = false;
+		stopOtherCores();
+		try
+		{
+			moved = defrag(firstEmptyBlock);
+		}
+		finally
+		{
+			resumeOtherCores();
+		}
+		m_syncPauses.record(System.nanoTime() - start);
 
-		
-		ProcessControlBlock selected = null;
-		for (ProcessControlBlock pcb : m_processes) {
+		if (!moved) {
+			return false;
+		}
+		m_compactions++;
+
+		//Everything below firstEmptyBlock is in use.  Above it the free memory is the gaps
+		//left by processes that couldn't be moved plus the block at the top.
+		int pageSize = m_MMU.getPageSize();
+		int addr = firstEmptyBlock;
+		m_buddy.clear();
+		ProcessControlBlock pcb;
+		while ((pcb = getNextProcessInMemory(addr)) != null) {
 			int base = pcb.getRegisterValue(CPU.BASE);
-
-			if (base < nextSlotAddress) {
-				continue;
+			if (base > addr) {
+				m_buddy.free(addr / pageSize, (base - addr) / pageSize);
 			}
+			addr = base + pcb.getRegisterValue(CPU.LIM);
+		}
+		if (addr < m_MMU.getSize()) {
+			m_buddy.free(addr / pageSize, (m_MMU.getSize() - addr) / pageSize);
+		}
+		return true;
+	}//compactMemory
 
-			if (base < nextProcess ) {
-				nextProcess = base;
-				selected = pcb;
+	/**
+	 * compactUntilFits
+	 * 
+	 * Description: the bounded synchronous compaction used by first fit.  Starting with the
+	 * 		lowest free block, the process just above it is slid down (which moves the free
+	 * 		block up to merge with the next one) until some free block is big enough.  Only
+	 * 		the processes below that point are moved, so the pause is as short as it can be.
+	 * 		As in {@link #compactStep}, a process running on another core is never moved
+	 * 		since that core may be waiting to handle a page fault at its old address.  The
+	 * 		hole below such a process stays where it is and compaction carries on with the
+	 * 		next hole above it, so this can fail even when there is enough free memory.
+	 * 
+	 * @param size - the size of the block that is needed
+	 * @return true if a big enough free block was made
+	 */
+	private boolean compactUntilFits(int size)
+	{
+		long start = System.nanoTime();
+		boolean moved = false;
+		boolean fits = false;
+		stopOtherCores();
+		try
+		{
+			int from = 0;
+			while (!(fits = (getLargestFreeBlock() >= size))) {
+				MemBlock hole = getLowestFreeBlock(from);
+				if (hole == null) {
+					break;
+				}
+				ProcessControlBlock pcb = getNextProcessInMemory(hole.getAddr());
+				if (pcb == null) {
+					break;
+				}
+				if (pcb.isRunningElsewhere()) {
+					from = pcb.getRegisterValue(CPU.BASE) + pcb.getRegisterValue(CPU.LIM);
+					continue;
+				}
+				moveProcess(pcb, hole.getAddr());
+				moved = true;
 			}
-
 		}
-
-		return selected;
-	}
-
+		finally
+		{
+			resumeOtherCores();
+		}
+		m_syncPauses.record(System.nanoTime() - start);
+		if (moved) {
+			m_compactions++;
+		}
+		return fits;
+	}//compactUntilFits
 
 	/**
-	 * defrag
+	 * compactStep
 	 * 
-	 * Description: This helper method compacts all the memory
-	 * 
-	 * @param firstEmptyBlock - shifts processes after this index to this index 
-	 * @return the last pcb moved. If there isn't one, return null
+	 * Description: the incremental compactor, which runs at every clock interrupt.  While
+	 * 		its budget of pages lasts it moves the highest process that fits into the
+	 * 		lowest free block, so the free memory gathers at the top a few pages at a
+	 * 		time instead of in one long pause.  Processes bigger than the budget are left
+	 * 		for {@link #compactUntilFits}.  (The buddy allocator's blocks are aligned so
+	 * 		it only compacts when an allocation fails.)
 	 */
-	private ProcessControlBlock defrag(int firstEmptyBlock) {
+	private void compactStep()
+	{
+		if (m_buddy != null || m_compactPagesPerTick <= 0) {
+			return;
+		}
 
-		ProcessControlBlock nextProcess = null;
-		
-		//finds the first process after firstEmptyBlock
-		nextProcess = getNextProcessInMemory(firstEmptyBlock);
+		double fragmentation = getFragmentation();
+		m_totalTickFragmentation += fragmentation;
+		m_fragSamples++;
+		if (fragmentation == 0.0) {
+			return;
+		}
 
-		//Base Case: No more processes after the first empty block
-		if (nextProcess == null)
-			return null;
+		int pageSize = m_MMU.getPageSize();
+		int budget = m_compactPagesPerTick * pageSize;
+		long start = System.nanoTime();
+		boolean stopped = false;
+		try
+		{
+			while (budget > 0) {
+				MemBlock hole = getLowestFreeBlock();
+				int limit = Math.min(budget, hole.getSize());
+
+				//Find the highest process above the hole that fits in it.  A
+				//process running on another core is left alone since that core
+				//may be waiting to handle a page fault at its old address.  So
+				//are idle processes, which are replaced too often to be worth
+				//moving.
+				ProcessControlBlock selected = null;
+				for (ProcessControlBlock pcb : m_processes) {
+					int base = pcb.getRegisterValue(CPU.BASE);
+					if (base > hole.getAddr() && pcb.getRegisterValue(CPU.LIM) <= limit
+						&& !pcb.isRunningElsewhere() && pcb.getProcessId() != IDLE_PROC_ID
+						&& (selected == null || base > selected.getRegisterValue(CPU.BASE))) {
+						selected = pcb;
+					}
+				}
+				if (selected == null) {
+					break;
+				}
+
+				//Processes on other cores can't run while they are moved
+				if (!stopped) {
+					stopOtherCores();
+					stopped = true;
+				}
+				budget -= selected.getRegisterValue(CPU.LIM);
+				m_compactionMoves++;
+				m_pagesCompacted += selected.getRegisterValue(CPU.LIM) / pageSize;
+				moveProcess(selected, hole.getAddr());
+			}
+		}
+		finally
+		{
+			if (stopped) {
+				resumeOtherCores();
+				m_incrementalPauses.record(System.nanoTime() - start);
+			}
+		}
+	}//compactStep
+
+	/**
+	 * moveProcess
+	 * 
+	 * Description: moves a process to a lower address and updates m_freeList to match.  The
+	 * 		new location must be free apart from any part of it that the process itself
+	 * 		already occupies.  The other cores must be stopped.
+	 * 
+	 * @param pcb - the process to move
+	 * @param newBase - where it goes
+	 */
+	private void moveProcess(ProcessControlBlock pcb, int newBase)
+	{
+		int oldBase = pcb.getRegisterValue(CPU.BASE);
+		int size = pcb.getRegisterValue(CPU.LIM);
+
+		pcb.move(newBase);
+
+		//Free the old location first in case the two overlap
+		addFreeRange(oldBase, size);
+		removeFreeRange(newBase, size);
+	}//moveProcess
+
+	/**
+	 * addFreeRange
+	 * 
+	 * Description: adds a range of addresses to m_freeList, merging it with the free blocks
+	 * 		directly below and above it
+	 * 
+	 * @param start - the first address in the range
+	 * @param size - the number of addresses in the range
+	 */
+	private void addFreeRange(int start, int size)
+	{
+		MemBlock below = null;
+		MemBlock above = null;
+		for (MemBlock mem : m_freeList) {
+			if (mem.m_addr + mem.m_size == start) {
+				below = mem;
+			}
+			else if (mem.m_addr == start + size) {
+				above = mem;
+			}
+		}
+
+		if (above != null) {
+			m_freeList.remove(above);
+			size += above.m_size;
+			if (m_debug)
+				System.out.println("Merging Up memory blocks " + start + " to " + (start+size));
+		}
+		if (below != null) {
+			below.m_size += size;
+			if (m_debug)
+				System.out.println("Merging Down memory blocks " + below.m_addr + " to " + (below.m_addr+below.m_size));
+		}
+		else {
+			m_freeList.add(new MemBlock(start, size));
+		}
+	}//addFreeRange
+
+	/**
+	 * removeFreeRange
+	 * 
+	 * Description: takes a range of addresses out of the free block that holds it, leaving
+	 * 		whatever is below and above the range free
+	 * 
+	 * @param start - the first address in the range
+	 * @param size - the number of addresses in the range
+	 */
+	private void removeFreeRange(int start, int size)
+	{
+		for (MemBlock mem : m_freeList) {
+			if (mem.m_addr <= start && start + size <= mem.m_addr + mem.m_size) {
+				int end = mem.m_addr + mem.m_size;
+				m_freeList.remove(mem);
+				if (start > mem.m_addr) {
+					m_freeList.add(new MemBlock(mem.m_addr, start - mem.m_addr));
+				}
+				if (end > start + size) {
+					m_freeList.add(new MemBlock(start + size, end - start - size));
+				}
+				return;
+			}
+		}
+		throw new IllegalStateException("addresses " + start + " to " + (start + size - 1)
+		                                + " are not free");
+	}//removeFreeRange
+
+	/**
+	 * getLowestFreeBlock
+	 * 
+	 * @return the free block with the lowest address (m_freeList must not be empty)
+	 */
+	private MemBlock getLowestFreeBlock()
+	{
+		return getLowestFreeBlock(0);
+	}//getLowestFreeBlock
+
+	/**
+	 * getLowestFreeBlock
+	 * 
+	 * @param from - the lowest address to consider
+	 * @return the free block with the lowest address at or above from -OR- null if there
+	 * 		isn't one
+	 */
+	private MemBlock getLowestFreeBlock(int from)
+	{
+		MemBlock lowest = null;
+		for (MemBlock mem : m_freeList) {
+			if (mem.m_addr >= from && (lowest == null || mem.m_addr < lowest.m_addr)) {
+				lowest = mem;
+			}
+		}
+		return lowest;
+	}//getLowestFreeBlock
+
+	/**
+	 * getLargestFreeBlock
+	 * 
+	 * @return the size of the largest block in m_freeList
+	 */
+	private int getLargestFreeBlock()
+	{
+		int largest = 0;
+		for (MemBlock mem : m_freeList) {
+			largest = Math.max(largest, mem.m_size);
+		}
+		return largest;
+	}//getLargestFreeBlock
+
+	/**
+	 * setCompactionRate
+	 * 
+	 * Description: sets how many pages the incremental compactor may move at each clock
+	 * 		interrupt.  A bigger budget keeps free memory together at the cost of longer
+	 * 		pauses.  (Only the first fit allocator compacts incrementally.)
+	 * 
+	 * @param pagesPerTick - the budget (0 turns incremental compaction off)
+	 */
+	public void setCompactionRate(int pagesPerTick)
+	{
+		m_compactPagesPerTick = Math.max(0, pagesPerTick);
+	}//setCompactionRate
+
+	/**
+	 * getFreeBlocks
+	 * 
+	 * Description: lists the free memory with either allocator.  (With first fit this is
+	 * 		m_freeList itself.)
+	 * 
+	 * @return the free blocks
+	 */
+	private Vector<MemBlock> getFreeBlocks()
+	{
+		if (m_buddy == null) {
+			return m_freeList;
+		}
+
+		int pageSize = m_MMU.getPageSize();
+		Vector<MemBlock> result = new Vector<MemBlock>();
+		for (int[] block : m_buddy.getFreeBlocks()) {
+			result.add(new MemBlock(block[0] * pageSize, block[1] * pageSize));
+		}
+		return result;
+	}//getFreeBlocks
+
+	/**
+	 * getFragmentation
+	 * 
+	 * Description: measures external fragmentation as the fraction of the free memory that
+	 * 		is outside of the largest free block
+	 * 
+	 * @return the fragmentation (0.0 to 1.0)
+	 */
+	private double getFragmentation()
+	{
+		int total = 0;
+		int largest = 0;
+		if (m_buddy != null) {
+			total = m_buddy.getFreeUnits();
+			largest = m_buddy.getLargestFree();
+		}
+		else {
+			for (MemBlock mem : m_freeList) {
+				total += mem.getSize();
+				largest = Math.max(largest, mem.getSize());
+			}
+		}
+		return (total == 0) ? 0.0 : 1.0 - ((double)largest / total);
+	}//getFragmentation
+
+	/**
+	 * getFrameUtilization
+	 * 
+	 * Description: measures how much of physical memory is in use
+	 * 
+	 * @return the fraction (0.0 to 1.0) of the frames outside of the page table that hold
+	 * 		a page
+	 */
+	private double getFrameUtilization()
+	{
+		int usable = m_frameTable.length - m_pageTableSize / m_MMU.getPageSize();
+		return (usable == 0) ? 0.0 : 1.0 - ((double)m_numFreeFrames / usable);
+	}//getFrameUtilization
+
+	/**
+	 * setMemoryAllocator
+	 * 
+	 * Description: chooses how blocks of memory are allocated to processes.  This must be
+	 * 		called before any process is created.
+	 * 
+	 * @param allocator - ALLOC_FIRST_FIT or ALLOC_BUDDY
+	 */
+	public void setMemoryAllocator(int allocator)
+	{
+		if (!m_processes.isEmpty()) {
+			throw new IllegalStateException("the allocator can't be changed once processes exist");
+		}
+
+		int pageSize = m_MMU.getPageSize();
+		int firstPage = m_pageTableSize / pageSize;
+		switch (allocator) {
+			case ALLOC_FIRST_FIT:
+				m_buddy = null;
+				break;
+			case ALLOC_BUDDY:
+				m_buddy = new BuddyAllocator(firstPage, m_MMU.getNumPages() - firstPage);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown memory allocator: " + allocator);
+		}
+	}//setMemoryAllocator
+
+	/**
+	 * getMemoryStatistics
+	 *
+	 * @return a summary of the memory allocator's work
+	 */
+	public String getMemoryStatistics()
+	{
+		double avgMicros = (m_allocs == 0) ? 0.0 : m_allocNanos / 1000.0 / m_allocs;
+		double avgFrag = (m_allocs == 0) ? 0.0 : 100.0 * m_totalFragmentation / m_allocs;
+		double avgUtil = (m_allocs == 0) ? 0.0 : 100.0 * m_totalUtilization / m_allocs;
+		String result = "Memory: " + ((m_buddy != null) ? "buddy" : "first fit") + ", "
+			+ m_allocs + " allocations (" + m_allocFailures + " failed), "
+			+ m_compactions + " compactions, "
+			+ String.format("avg alloc=%.1fus max alloc=%.1fus, avg fragmentation=%.1f%%",
+			                avgMicros, m_maxAllocNanos / 1000.0, avgFrag)
+			+ String.format(", avg frame utilization=%.1f%%", avgUtil);
+		if (m_fragSamples > 0) {
+			result = result + String.format("\nIncremental compaction: %d pages/tick, %d moves (%d pages), avg fragmentation at clock ticks=%.1f%%",
+			                                m_compactPagesPerTick, m_compactionMoves, m_pagesCompacted,
+			                                100.0 * m_totalTickFragmentation / m_fragSamples);
+		}
+		result = result + "\n" + m_incrementalPauses + "\n" + m_syncPauses;
+		if (m_buddy != null) {
+			result = result + "\n" + m_buddy;
+		}
+		return result;
+	}//getMemoryStatistics
+
+	/**
+	 * getNextProcessInMemory
+	 * 
+	 * Description: This helper method finds the next process in memory after the given address.
+	 * 
+	 * @param nextSlotAddress - look for a pcb with base after this index
+	 * @return the pcb if there is one, otherwise return null
+	 */
+	private ProcessControlBlock getNextProcessInMemory(int nextSlotAddress) {
+		int nextProcess = Integer.MAX_VALUE;
 
-		//the location of slot after the process has been shifted
-		int emptySlot = firstEmptyBlock + nextProcess.getRegisterValue(CPU.LIM);
-		
-		int endOfNextProcess = nextProcess.getRegisterValue(CPU.BASE) + nextProcess.getRegisterValue(CPU.LIM);
-	
-		nextProcess.move(firstEmptyBlock);
-		
-		if (m_debug)
-			printMemAlloc();
-		
-		//find the next process to shift
-		ProcessControlBlock pcb = getNextProcessInMemory(endOfNextProcess);
-
-		//if there is no more processes to shift, return nextProcess
-		if (pcb == null)
-			return nextProcess;
-		//otherwise shift the next next process
-		ProcessControlBlock lastPCB = defrag(emptySlot);
-		
-		//if lastPCB is null, then we hit the base case
-		if (lastPCB == null)
-			return pcb; 
-		else
-			return lastPCB;
 		
+		ProcessControlBlock selected = null;
+		for (ProcessControlBlock pcb : m_processes) {
+			int base = pcb.getRegisterValue(CPU.BASE);
+
+			if (base < nextSlotAddress) {
+				continue;
+			}
+
+			if (base < nextProcess ) {
+				nextProcess = base;
+				selected = pcb;
+			}
+
+		}
+
+		return selected;
+	}
+
+
+	/**
+	 * defrag
+	 * 
+	 * Description: This helper method compacts all the memory above an address by sliding
+	 * 		each process down against the one below it.  A process running on another core
+	 * 		is left where it is (that core may be waiting to handle a page fault at its old
+	 * 		address) and the processes above it are slid down against it instead.
+	 * 
+	 * @param firstEmptyBlock - shifts processes after this index to this index 
+	 * @return true if any process was moved
+	 */
+	private boolean defrag(int firstEmptyBlock) {
+
+		boolean moved = false;
+
+		//where the next process goes
+		int emptySlot = firstEmptyBlock;
+
+		ProcessControlBlock pcb;
+		while ((pcb = getNextProcessInMemory(emptySlot)) != null) {
+			if (pcb.getRegisterValue(CPU.BASE) > emptySlot && !pcb.isRunningElsewhere()) {
+				if (pcb.move(emptySlot)) {
+					moved = true;
+				}
+
+				if (m_debug)
+					printMemAlloc();
+			}
+			emptySlot = pcb.getRegisterValue(CPU.BASE) + pcb.getRegisterValue(CPU.LIM);
+		}
+
+		return moved;
 	}
 
 	/**
@@ -1258,197 +2893,777 @@ public class SOS implements CPU.TrapHandler
 	 */
 	private void freeCurrProcessMemBlock()
 	{
+		freeBlock(m_currProcess.getRegisterValue(CPU.BASE),
+		          m_currProcess.getRegisterValue(CPU.LIM));
+	}//freeCurrProcessMemBlock
 
-		int start = m_currProcess.getRegisterValue(CPU.BASE);
-		int size = m_currProcess.getRegisterValue(CPU.LIM);
+	/**
+	 * freeBlock
+	 * 
+	 * Description: frees a block from allocBlock, merges any contiguous MemBlocks
+	 * 
+	 * @param start the address of the block
+	 * @param size  the size of the block
+	 */
+	void freeBlock(int start, int size)
+	{
+		//Give back the block's frames and swap space
+		releasePages(start, size);
+
+		if (m_buddy != null) {
+			m_buddy.free(start / m_MMU.getPageSize(), size / m_MMU.getPageSize());
+			if (m_debug) {
+				System.out.println("Freeing memory from " + start + " to " + (start+size));
+				printMemAlloc();
+			}
+			return;
+		}
 
-		//Create a new Memblock to replace the removed process
-		MemBlock newSpace = new MemBlock(start, size);
-		m_freeList.add(newSpace);
-		
 		if (m_debug) {
 			System.out.println("Freeing memory from " + start + " to " + (start+size));
 			printMemAlloc();
 		}
-		
-		//Iterate through m_freeList to looking for adjacent Memblocks, if found, merge them with
-		//the new Memblock and mark them for deletion
-		
-		Vector<MemBlock> delete = new Vector<SOS.MemBlock>();
-		for (MemBlock mem : m_freeList) {
 
-			//a MemBlock exists below to merge with
-			if (newSpace.compareTo(mem) == mem.getSize()) {
-				newSpace.m_addr = mem.m_addr;
-				newSpace.m_size += mem.m_size;
-				delete.add(mem);
+		//Replace the removed process with a free block, merged with any free
+		//blocks on either side of it
+		addFreeRange(start, size);
+
+		if (m_debug) 
+			printMemAlloc();
 		
-				if (m_debug)
-					System.out.println("Merging Down memory blocks " + newSpace.m_addr + " to " + (newSpace.m_addr+newSpace.m_size));
-				
+	}//freeBlock
+
+	/**
+	 * printProcessTable      **DEBUGGING**
+	 *
+	 * prints all the processes in the process table
+	 */
+	private void printProcessTable()
+	{
+		debugPrintln("");
+		debugPrintln("Process Table (" + m_processes.size() + " processes)");
+		debugPrintln("======================================================================");
+		for(ProcessControlBlock pi : m_processes)
+		{
+			debugPrintln("    " + pi);
+		}//for
+		debugPrintln("----------------------------------------------------------------------");
+
+	}//printProcessTable
+
+	
+	/**
+     * printMemAlloc                 *DEBUGGING*
+     *
+     * outputs the contents of m_freeList and m_processes to the console and
+     * performs a fragmentation analysis.  It also prints the value in
+     * RAM at the BASE and LIMIT registers.  This is useful for
+     * tracking down errors related to moving process in RAM.
+     *
+     * SIDE EFFECT:  The contents of m_freeList and m_processes are sorted.
+     *
+     */
+    private void printMemAlloc()
+    {
+        //If verbose mode is off, do nothing
+        if (!m_verbose) return;
+
+        //Print a header
+        System.out.println("\n----------========== Memory Allocation Table ==========----------");
+        
+        //Sort the lists by address
+        Vector<MemBlock> freeList = getFreeBlocks();
+        Collections.sort(m_processes);
+        Collections.sort(freeList);
+
+        //Initialize references to the first entry in each list
+        MemBlock m = null;
+        ProcessControlBlock pi = null;
+        ListIterator<MemBlock> iterFree = freeList.listIterator();
+        ListIterator<ProcessControlBlock> iterProc = m_processes.listIterator();
+        if (iterFree.hasNext()) m = iterFree.next();
+        if (iterProc.hasNext()) pi = iterProc.next();
+
+        //Loop over both lists in order of their address until we run out of
+        //entries in both lists
+        while ((pi != null) || (m != null))
+        {
+            //Figure out the address of pi and m.  If either is null, then assign
+            //them an address equivalent to +infinity
+            int pAddr = Integer.MAX_VALUE;
+            int mAddr = Integer.MAX_VALUE;
+            if (pi != null)  pAddr = pi.getRegisterValue(CPU.BASE);
+            if (m != null)  mAddr = m.getAddr();
+
+            //If the process has the lowest address then print it and get the
+            //next process
+            if ( mAddr > pAddr )
+            {
+                int size = pi.getRegisterValue(CPU.LIM);
+                System.out.print(" Process " + pi.processId +  " (addr=" + pAddr + " size=" + size + " words");
+                System.out.print(" / " + (size / m_MMU.getPageSize()) + " pages)" );
+//                System.out.print(" @BASE=" + m_MMU.read(pi.getRegisterValue(CPU.BASE))
+//                                 + " @SP=" + m_MMU.read(pi.getRegisterValue(CPU.SP)));
+                System.out.print(" BASE=" + pi.getRegisterValue(CPU.BASE)
+                        + " SP=" + pi.getRegisterValue(CPU.SP)
+                        + " PC=" + pi.getRegisterValue(CPU.PC));
+                System.out.println();
+                if (iterProc.hasNext())
+                {
+                    pi = iterProc.next();
+                }
+                else
+                {
+                    pi = null;
+                }
+            }//if
+            else
+            {
+                //The free memory block has the lowest address so print it and
+                //get the next free memory block
+                System.out.println("    Open(addr=" + mAddr + " size=" + m.getSize() + ")");
+                if (iterFree.hasNext())
+                {
+                    m = iterFree.next();
+                }
+                else
+                {
+                    m = null;
+                }
+            }//else
+        }//while
+            
+        //Print a footer
+        System.out.println("-----------------------------------------------------------------");
+        
+    }//printMemAlloc
+
+
+	/**
+	 * class SharedText
+	 *
+	 * is the image of a Program that processes running it share (see
+	 * mapSharedImage)
+	 */
+	private static class SharedText
+	{
+		/** the frame holding each page of the image (or FRAME_FREE) */
+		private final int[] frames;
+
+		public SharedText(int numPages)
+		{
+			this.frames = new int[numPages];
+			Arrays.fill(this.frames, FRAME_FREE);
+		}
+
+	}//class SharedText
+
+	/**
+	 * class MemBlock
+	 *
+	 * This class contains relevant info about a memory block in RAM.
+	 *
+	 */
+	private class MemBlock implements Comparable<MemBlock>
+	{
+		/** the address of the block */
+		private int m_addr;
+		/** the size of the block */
+		private int m_size;
+
+		/**
+		 * ctor does nothing special
+		 */
+		public MemBlock(int addr, int size)
+		{
+			m_addr = addr;
+			m_size = size;
+		}
+
+		/** Accessory methods */
+		public int getAddr() { return m_addr; }
+		public int getSize() { return m_size; }
+
+		/**
+		 * compareTo              
+		 *
+		 * compares this to another MemBlock object based on address
+		 */
+		public int compareTo(MemBlock m)
+		{
+			return this.m_addr - m.m_addr;
+		}
+
+	}//class MemBlock
+
+	/**
+	 * class BlockKey
+	 *
+	 * identifies what a blocked process is waiting for.  The address is
+	 * ignored for an Open since any process waiting to open a device can
+	 * proceed when it is closed.
+	 */
+	private static class BlockKey
+	{
+		private final Device m_dev;
+		private final int m_op;
+		private final int m_addr;
+
+		public BlockKey(Device dev, int op, int addr)
+		{
+			m_dev = dev;
+			m_op = op;
+			m_addr = (op == SYSCALL_OPEN) ? 0 : addr;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof BlockKey)) return false;
+			BlockKey k = (BlockKey)o;
+			return (m_dev == k.m_dev) && (m_op == k.m_op) && (m_addr == k.m_addr);
+		}
+
+		public int hashCode()
+		{
+			return (System.identityHashCode(m_dev) * 31 + m_op) * 31 + m_addr;
+		}
+
+	}//class BlockKey
+
+	/**
+	 * interface Scheduler
+	 *
+	 * holds the Ready processes and decides which one runs next.  The kernel
+	 * lock is held whenever a scheduler is used.
+	 */
+	private interface Scheduler
+	{
+		/**
+		 * a process has become Ready (it was created, unblocked or taken
+		 * off a core)
+		 */
+		public void add(ProcessControlBlock p);
+
+		/**
+		 * a process that was added is no longer Ready (it was dispatched or
+		 * it exited)
+		 */
+		public void remove(ProcessControlBlock p);
+
+		/**
+		 * chooses the process to run next on the current core.  This does
+		 * not remove it.
+		 *
+		 * @param curr  the process on the core if it could keep running,
+		 *              otherwise null.  It has not been added.
+		 * @return the chosen process (which may be curr) -OR- null if no
+		 *         process is Ready
+		 */
+		public ProcessControlBlock select(ProcessControlBlock curr);
+
+		/**
+		 * a process has used up its whole time slice
+		 */
+		public void expired(ProcessControlBlock p);
+
+		/**
+		 * @return the length (in ticks) of the next time slice for a process
+		 */
+		public int getTimeSlice(ProcessControlBlock p);
+
+	}//interface Scheduler
+
+	/**
+	 * class RandomScheduler
+	 *
+	 * picks any Ready process at random.  Each process records its own
+	 * position in the list so that it can be removed in constant time.
+	 */
+	private class RandomScheduler implements Scheduler
+	{
+		private Vector<ProcessControlBlock> m_readyList = new Vector<ProcessControlBlock>();
+
+		public void add(ProcessControlBlock p)
+		{
+			p.readyIndex = m_readyList.size();
+			m_readyList.add(p);
+		}
+
+		/**
+		 * the last process in the list takes the removed one's place
+		 */
+		public void remove(ProcessControlBlock p)
+		{
+			ProcessControlBlock last = m_readyList.remove(m_readyList.size() - 1);
+			if (last != p)
+			{
+				m_readyList.set(p.readyIndex, last);
+				last.readyIndex = p.readyIndex;
+			}
+			p.readyIndex = -1;
+		}
+
+		public ProcessControlBlock select(ProcessControlBlock curr)
+		{
+			int numChoices = m_readyList.size() + ((curr != null) ? 1 : 0);
+			if (numChoices == 0)
+			{
+				return null;        // no processes are Ready
+			}
+
+			int choice = ((int)(Math.random() * 2147483647)) % numChoices;
+			if (choice < m_readyList.size())
+			{
+				return m_readyList.get(choice);
+			}
+			return curr;
+		}
+
+		public void expired(ProcessControlBlock p) { }
+
+		public int getTimeSlice(ProcessControlBlock p)
+		{
+			return CPU.CLOCK_FREQ;
+		}
+
+		public String toString()
+		{
+			return "random";
+		}
+
+	}//class RandomScheduler
+
+	/**
+	 * class StarvationScheduler
+	 *
+	 * selects a process to run in a manner to minimize starvation and
+	 * process switching
+	 */
+	private class StarvationScheduler implements Scheduler
+	{
+		private LinkedHashSet<ProcessControlBlock> m_ready = new LinkedHashSet<ProcessControlBlock>();
+
+		public void add(ProcessControlBlock p)
+		{
+			m_ready.add(p);
+		}
+
+		public void remove(ProcessControlBlock p)
+		{
+			m_ready.remove(p);
+		}
+
+		public ProcessControlBlock select(ProcessControlBlock curr)
+		{
+			//Always let the idle process finish to avoid extra switching
+			if ((curr != null) && (curr.getProcessId() == SOS.IDLE_PROC_ID))
+			{
+				return curr;
+			}
+
+			ProcessControlBlock selected = null;
+
+			//idle process tick minimization
+			double minValue = Double.MAX_VALUE;
+			for (ProcessControlBlock s : m_ready) {
+				if (s.avgStarve < minValue) {
+					selected = s;
+					minValue = s.avgStarve + 300;
+				}
+			}
+			if ((curr != null) && (curr.avgStarve < minValue)) {
+				selected = curr;
+			}
+
+			return selected;
+		}
+
+		public void expired(ProcessControlBlock p) { }
+
+		public int getTimeSlice(ProcessControlBlock p)
+		{
+			return CPU.CLOCK_FREQ;
+		}
+
+		public String toString()
+		{
+			return "least starved";
+		}
+
+	}//class StarvationScheduler
+
+	/**
+	 * class MlfqScheduler
+	 *
+	 * is a multi-level feedback queue.  Each level is a round robin queue
+	 * with its own time slice, and a process is always taken from the
+	 * highest priority level that has one.  New processes start at the top.
+	 * A process that uses up its whole time slice is CPU-bound so it moves
+	 * down a level (where slices are longer); a process that blocks for I/O
+	 * first keeps its level, so interactive processes stay near the top.
+	 *
+	 * To keep the CPU-bound processes at the bottom from starving, a process
+	 * that has been Ready for longer than the starvation limit is boosted
+	 * back to the top level.  Since every level is first in, first out only
+	 * the front of each level needs to be checked.
+	 */
+	private class MlfqScheduler implements Scheduler
+	{
+		private LinkedList<ProcessControlBlock>[] m_levels;
+		private int[] m_quanta;
+		private int m_starveLimit;
+
+		/** statistics */
+		private long m_demotions = 0;
+		private long m_boosts = 0;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public MlfqScheduler(int[] quanta, int starveLimit)
+		{
+			if (quanta.length == 0)
+			{
+				throw new IllegalArgumentException("an MLFQ needs at least one level");
+			}
+			m_quanta = quanta.clone();
+			m_starveLimit = starveLimit;
+			m_levels = new LinkedList[quanta.length];
+			for(int i = 0; i < quanta.length; i++)
+			{
+				m_levels[i] = new LinkedList<ProcessControlBlock>();
+			}
+		}
+
+		public void add(ProcessControlBlock p)
+		{
+			p.level = Math.min(p.level, m_levels.length - 1);
+			m_levels[p.level].add(p);
+		}
+
+		/**
+		 * (the process is almost always at the front of its level)
+		 */
+		public void remove(ProcessControlBlock p)
+		{
+			m_levels[p.level].remove(p);
+		}
+
+		/**
+		 * the current process keeps running unless a process at the same
+		 * level or higher is waiting, in which case it goes to the back of
+		 * its level
+		 */
+		public ProcessControlBlock select(ProcessControlBlock curr)
+		{
+			boostStarved();
+
+			for(int i = 0; i < m_levels.length; i++)
+			{
+				if ((curr != null) && (curr.level < i))
+				{
+					break;
+				}
+				if (!m_levels[i].isEmpty())
+				{
+					return m_levels[i].getFirst();
+				}
+			}
+			return curr;
+		}
+
+		/**
+		 * (idle processes exit as soon as they have run so they are left
+		 * where they are)
+		 */
+		public void expired(ProcessControlBlock p)
+		{
+			if ((p.level < m_levels.length - 1) && (p.getProcessId() != IDLE_PROC_ID))
+			{
+				p.level++;
+				m_demotions++;
+			}
+		}
+
+		public int getTimeSlice(ProcessControlBlock p)
+		{
+			return m_quanta[Math.min(p.level, m_quanta.length - 1)];
+		}
+
+		/**
+		 * boostStarved
+		 *
+		 * moves every process that has waited too long to the top level
+		 */
+		private void boostStarved()
+		{
+			long now = getSystemTime();
+			for(int i = 1; i < m_levels.length; i++)
+			{
+				LinkedList<ProcessControlBlock> level = m_levels[i];
+				while(!level.isEmpty()
+				      && (now - level.getFirst().getLastReadyTime() > m_starveLimit))
+				{
+					ProcessControlBlock p = level.removeFirst();
+					p.level = 0;
+					m_levels[0].add(p);
+					m_boosts++;
+				}
+			}
+		}//boostStarved
+
+		public String toString()
+		{
+			return "MLFQ with " + m_levels.length + " levels (" + m_demotions
+				+ " demotions, " + m_boosts + " boosts)";
+		}
+
+	}//class MlfqScheduler
+
+	/**
+	 * class CfsScheduler
+	 *
+	 * is a completely fair scheduler.  It always runs the Ready process that
+	 * has had the least (weighted) virtual runtime, so every process gets an
+	 * equal share of the CPU over time.  The Ready processes are kept in a
+	 * red-black tree (a TreeSet) ordered by virtual runtime so the next
+	 * process is found in O(log n) time.  A process's virtual runtime only
+	 * changes while it is running, i.e., while it isn't in the tree.
+	 *
+	 * Time slices aren't fixed: the target latency is divided among the
+	 * runnable processes in proportion to their weight (but no slice is
+	 * shorter than the minimum granularity).
+	 *
+	 * A process that has been blocked (or is new) would have a much smaller
+	 * virtual runtime than the rest and would monopolize the CPU until it
+	 * caught up, so when it becomes Ready its virtual runtime is raised to
+	 * just under the smallest one in the tree.
+	 */
+	private class CfsScheduler implements Scheduler
+	{
+		private TreeSet<ProcessControlBlock> m_tree = new TreeSet<ProcessControlBlock>(
+			new Comparator<ProcessControlBlock>() {
+				public int compare(ProcessControlBlock a, ProcessControlBlock b)
+				{
+					if (a.vruntime != b.vruntime)
+					{
+						return (a.vruntime < b.vruntime) ? -1 : 1;
+					}
+					return a.serial - b.serial;
+				}
+			});
+
+		/** the total weight of the processes in the tree */
+		private long m_totalWeight = 0;
+
+		/** never decreases; see the class comment */
+		private long m_minVruntime = 0;
+
+		public void add(ProcessControlBlock p)
+		{
+			p.vruntime = Math.max(p.vruntime, m_minVruntime - CFS_TARGET_LATENCY / 2);
+			m_tree.add(p);
+			m_totalWeight += p.weight;
+		}
+
+		public void remove(ProcessControlBlock p)
+		{
+			if (m_tree.remove(p))
+			{
+				m_totalWeight -= p.weight;
+			}
+		}
+
+		/**
+		 * the current process keeps running unless another has had less
+		 * virtual runtime
+		 */
+		public ProcessControlBlock select(ProcessControlBlock curr)
+		{
+			ProcessControlBlock leftmost = m_tree.isEmpty() ? null : m_tree.first();
+			if (curr != null)
+			{
+				curr.chargeRuntime(m_CPU);
+				if ((leftmost == null) || (curr.vruntime <= leftmost.vruntime))
+				{
+					leftmost = curr;
+				}
 			}
-
-			//a MemBlock exists above to merge with
-			if (mem.compareTo(newSpace) == newSpace.getSize()) {
-				newSpace.m_size += mem.m_size;
-				delete.add(mem);				
-				if (m_debug)
-					System.out.println("Merging Up memory blocks " + newSpace.m_addr + " to " + (newSpace.m_addr+newSpace.m_size));
+			if (leftmost != null)
+			{
+				m_minVruntime = Math.max(m_minVruntime, leftmost.vruntime);
 			}
+			return leftmost;
+		}
+
+		public void expired(ProcessControlBlock p) { }
 
+		/**
+		 * (the process isn't in the tree when this is called)
+		 */
+		public int getTimeSlice(ProcessControlBlock p)
+		{
+			long slice = CFS_TARGET_LATENCY * p.weight / (m_totalWeight + p.weight);
+			return (int)Math.max(CFS_MIN_GRANULARITY, slice);
 		}
 
-		//Because we can't delete them while iterating through
-		for (MemBlock mem : delete) {
-			m_freeList.remove(mem);
+		public String toString()
+		{
+			return "CFS (" + m_tree.size() + " Ready, min vruntime=" + m_minVruntime + ")";
 		}
-		if (m_debug) 
-			printMemAlloc();
-		
-	}//freeCurrProcessMemBlock
+
+	}//class CfsScheduler
 
 	/**
-	 * printProcessTable      **DEBUGGING**
+	 * class PerCoreScheduler
 	 *
-	 * prints all the processes in the process table
+	 * gives every core its own run queue so that the cores don't all
+	 * compete for the same one.  Each queue is a scheduler for the current
+	 * policy and a core only chooses from its own queue, except:
+	 *
+	 *  - A core whose queue is empty (and whose process can't continue)
+	 *    steals the process that the busiest queue would run next.
+	 *
+	 *  - A process that becomes Ready goes back on the queue of the core it
+	 *    last ran on, whose TLB and instruction cache are likely to still
+	 *    hold its pages (soft affinity), unless that queue is busier than
+	 *    the shortest one.
+	 *
+	 *  - Every LOAD_BALANCE_INTERVAL ticks processes are moved from the
+	 *    busiest queue to the shortest until they differ by at most one.
+	 *
+	 * The kernel lock protects the queues, like everything else in SOS.
 	 */
-	private void printProcessTable()
+	private class PerCoreScheduler implements Scheduler
 	{
-		debugPrintln("");
-		debugPrintln("Process Table (" + m_processes.size() + " processes)");
-		debugPrintln("======================================================================");
-		for(ProcessControlBlock pi : m_processes)
-		{
-			debugPrintln("    " + pi);
-		}//for
-		debugPrintln("----------------------------------------------------------------------");
+		private Scheduler[] m_queues;
 
-	}//printProcessTable
+		/** the number of processes in each queue */
+		private int[] m_sizes;
 
-	
-	/**
-     * printMemAlloc                 *DEBUGGING*
-     *
-     * outputs the contents of m_freeList and m_processes to the console and
-     * performs a fragmentation analysis.  It also prints the value in
-     * RAM at the BASE and LIMIT registers.  This is useful for
-     * tracking down errors related to moving process in RAM.
-     *
-     * SIDE EFFECT:  The contents of m_freeList and m_processes are sorted.
-     *
-     */
-    private void printMemAlloc()
-    {
-        //If verbose mode is off, do nothing
-        if (!m_verbose) return;
+		/** the system time of the last load balance */
+		private int m_lastBalance = 0;
 
-        //Print a header
-        System.out.println("\n----------========== Memory Allocation Table ==========----------");
-        
-        //Sort the lists by address
-        Collections.sort(m_processes);
-        Collections.sort(m_freeList);
+		/** statistics */
+		private long m_steals = 0;
+		private long m_balanced = 0;
 
-        //Initialize references to the first entry in each list
-        MemBlock m = null;
-        ProcessControlBlock pi = null;
-        ListIterator<MemBlock> iterFree = m_freeList.listIterator();
-        ListIterator<ProcessControlBlock> iterProc = m_processes.listIterator();
-        if (iterFree.hasNext()) m = iterFree.next();
-        if (iterProc.hasNext()) pi = iterProc.next();
+		public PerCoreScheduler()
+		{
+			m_queues = new Scheduler[m_cores.length];
+			m_sizes = new int[m_cores.length];
+			for(int i = 0; i < m_queues.length; i++)
+			{
+				m_queues[i] = createRunQueue();
+			}
+		}
 
-        //Loop over both lists in order of their address until we run out of
-        //entries in both lists
-        while ((pi != null) || (m != null))
-        {
-            //Figure out the address of pi and m.  If either is null, then assign
-            //them an address equivalent to +infinity
-            int pAddr = Integer.MAX_VALUE;
-            int mAddr = Integer.MAX_VALUE;
-            if (pi != null)  pAddr = pi.getRegisterValue(CPU.BASE);
-            if (m != null)  mAddr = m.getAddr();
+		public void add(ProcessControlBlock p)
+		{
+			int shortest = getShortest();
+			int target = p.lastCore;
+			if ((target < 0) || (m_sizes[target] > m_sizes[shortest]))
+			{
+				target = shortest;
+			}
+			addTo(target, p);
+		}
 
-            //If the process has the lowest address then print it and get the
-            //next process
-            if ( mAddr > pAddr )
-            {
-                int size = pi.getRegisterValue(CPU.LIM);
-                System.out.print(" Process " + pi.processId +  " (addr=" + pAddr + " size=" + size + " words");
-                System.out.print(" / " + (size / m_MMU.getPageSize()) + " pages)" );
-//                System.out.print(" @BASE=" + m_MMU.read(pi.getRegisterValue(CPU.BASE))
-//                                 + " @SP=" + m_MMU.read(pi.getRegisterValue(CPU.SP)));
-                System.out.print(" BASE=" + pi.getRegisterValue(CPU.BASE)
-                        + " SP=" + pi.getRegisterValue(CPU.SP)
-                        + " PC=" + pi.getRegisterValue(CPU.PC));
-                System.out.println();
-                if (iterProc.hasNext())
-                {
-                    pi = iterProc.next();
-                }
-                else
-                {
-                    pi = null;
-                }
-            }//if
-            else
-            {
-                //The free memory block has the lowest address so print it and
-                //get the next free memory block
-                System.out.println("    Open(addr=" + mAddr + " size=" + m.getSize() + ")");
-                if (iterFree.hasNext())
-                {
-                    m = iterFree.next();
-                }
-                else
-                {
-                    m = null;
-                }
-            }//else
-        }//while
-            
-        //Print a footer
-        System.out.println("-----------------------------------------------------------------");
-        
-    }//printMemAlloc
+		public void remove(ProcessControlBlock p)
+		{
+			m_queues[p.queue].remove(p);
+			m_sizes[p.queue]--;
+			p.queue = -1;
+		}
 
+		public ProcessControlBlock select(ProcessControlBlock curr)
+		{
+			int now = getSystemTime();
+			if (now - m_lastBalance >= LOAD_BALANCE_INTERVAL)
+			{
+				m_lastBalance = now;
+				balance();
+			}
 
-	/**
-	 * class MemBlock
-	 *
-	 * This class contains relevant info about a memory block in RAM.
-	 *
-	 */
-	private class MemBlock implements Comparable<MemBlock>
-	{
-		/** the address of the block */
-		private int m_addr;
-		/** the size of the block */
-		private int m_size;
+			int core = m_CPU.getCoreId();
+			ProcessControlBlock next = m_queues[core].select(curr);
+			if (next == null)
+			{
+				int busiest = getBusiest();
+				if (m_sizes[busiest] > 0)
+				{
+					next = m_queues[busiest].select(null);
+					m_steals++;
+				}
+			}
+			return next;
+		}
 
-		/**
-		 * ctor does nothing special
-		 */
-		public MemBlock(int addr, int size)
+		public void expired(ProcessControlBlock p)
 		{
-			m_addr = addr;
-			m_size = size;
+			m_queues[m_CPU.getCoreId()].expired(p);
 		}
 
-		/** Accessory methods */
-		public int getAddr() { return m_addr; }
-		public int getSize() { return m_size; }
+		public int getTimeSlice(ProcessControlBlock p)
+		{
+			return m_queues[m_CPU.getCoreId()].getTimeSlice(p);
+		}
 
 		/**
-		 * compareTo              
+		 * balance
 		 *
-		 * compares this to another MemBlock object based on address
+		 * evens out the lengths of the queues
 		 */
-		public int compareTo(MemBlock m)
+		private void balance()
 		{
-			return this.m_addr - m.m_addr;
+			while(true)
+			{
+				int busiest = getBusiest();
+				int shortest = getShortest();
+				if (m_sizes[busiest] - m_sizes[shortest] <= 1)
+				{
+					break;
+				}
+
+				ProcessControlBlock p = m_queues[busiest].select(null);
+				remove(p);
+				addTo(shortest, p);
+				m_balanced++;
+			}
+		}//balance
+
+		private void addTo(int core, ProcessControlBlock p)
+		{
+			p.queue = core;
+			m_queues[core].add(p);
+			m_sizes[core]++;
 		}
 
-	}//class MemBlock
+		private int getBusiest()
+		{
+			int busiest = 0;
+			for(int i = 1; i < m_sizes.length; i++)
+			{
+				if (m_sizes[i] > m_sizes[busiest]) busiest = i;
+			}
+			return busiest;
+		}
+
+		private int getShortest()
+		{
+			int shortest = 0;
+			for(int i = 1; i < m_sizes.length; i++)
+			{
+				if (m_sizes[i] < m_sizes[shortest]) shortest = i;
+			}
+			return shortest;
+		}
+
+		public String toString()
+		{
+			return m_queues[0] + " on " + m_queues.length + " per-core run queues (steals="
+				+ m_steals + " balanced=" + m_balanced + ")";
+		}
+
+	}//class PerCoreScheduler
 
 	//======================================================================
 	// Inner Classes
@@ -1495,6 +3710,35 @@ public class SOS implements CPU.TrapHandler
 		 */
 		private int numStarvationTicks = 0;
 
+		/**
+		 * The CPU time (in ticks) when this process was created and when it
+		 * last started running
+		 */
+		private int createTime = 0;
+		private int runStart = 0;
+
+		/**
+		 * The number of ticks this process has spent running
+		 */
+		private long runtime = 0;
+
+		/**
+		 * The runtime of this process scaled by NORMAL_WEIGHT / weight (see
+		 * CfsScheduler)
+		 */
+		private long vruntime = 0;
+
+		/**
+		 * This process's share of the CPU relative to other processes
+		 */
+		private int weight = NORMAL_WEIGHT;
+
+		/**
+		 * Distinguishes processes that would otherwise be equal (e.g., idle
+		 * processes all have the same id)
+		 */
+		private final int serial = m_nextSerial++;
+
 		/**
 		 * These are the process' current registers.  If the process is in the
 		 * "running" state then these are out of date
@@ -1523,6 +3767,47 @@ public class SOS implements CPU.TrapHandler
 		 */
 		private int processId = 0;
 
+		/**
+		 * the id of the core this process is running on or -1 if it is not
+		 * running
+		 */
+		private int runningOn = -1;
+
+		/**
+		 * true while the scheduler holds this process (see {@link #addReady})
+		 */
+		private boolean onReadyQueue = false;
+
+		/**
+		 * this process's position in the RandomScheduler's list or -1 if it
+		 * isn't on it
+		 */
+		private int readyIndex = -1;
+
+		/**
+		 * the id of the core this process last ran on (or -1 if it hasn't
+		 * run yet).  The PerCoreScheduler prefers to run it there again.
+		 */
+		private int lastCore = -1;
+
+		/**
+		 * the id of the core whose run queue holds this process in the
+		 * PerCoreScheduler (or -1)
+		 */
+		private int queue = -1;
+
+		/**
+		 * this process's level in the MlfqScheduler (0 is the highest
+		 * priority)
+		 */
+		private int level = 0;
+
+		/**
+		 * true while this process is in the process table (m_processes).
+		 * The placeholders the cores start with never are.
+		 */
+		private boolean inProcessTable = false;
+
 		/**
 		 * constructor
 		 *
@@ -1532,6 +3817,8 @@ public class SOS implements CPU.TrapHandler
 		public ProcessControlBlock(int pid)
 		{
 			this.processId = pid;
+			this.createTime = getSystemTime();
+			this.runStart = m_CPU.getTicks();
 		}
 
 		/**
@@ -1542,6 +3829,24 @@ public class SOS implements CPU.TrapHandler
 			return this.processId;
 		}
 
+		/**
+		 * @return true if this process is running on a core other than the
+		 *         one that is currently executing kernel code
+		 */
+		public boolean isRunningElsewhere()
+		{
+			return (runningOn >= 0) && (runningOn != m_CPU.getCoreId());
+		}
+
+		/**
+		 * @return true if this process could run (it is in the process table
+		 *         and isn't blocked)
+		 */
+		public boolean isReady()
+		{
+			return inProcessTable && !isBlocked();
+		}
+
 		/**
 		 * @return the last time this process was put in the Ready state
 		 */
@@ -1560,9 +3865,13 @@ public class SOS implements CPU.TrapHandler
 		 */
 		public void save(CPU cpu)
 		{
+			//The switch isn't charged to the process
+			chargeRuntime(cpu);
+
 			//A context switch is expensive.  We simulate that here by 
-			//adding ticks to m_CPU
-			m_CPU.addTicks(SAVE_LOAD_TIME);
+			//adding ticks to the CPU
+			cpu.addTicks(SAVE_LOAD_TIME);
+			runStart = cpu.getTicks();
 
 			//Save the registers
 			int[] regs = cpu.getRegisters();
@@ -1578,7 +3887,7 @@ public class SOS implements CPU.TrapHandler
 			//being called for a Block, we'll adjust lastReadyTime in the
 			//unblock method.
 			numReady++;
-			lastReadyTime = m_CPU.getTicks();
+			lastReadyTime = getSystemTime();
 
 		}//save
 
@@ -1593,8 +3902,8 @@ public class SOS implements CPU.TrapHandler
 		public void restore(CPU cpu)
 		{
 			//A context switch is expensive.  We simulate that here by 
-			//adding ticks to m_CPU
-			m_CPU.addTicks(SAVE_LOAD_TIME);
+			//adding ticks to the CPU
+			cpu.addTicks(SAVE_LOAD_TIME);
 
 			//Restore the register values
 			int[] regs = cpu.getRegisters();
@@ -1603,8 +3912,13 @@ public class SOS implements CPU.TrapHandler
 				regs[i] = this.registers[i];
 			}
 
+			//The process gets a whole time slice
+			cpu.setTimeSlice(m_scheduler.getTimeSlice(this));
+			cpu.resetClock();
+			runStart = cpu.getTicks();
+
 			//Record the starve time statistics
-			int starveTime = m_CPU.getTicks() - lastReadyTime;
+			int starveTime = getSystemTime() - lastReadyTime;
 			if (starveTime > maxStarve)
 			{
 				maxStarve = starveTime;
@@ -1614,6 +3928,39 @@ public class SOS implements CPU.TrapHandler
 			avgStarve = avgStarve + (starveTime * (1.0 / d_numReady));
 		}//restore
 
+		/**
+		 * chargeRuntime
+		 *
+		 * adds the ticks since this process last started running (or was
+		 * last charged) to its runtime and virtual runtime
+		 *
+		 * @param cpu  the CPU that the process is running on
+		 */
+		public void chargeRuntime(CPU cpu)
+		{
+			int now = cpu.getTicks();
+			int ran = Math.max(0, now - runStart);
+			runtime += ran;
+			vruntime += (long)ran * NORMAL_WEIGHT / weight;
+			runStart = now;
+		}//chargeRuntime
+
+		/**
+		 * getReport
+		 *
+		 * @param now  the current CPU time
+		 * @return a one line summary of how much of the CPU this process got
+		 *         and how long it waited to get it
+		 */
+		public String getReport(int now)
+		{
+			int lifetime = Math.max(1, now - createTime);
+			return String.format("Process %d: ran %d of %d ticks (%.1f%%), vruntime=%d,"
+			                     + " waited avg=%.1f max=%d ticks over %d dispatches",
+			                     processId, runtime, lifetime, 100.0 * runtime / lifetime,
+			                     vruntime, avgStarve, Math.max(0, maxStarve), numReady);
+		}//getReport
+
 		/**
 		 * block
 		 *
@@ -1633,8 +3980,9 @@ public class SOS implements CPU.TrapHandler
 			blockedForDevice = dev;
 			blockedForOperation = op;
 			blockedForAddr = addr;
+			addBlocked(this);
 
-			debugPrintln("Process " + m_currProcess.getProcessId() + " has been blocked while waiting for " + dev.getId());
+			debugPrintln("Process " + this.getProcessId() + " has been blocked while waiting for " + dev.getId());
 
 		}//block
 
@@ -1648,6 +3996,7 @@ public class SOS implements CPU.TrapHandler
 		public void unblock()
 		{
 			//Reset the info about the block
+			removeBlocked(this);
 			blockedForDevice = null;
 			blockedForOperation = -1;
 			blockedForAddr = -1;
@@ -1655,8 +4004,12 @@ public class SOS implements CPU.TrapHandler
 			//Assuming this method is being called because the process is moving
 			//from the Blocked state to the Ready state, record the current
 			//system time for calculating starve times for this process.
-			lastReadyTime = m_CPU.getTicks();
+			lastReadyTime = getSystemTime();
 
+			if (runningOn < 0)
+			{
+				addReady(this);
+			}
 		}//unblock
 
 		/**
@@ -1700,6 +4053,17 @@ public class SOS implements CPU.TrapHandler
 			return false;
 		}//isBlockedForDevice
 
+		/**
+		 * getBlockKey
+		 *
+		 * @return what this process is blocked for as a key into the index
+		 *         of blocked processes
+		 */
+		public BlockKey getBlockKey()
+		{
+			return new BlockKey(blockedForDevice, blockedForOperation, blockedForAddr);
+		}//getBlockKey
+
 		/**
 		 * getRegisterValue
 		 *
@@ -1781,9 +4145,9 @@ public class SOS implements CPU.TrapHandler
 				}
 				result = result + ": ";
 			}
-			else if (this == m_currProcess)
+			else if (runningOn >= 0)
 			{
-				result = result + "is RUNNING: ";
+				result = result + "is RUNNING on core " + runningOn + ": ";
 			}
 			else
 			{
@@ -1862,7 +4226,7 @@ public class SOS implements CPU.TrapHandler
 		{
 
 //			if (newBase < 0) {
-			if (newBase < m_MMU.getPageSize()) {
+			if (newBase < m_pageTableSize) {
 				//Something bad has happened
 				return false;
 			}
@@ -1876,18 +4240,43 @@ public class SOS implements CPU.TrapHandler
 			int programSize = getRegisterValue(CPU.LIM);
 
 			int oldPage = oldBase / m_MMU.getPageSize();
-			int newFrame = m_RAM.read(oldPage);
-			
 			int newPage = newBase / m_MMU.getPageSize();
-			int oldFrame = m_RAM.read(newPage);
 			
+			//Swap the page table entries (and the swap slots) of the pages
+			//in the two ranges.  Status bits go with their frames.
 			int numPages = programSize/m_MMU.getPageSize();
 			for (int i = 0; i < numPages; ++i) {
-				newFrame = m_RAM.read(oldPage+i);
-				oldFrame = m_RAM.read(newPage+i);
+				int movingEntry = m_RAM.read(oldPage+i);
+				int displacedEntry = m_RAM.read(newPage+i);
 				
-				m_RAM.write(newPage+i, newFrame);
-				m_RAM.write(oldPage+i, oldFrame);
+				m_RAM.write(newPage+i, movingEntry);
+				m_RAM.write(oldPage+i, displacedEntry);
+				if (m_swap != null) {
+					m_swap.swapSlots(newPage+i, oldPage+i);
+				}
+
+				//Shoot down the stale translations (the other cores have
+				//been stopped by allocBlock)
+				m_MMU.invalidatePage(newPage+i);
+				m_MMU.invalidatePage(oldPage+i);
+
+				//Keep the frame table up to date and don't let the CPU
+				//execute decoded instructions that were cached for either
+				//frame before the remap
+				if ((movingEntry & MMU.VALID) != 0) {
+					int frame = movingEntry >> m_MMU.getOffsetSize();
+					if (m_frameTable[frame] != FRAME_SHARED) {
+						m_frameTable[frame] = newPage+i;
+					}
+					m_RAM.invalidateInstructions(movingEntry & m_MMU.getPageMask(), m_MMU.getPageSize());
+				}
+				if ((displacedEntry & MMU.VALID) != 0) {
+					int frame = displacedEntry >> m_MMU.getOffsetSize();
+					if (m_frameTable[frame] != FRAME_SHARED) {
+						m_frameTable[frame] = oldPage+i;
+					}
+					m_RAM.invalidateInstructions(displacedEntry & m_MMU.getPageMask(), m_MMU.getPageSize());
+				}
 			}
 			
 
@@ -1900,29 +4289,17 @@ public class SOS implements CPU.TrapHandler
 			int newPC = this.getRegisterValue(CPU.PC) - oldBase + newBase;
 			setRegisterValue(CPU.PC, newPC);
 
-			//if this is the current process then update CPU registers
-			if (this == m_currProcess) {
-				m_CPU.setBASE(newBase);
-				
-				newSP = m_CPU.getSP() - oldBase + newBase;
-				m_CPU.setPC(newPC);
-				
-				newPC = m_CPU.getPC() - oldBase + newBase;
-				m_CPU.setSP(newSP);
+			//if this process is running then the live registers on its core
+			//are newer than the saved ones so rebase those too
+			if (runningOn >= 0) {
+				CPU cpu = m_cores[runningOn];
+				cpu.setBASE(newBase);
+				cpu.setSP(cpu.getSP() - oldBase + newBase);
+				cpu.setPC(cpu.getPC() - oldBase + newBase);
 			}
 
 			//limit does not need to be changed since it is a logical address
 			
-			if (m_debug)
-				if (this == m_currProcess) {
-					m_CPU.setBASE(newBase);
-					
-					newSP = m_CPU.getSP() - oldBase + newBase;
-					m_CPU.setPC(newPC);
-					
-					newPC = m_CPU.getPC() - oldBase + newBase;
-					m_CPU.setSP(newSP);
-				}		
 			debugPrintln("Process " + this.getProcessId() + " has moved from " + oldBase + " to " + newBase);
 
 			return true;
@@ -1,5 +1,6 @@
 package sos;
 
+import java.security.Permission;
 import java.util.*;
 
 /**
@@ -28,11 +29,15 @@ public class Sim
      */
     static class ExitCatcher extends SecurityManager
     {
-        private boolean m_caught = false;
+        private volatile boolean m_caught = false;
+
+        /** the thread that is allowed to end the simulation */
+        private Thread m_owner = null;
 
         public ExitCatcher()
         {
             super();
+            m_owner = Thread.currentThread();
         }
 
         public boolean isExitCaught()
@@ -43,7 +48,9 @@ public class Sim
         public void checkExit(int status)
         {
             super.checkExit(status);
-            if (!m_caught)
+            //Every simulated thread is stopped (there may be several CPU
+            //cores that each try to end the simulation)
+            if ((!m_caught) || (Thread.currentThread() != m_owner))
             {
                 m_caught = true;
                 throw new SecurityException();
@@ -54,6 +61,12 @@ public class Sim
         {
         	//do nothing
         }
+
+        public void checkPermission(Permission perm)
+        {
+            //everything except exiting is allowed (the block compiler needs
+            //to create class loaders, for example)
+        }
     }//ExitCatcher
 
     /**
@@ -85,6 +98,140 @@ public class Sim
      */
     private static ExitCatcher m_EC = new ExitCatcher();
     private static DoNothingHandler m_DNH = new DoNothingHandler();
+
+    /**
+     * whether the CPU fetches through a decoded-instruction cache
+     */
+    public static final boolean USE_INSTRUCTION_CACHE = true;
+
+    /**
+     * whether hot basic blocks are compiled to JVM bytecode.  (Compiled code
+     * is only run when RAM_LATENCY is 0 since it can't reproduce the timing
+     * of RAM accesses exactly.)
+     */
+    public static final boolean USE_BLOCK_COMPILER = true;
+
+    /**
+     * whether the interpreter runs common sequences of instructions (e.g.,
+     * SET, PUSH, TRAP) as one fused operation.  The result is the same
+     * either way.
+     */
+    public static final boolean USE_FUSION = true;
+
+    /**
+     * whether the cores run programs with the loop that keeps PC, SP, BASE
+     * and LIM in locals (see CPU.setThreaded).  The result is the same
+     * either way.
+     */
+    public static final boolean USE_THREADED_CORE = true;
+
+    /**
+     * whether each core translates addresses through a TLB and, if so, its
+     * shape (see {@link TLB})
+     */
+    public static final boolean USE_TLB = true;
+    public static final int TLB_ENTRIES = TLB.DEFAULT_NUM_ENTRIES;
+    public static final int TLB_ASSOCIATIVITY = TLB.DEFAULT_ASSOCIATIVITY;
+    public static final int TLB_POLICY = TLB.LRU;
+
+    /**
+     * the size of virtual memory.  Anything beyond the size of RAM is backed
+     * by a swap file.
+     */
+    public static final int VIRTUAL_MEMORY_SIZE = 8192;
+
+    /**
+     * if this is not null every page the MMU translates is recorded in this
+     * file so that replacement policies can be compared with
+     * {@link PageReplay}
+     */
+    public static final String PAGE_TRACE_FILE = null;
+
+    /**
+     * whether the RAM is stored in a memory-mapped file (see
+     * {@link MappedRAM}) rather than on the heap
+     */
+    public static final boolean USE_MAPPED_RAM = false;
+
+    /**
+     * the number of CPU cycles charged for each RAM access
+     */
+    public static final int RAM_LATENCY = 0;
+
+    /**
+     * the number of CPU cores to simulate
+     */
+    public static final int NUM_CORES = 1;
+
+    /**
+     * how the OS chooses the next process to run (one of the SOS.SCHED
+     * constants).  An MLFQ has one level per entry in MLFQ_QUANTA, which
+     * gives each level's time slice (highest priority first), and moves a
+     * process that has been Ready for MLFQ_STARVE_LIMIT ticks to the top.
+     */
+    public static final int SCHEDULING_POLICY = SOS.SCHED_RANDOM;
+    public static final int[] MLFQ_QUANTA = { 5, 10, 20, 40 };
+    public static final int MLFQ_STARVE_LIMIT = 1000;
+
+    /**
+     * whether each core has its own run queue (with work stealing and load
+     * balancing) rather than all of them sharing one
+     */
+    public static final boolean PER_CORE_RUN_QUEUES = true;
+
+    /**
+     * how the OS allocates memory to processes (SOS.ALLOC_FIRST_FIT or
+     * SOS.ALLOC_BUDDY)
+     */
+    public static final int MEMORY_ALLOCATOR = SOS.ALLOC_FIRST_FIT;
+
+    /**
+     * the most pages that first fit's incremental compactor may move at each
+     * clock interrupt (0 only compacts when an allocation fails)
+     */
+    public static final int COMPACTION_PAGES_PER_TICK = 4;
+
+    /**
+     * whether processes running the same program share the frames that hold
+     * its image (copy-on-write) instead of each getting a copy
+     */
+    public static final boolean SHARE_PROGRAM_TEXT = true;
+
+    /**
+     * whether the OS prints each process's share of the CPU and scheduling
+     * latency when it exits.  This is off by default so that the output is
+     * just the simulation's trace; set it to true to see the reports.
+     */
+    public static final boolean PROCESS_REPORT = false;
+
+    /**
+     * whether the time taken to load (or parse) each program is printed
+     * before the simulation starts.  This is off by default so that the
+     * output is just the simulation's trace; set it to true to see the
+     * table.
+     */
+    public static final boolean PROGRAM_LOAD_REPORT = false;
+
+    /**
+     * whether programs are run through the peephole optimizer when they are
+     * loaded.  This is off by default since the test programs are meant to
+     * take a certain amount of time (and optimizing them shortens it).
+     */
+    public static final boolean OPTIMIZE_PROGRAMS = false;
+
+    /**
+     * the simulated RAM (kept so that statistics can be reported at the end
+     * of the simulation)
+     */
+    private static RAM m_RAM = null;
+
+    /**
+     * the simulated CPU cores, MMU and OS (kept for the same reason)
+     */
+    private static CPU[] m_cores = null;
+    private static MMU m_MMU = null;
+    private static SOS m_OS = null;
+    private static DeviceEngine m_engine = null;
     
     /*======================================================================-
      * Methods
@@ -101,93 +248,138 @@ public class Sim
     public static void runAllocTest()
     {
         //Create the simulated hardware and OS
-        RAM ram = new RAM(4096, 0);
-        MMU mmu = new MMU(ram, 4096, 64);
-        InterruptController ic = new InterruptController();
-        KeyboardDevice kd = new KeyboardDevice(ic);
+        RAM ram = null;
+        if (USE_MAPPED_RAM)
+        {
+            try
+            {
+                ram = new MappedRAM(4096, RAM_LATENCY);
+            }
+            catch(java.io.IOException ioe)
+            {
+                System.out.println("ERROR: Could not create the RAM file: " + ioe);
+                return;
+            }
+        }
+        else
+        {
+            ram = new RAM(4096, RAM_LATENCY);
+        }
+        InstructionCache icache = new InstructionCache();
+        icache.setEnabled(USE_INSTRUCTION_CACHE);
+        ram.setInstructionCache(icache);
+        m_RAM = ram;
+        MMU mmu = new MMU(ram, VIRTUAL_MEMORY_SIZE, 64);
+        if (PAGE_TRACE_FILE != null)
+        {
+            try
+            {
+                mmu.setTrace(new PageTrace(new java.io.File(PAGE_TRACE_FILE), mmu.getOffsetSize()));
+            }
+            catch(java.io.IOException ioe)
+            {
+                System.out.println("ERROR: Could not create the page trace: " + ioe);
+                return;
+            }
+        }
+        InterruptController ic = new InterruptController(NUM_CORES);
+        DeviceEngine engine = new DeviceEngine();
+        m_engine = engine;
+        KeyboardDevice kd = new KeyboardDevice(ic, engine);
         kd.setId(0);
-        ConsoleDevice cd = new ConsoleDevice(ic);
+        ConsoleDevice cd = new ConsoleDevice(ic, engine);
         cd.setId(1);
-        CPU cpu = new CPU(ram, ic, mmu);
-        SOS os  = new SOS(cpu, ram, mmu);
-
-        //Register the device drivers with the OS
-        os.registerDevice(kd, 0);
-        os.registerDevice(cd, 1);
-
-        //Load the program into RAM
-        Program prog = new Program();
-        if (prog.load("quickspawn20.asm", false) != 0)
+        BlockCompiler jit = null;
+        if (USE_BLOCK_COMPILER)
         {
-            System.out.println("ERROR: Could not load quickspawn20.asm");
-            return;
+            jit = new BlockCompiler(ram, mmu);
+            ram.setBlockCompiler(jit);
         }
-        os.createProcess(prog,  1200);
-
-        //Register other programs for Exec system calls.  These processes have
-        //been designed to encourage memory fragmentation
-        prog = new Program();
-        if (prog.load("quickspawn1a.asm", false) != 0)
+        CPU[] cores = new CPU[NUM_CORES];
+        for(int i = 0; i < NUM_CORES; i++)
         {
-            System.out.println("ERROR: Could not load quickspawn1a.asm");
-            return;
+            cores[i] = new CPU(ram, ic, mmu, i);
+            cores[i].setBlockCompiler(jit);
+            cores[i].setFusionEnabled(USE_FUSION);
+            cores[i].setThreaded(USE_THREADED_CORE);
+            if (USE_TLB)
+            {
+                mmu.setTLB(i, new TLB(TLB_ENTRIES, TLB_ASSOCIATIVITY, TLB_POLICY));
+            }
         }
-        os.addProgram(prog);
-        prog = new Program();
-        if (prog.load("quickspawn1b.asm", false) != 0)
+        m_cores = cores;
+        m_MMU = mmu;
+        SOS os  = new SOS(cores, ram, mmu);
+        m_OS = os;
+        try
         {
-            System.out.println("ERROR: Could not load quickspawn1b.asm");
-            return;
+            os.setSwapFile(new SwapFile(mmu.getNumPages(), mmu.getPageSize()));
         }
-        os.addProgram(prog);
-        prog = new Program();
-        if (prog.load("quickspawn1c.asm", false) != 0)
+        catch(java.io.IOException ioe)
         {
-            System.out.println("ERROR: Could not load quickspawn1c.asm");
+            System.out.println("ERROR: Could not create the swap file: " + ioe);
             return;
         }
-        os.addProgram(prog);
-        prog = new Program();
-        if (prog.load("quickspawn1d.asm", false) != 0)
+
+        if (SCHEDULING_POLICY == SOS.SCHED_MLFQ)
         {
-            System.out.println("ERROR: Could not load quickspawn1d.asm");
-            return;
+            os.useMlfqScheduler(MLFQ_QUANTA, MLFQ_STARVE_LIMIT);
         }
-        os.addProgram(prog);
-        prog = new Program();
-        if (prog.load("quickspawn1e.asm", false) != 0)
+        else
         {
-            System.out.println("ERROR: Could not load quickspawn1e.asm");
-            return;
+            os.setSchedulingPolicy(SCHEDULING_POLICY);
         }
-        os.addProgram(prog);
-        prog = new Program();
-        if (prog.load("thinker.asm", false) != 0)
+        os.setPerCoreRunQueues(PER_CORE_RUN_QUEUES);
+        os.setMemoryAllocator(MEMORY_ALLOCATOR);
+        os.setCompactionRate(COMPACTION_PAGES_PER_TICK);
+        os.setShareProgramText(SHARE_PROGRAM_TEXT);
+        os.setProcessReport(PROCESS_REPORT);
+
+        //Spread the device interrupts across the cores
+        ic.setRoute(0, 0);
+        ic.setRoute(1, NUM_CORES - 1);
+
+        //Register the device drivers with the OS
+        os.registerDevice(kd, 0);
+        os.registerDevice(cd, 1);
+
+        //Load the programs (in parallel).  The processes that quickspawn20
+        //Execs have been designed to encourage memory fragmentation.
+        ProgramLibrary lib = new ProgramLibrary();
+        lib.setOptimize(OPTIMIZE_PROGRAMS);
+        if (lib.loadAll("quickspawn20.asm", "quickspawn1a.asm", "quickspawn1b.asm",
+                        "quickspawn1c.asm", "quickspawn1d.asm", "quickspawn1e.asm",
+                        "thinker.asm", "bigthinker.asm") != 0)
         {
-            System.out.println("ERROR: Could not load thinker.asm");
+            System.out.println("ERROR: Could not load " + lib.getFailures());
             return;
         }
-        os.addProgram(prog);
-        prog = new Program();
-        if (prog.load("bigthinker.asm", false) != 0)
+        if (PROGRAM_LOAD_REPORT)
         {
-            System.out.println("ERROR: Could not load bigthinker.asm");
-            return;
+            System.out.println(lib.getReport());
         }
-        os.addProgram(prog);
 
-        //Start up the devices
-        Thread t = new Thread(cd);
-        t.setUncaughtExceptionHandler(m_DNH);
-        t.start();
-        t = new Thread(kd);
+        //Load the first program into RAM and register the others for Exec
+        //system calls
+        List<Program> progs = lib.getPrograms();
+        os.createProcess(progs.get(0),  1200);
+        for(Program prog : progs.subList(1, progs.size()))
+        {
+            os.addProgram(prog);
+        }
+
+        //Start up the device engine
+        Thread t = new Thread(engine);
         t.setUncaughtExceptionHandler(m_DNH);
         t.start();
         
         //Run the simulation
-        t = new Thread(cpu);
-        t.setUncaughtExceptionHandler(m_DNH);
-        t.start();
+        for(int i = NUM_CORES - 1; i >= 0; i--)
+        {
+            t = new Thread(cores[i]);
+            t.setUncaughtExceptionHandler(m_DNH);
+            t.start();
+        }
 
         //Wait until System.exit() is called
         while(!m_EC.isExitCaught())
@@ -205,6 +397,65 @@ public class Sim
 
     }//runAllocTest
 
+    /**
+     * printStatistics
+     *
+     * reports the statistics gathered by the simulated hardware
+     *
+     * @param elapsed  the length of the simulation in milliseconds
+     */
+    public static void printStatistics(long elapsed)
+    {
+        if (m_cores != null)
+        {
+            long total = 0;
+            long fused = 0;
+            for(CPU core : m_cores)
+            {
+                total += core.getInstructionCount();
+                fused += core.getFusedCount();
+            }
+            double ips = (elapsed == 0) ? 0.0 : (1000.0 * total) / elapsed;
+            System.out.println("Guest Instructions: " + total + " on "
+                               + m_cores.length + " core(s)"
+                               + String.format(" (%.0f per second)", ips)
+                               + ", fused sequences=" + fused);
+        }
+        if ((m_cores != null) && (m_MMU != null))
+        {
+            for(CPU core : m_cores)
+            {
+                TLB tlb = m_MMU.getTLB(core.getCoreId());
+                if (tlb != null)
+                {
+                    System.out.println("Core " + core.getCoreId() + " " + tlb);
+                }
+            }
+        }
+        if (m_OS != null)
+        {
+            System.out.println(m_OS.getMemoryStatistics());
+            System.out.println(m_OS.getPagingStatistics());
+            System.out.println(m_OS.getSchedulingStatistics());
+        }
+        if ((m_MMU != null) && (m_MMU.getTrace() != null))
+        {
+            System.out.println(m_MMU.getTrace());
+        }
+        if (m_engine != null)
+        {
+            System.out.println(m_engine);
+        }
+        if ((m_RAM != null) && (m_RAM.getInstructionCache() != null))
+        {
+            System.out.println(m_RAM.getInstructionCache());
+        }
+        if ((m_RAM != null) && (m_RAM.getBlockCompiler() != null))
+        {
+            System.out.println(m_RAM.getBlockCompiler());
+        }
+    }//printStatistics
+
     /**
      * main
      *
@@ -250,11 +501,25 @@ public class Sim
             try{ System.exit(-42); } catch (SecurityException se) { }
         }
 
+        //Finish writing the page trace (if any)
+        if ((m_MMU != null) && (m_MMU.getTrace() != null))
+        {
+            try
+            {
+                m_MMU.getTrace().close();
+            }
+            catch(java.io.IOException ioe)
+            {
+                System.out.println("ERROR: Could not close the page trace: " + ioe);
+            }
+        }
+
         //Print the final timing info for the user
         System.out.println("");
         System.out.println("");
         System.out.println("END OF SIMULATION");
         System.out.println("Total Simulation Time: " + (endTime - startTime) + "ms");
+        printStatistics(endTime - startTime);
 
         System.exit(0);
         
@@ -0,0 +1,252 @@
+package sos;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * This class simulates the swap area of a disk.  It holds the contents of
+ * virtual pages that have been evicted from RAM.  Each virtual page has its
+ * own slot so no allocation is necessary.
+ *
+ * The swap area is stored in a file that is mapped into memory, which lets
+ * the host's virtual memory system decide which parts of it actually need
+ * to be in (real) RAM.
+ *
+ * @see SOS
+ * @see MMU
+ */
+public class SwapFile
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the number of bytes in a simulated word */
+    private static final int WORD_BYTES = 4;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the file the swap area is stored in
+     */
+    private File m_path = null;
+
+    /**
+     * the open file
+     */
+    private RandomAccessFile m_file = null;
+
+    /**
+     * the contents of the file
+     */
+    private IntBuffer m_slots = null;
+
+    /**
+     * the number of words in a page
+     */
+    private int m_pageSize = 0;
+
+    /**
+     * which slots contain a copy of their page
+     */
+    private BitSet m_inUse = new BitSet();
+
+    /**
+     * statistics
+     */
+    private long m_pageIns = 0;
+    private long m_pageOuts = 0;
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates a swap area in a given file.  Any existing
+     * contents of the file are ignored.
+     *
+     * @param path      the file to store the swap area in
+     * @param numPages  the number of virtual pages (see {@link MMU#getNumPages})
+     * @param pageSize  the number of words in a page
+     */
+    public SwapFile(File path, int numPages, int pageSize) throws IOException
+    {
+        m_path = path;
+        m_pageSize = pageSize;
+
+        long bytes = (long)numPages * pageSize * WORD_BYTES;
+        m_file = new RandomAccessFile(path, "rw");
+        m_file.setLength(bytes);
+        m_slots = m_file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes).asIntBuffer();
+    }//ctor
+
+    /**
+     * This constructor stores the swap area in a temporary file that is
+     * deleted when the simulation ends.
+     */
+    public SwapFile(int numPages, int pageSize) throws IOException
+    {
+        this(createTempFile(), numPages, pageSize);
+    }
+
+    /**
+     * createTempFile
+     *
+     * @return a new file that will be deleted on exit
+     */
+    private static File createTempFile() throws IOException
+    {
+        File f = File.createTempFile("sos", ".swap");
+        f.deleteOnExit();
+        return f;
+    }
+
+    //======================================================================
+    // Accessor Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * getPath
+     */
+    public File getPath()
+    {
+        return m_path;
+    }
+
+    /**
+     * getPageIns
+     *
+     * @return the number of pages that have been read from swap
+     */
+    public long getPageIns()
+    {
+        return m_pageIns;
+    }
+
+    /**
+     * getPageOuts
+     *
+     * @return the number of pages that have been written to swap
+     */
+    public long getPageOuts()
+    {
+        return m_pageOuts;
+    }
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * contains
+     *
+     * @return true if the swap area holds a copy of a given page
+     */
+    public boolean contains(int page)
+    {
+        return m_inUse.get(page);
+    }
+
+    /**
+     * readPage
+     *
+     * copies a page out of the swap area
+     *
+     * @param page  the virtual page number
+     * @param buf   receives the page (must hold a whole page)
+     */
+    public void readPage(int page, int[] buf)
+    {
+        int base = page * m_pageSize;
+        for(int i = 0; i < m_pageSize; i++)
+        {
+            buf[i] = m_slots.get(base + i);
+        }
+        m_pageIns++;
+    }//readPage
+
+    /**
+     * writePage
+     *
+     * copies a page into the swap area
+     *
+     * @param page  the virtual page number
+     * @param buf   the contents of the page
+     */
+    public void writePage(int page, int[] buf)
+    {
+        int base = page * m_pageSize;
+        for(int i = 0; i < m_pageSize; i++)
+        {
+            m_slots.put(base + i, buf[i]);
+        }
+        m_inUse.set(page);
+        m_pageOuts++;
+    }//writePage
+
+    /**
+     * discard
+     *
+     * forgets the copy of a page (e.g., because its process has exited)
+     *
+     * @param page  the virtual page number
+     */
+    public void discard(int page)
+    {
+        m_inUse.clear(page);
+    }//discard
+
+    /**
+     * swapSlots
+     *
+     * exchanges the contents of two slots.  This is used when the OS moves a
+     * page from one virtual address to another.
+     *
+     * @param a  a virtual page number
+     * @param b  another virtual page number
+     */
+    public void swapSlots(int a, int b)
+    {
+        boolean aInUse = m_inUse.get(a);
+        boolean bInUse = m_inUse.get(b);
+        if (aInUse || bInUse)
+        {
+            int baseA = a * m_pageSize;
+            int baseB = b * m_pageSize;
+            for(int i = 0; i < m_pageSize; i++)
+            {
+                int tmp = m_slots.get(baseA + i);
+                m_slots.put(baseA + i, m_slots.get(baseB + i));
+                m_slots.put(baseB + i, tmp);
+            }
+        }
+        m_inUse.set(a, bInUse);
+        m_inUse.set(b, aInUse);
+    }//swapSlots
+
+    /**
+     * close
+     *
+     * releases the file
+     */
+    public void close() throws IOException
+    {
+        m_file.close();
+    }//close
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the swap statistics
+     */
+    public String toString()
+    {
+        return "Swap: " + m_inUse.cardinality() + " pages stored, page ins="
+            + m_pageIns + " page outs=" + m_pageOuts;
+    }//toString
+
+};//class SwapFile
@@ -0,0 +1,319 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This class simulates a translation lookaside buffer.  It caches recent
+ * page table entries so that the MMU does not have to read the page table in
+ * RAM on every memory access.
+ *
+ * The TLB is set associative.  A page can only be cached in the set given by
+ * the low bits of its page number and, within that set, in any of the
+ * set's ways.  When a set is full an entry is chosen for replacement using
+ * one of the policies defined below.
+ *
+ * The TLB is not kept coherent with the page table automatically.  The OS
+ * is responsible for calling {@link #invalidate} or {@link #flush} (via the
+ * MMU) whenever it changes a mapping.
+ *
+ * @see MMU
+ * @see SOS
+ */
+public class TLB
+{
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+    public static final int DEFAULT_NUM_ENTRIES = 16;
+    public static final int DEFAULT_ASSOCIATIVITY = 4;
+
+    //These constants define the replacement policies
+    public static final int LRU    = 0;    /* replace the least recently used entry */
+    public static final int FIFO   = 1;    /* replace the oldest entry */
+    public static final int RANDOM = 2;    /* replace any entry */
+
+    /** page number of an entry that contains no translation */
+    private static final int INVALID_PAGE = -1;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the number of entries in the TLB (always a power of 2)
+     */
+    private int m_numEntries = 0;
+
+    /**
+     * the number of entries in each set
+     */
+    private int m_ways = 0;
+
+    /**
+     * contains a 1 in every bit of a set number
+     */
+    private int m_setMask = 0;
+
+    /**
+     * one of the replacement policy constants
+     */
+    private int m_policy = LRU;
+
+    /**
+     * the page cached in each entry.  Set i occupies the entries i*m_ways
+     * through (i+1)*m_ways - 1.
+     */
+    private int m_pages[] = null;
+
+    /**
+     * the page table entry cached for each entry's page
+     */
+    private int m_entries[] = null;
+
+    /**
+     * when each entry was last used (LRU) or filled (FIFO)
+     */
+    private long m_stamps[] = null;
+
+    /**
+     * advances on every access so that stamps can be compared
+     */
+    private long m_clock = 0;
+
+    /**
+     * used by the RANDOM policy
+     */
+    private Random m_rand = new Random(0);
+
+    /**
+     * statistics
+     */
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_flushes = 0;
+    private long m_shootdowns = 0;
+
+    //======================================================================
+    // Constructors
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor creates an empty TLB
+     *
+     * @param numEntries    the number of translations the TLB can hold.  If
+     *                      this is not a power of 2 it will be adjusted to the
+     *                      next power of 2.
+     * @param associativity the number of entries in each set.  This is
+     *                      adjusted to a power of 2 no larger than numEntries.
+     *                      Use numEntries for a fully associative TLB and 1
+     *                      for a direct mapped one.
+     * @param policy        the replacement policy (LRU, FIFO or RANDOM)
+     */
+    public TLB(int numEntries, int associativity, int policy)
+    {
+        m_numEntries = 1;
+        while(m_numEntries < numEntries)
+        {
+            m_numEntries = m_numEntries << 1;
+        }
+        m_ways = 1;
+        while((m_ways < associativity) && (m_ways < m_numEntries))
+        {
+            m_ways = m_ways << 1;
+        }
+        m_setMask = (m_numEntries / m_ways) - 1;
+        m_policy = policy;
+
+        m_pages = new int[m_numEntries];
+        m_entries = new int[m_numEntries];
+        m_stamps = new long[m_numEntries];
+        Arrays.fill(m_pages, INVALID_PAGE);
+    }//ctor
+
+    /**
+     * This constructor uses the default size and associativity and LRU
+     * replacement
+     */
+    public TLB()
+    {
+        this(DEFAULT_NUM_ENTRIES, DEFAULT_ASSOCIATIVITY, LRU);
+    }
+
+    //======================================================================
+    // Accessor Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * getNumEntries
+     */
+    public int getNumEntries()
+    {
+        return m_numEntries;
+    }
+
+    /**
+     * getAssociativity
+     */
+    public int getAssociativity()
+    {
+        return m_ways;
+    }
+
+    /**
+     * getHits
+     */
+    public long getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * getMisses
+     */
+    public long getMisses()
+    {
+        return m_misses;
+    }
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * lookup
+     *
+     * @param page  a virtual page number
+     * @return      the page's page table entry or -1 on a miss
+     */
+    public int lookup(int page)
+    {
+        int base = (page & m_setMask) * m_ways;
+        for(int i = base; i < base + m_ways; i++)
+        {
+            if (m_pages[i] == page)
+            {
+                if (m_policy == LRU)
+                {
+                    m_stamps[i] = ++m_clock;
+                }
+                m_hits++;
+                return m_entries[i];
+            }
+        }
+
+        m_misses++;
+        return -1;
+    }//lookup
+
+    /**
+     * insert
+     *
+     * caches a page table entry that was just read from the page table.  If
+     * the page is already cached its entry is replaced.
+     *
+     * @param page   the virtual page number
+     * @param entry  the page table entry (must be valid)
+     */
+    public void insert(int page, int entry)
+    {
+        int base = (page & m_setMask) * m_ways;
+
+        //Reuse the page's own entry or an empty one if there is one,
+        //otherwise ask the policy
+        int victim = -1;
+        for(int i = base; i < base + m_ways; i++)
+        {
+            if (m_pages[i] == page)
+            {
+                victim = i;
+                break;
+            }
+            if ((victim == -1) && (m_pages[i] == INVALID_PAGE))
+            {
+                victim = i;
+            }
+        }
+        if (victim == -1)
+        {
+            victim = selectVictim(base);
+        }
+
+        m_pages[victim] = page;
+        m_entries[victim] = entry;
+        m_stamps[victim] = ++m_clock;
+    }//insert
+
+    /**
+     * selectVictim
+     *
+     * @param base  the index of the first entry in a full set
+     * @return      the index of the entry to replace
+     */
+    private int selectVictim(int base)
+    {
+        if (m_policy == RANDOM)
+        {
+            return base + m_rand.nextInt(m_ways);
+        }
+
+        //LRU and FIFO both evict the entry with the oldest stamp.  They only
+        //differ in when the stamp is updated.
+        int victim = base;
+        for(int i = base + 1; i < base + m_ways; i++)
+        {
+            if (m_stamps[i] < m_stamps[victim])
+            {
+                victim = i;
+            }
+        }
+        return victim;
+    }//selectVictim
+
+    /**
+     * invalidate
+     *
+     * drops the translation for a single page (if it is cached)
+     *
+     * @param page  the virtual page number
+     */
+    public void invalidate(int page)
+    {
+        int base = (page & m_setMask) * m_ways;
+        for(int i = base; i < base + m_ways; i++)
+        {
+            if (m_pages[i] == page)
+            {
+                m_pages[i] = INVALID_PAGE;
+                m_shootdowns++;
+            }
+        }
+    }//invalidate
+
+    /**
+     * flush
+     *
+     * drops every translation
+     */
+    public void flush()
+    {
+        Arrays.fill(m_pages, INVALID_PAGE);
+        m_flushes++;
+    }//flush
+
+    /**
+     * toString
+     *
+     * @return a one line summary of the TLB statistics
+     */
+    public String toString()
+    {
+        long total = m_hits + m_misses;
+        double hitRate = (total == 0) ? 0.0 : (100.0 * m_hits) / total;
+        String policy = (m_policy == LRU) ? "LRU" : (m_policy == FIFO) ? "FIFO" : "RANDOM";
+        return "TLB: " + m_numEntries + " entries, " + m_ways + "-way " + policy
+            + ", hits=" + m_hits + " misses=" + m_misses
+            + " flushes=" + m_flushes + " shootdowns=" + m_shootdowns
+            + String.format(" (%.2f%% hit rate)", hitRate);
+    }//toString
+
+};//class TLB
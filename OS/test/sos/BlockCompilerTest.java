@@ -0,0 +1,212 @@
+package sos;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This test runs a hot loop (one that goes around far more often than the
+ * {@link BlockCompiler}'s threshold) with and without the block compiler and
+ * checks that both runs take the same number of ticks and finish with the
+ * same registers, and that the compiled run really did run most of its
+ * instructions as compiled code.  It does so for both CPU run loops.
+ *
+ * (None of the programs bundled with the simulator run long enough for their
+ * blocks to be compiled so they don't test the compiler at all.)
+ */
+public class BlockCompilerTest
+{
+    /*======================================================================
+     * Inner Classes
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Stop
+     *
+     * is thrown by the trap handler to stop the CPU
+     */
+    private static class Stop extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public Stop()
+        {
+            super("stop", null, false, false);
+        }
+    };//class Stop
+
+    /**
+     * Handler
+     *
+     * ignores the clock and stops the CPU at the TRAP that ends the program
+     * (or at anything that goes wrong)
+     */
+    private static class Handler implements CPU.TrapHandler
+    {
+        private String m_why = null;
+
+        public String getWhy()
+        {
+            return m_why;
+        }
+
+        private void stop(String why)
+        {
+            m_why = why;
+            throw new Stop();
+        }
+
+        public void interruptIllegalMemoryAccess(int addr) { stop("illegal memory access"); }
+        public void interruptDivideByZero() { stop("divide by zero"); }
+        public void interruptIllegalInstruction(int[] instr) { stop("illegal instruction"); }
+        public void interruptPageFault(int addr) { stop("page fault"); }
+        public void interruptIOReadComplete(int devID, int addr, int data) { }
+        public void interruptIOWriteComplete(int devID, int addr) { }
+        public void interruptClock() { }
+        public void systemCall() { stop("trap"); }
+    };//class Handler
+
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the shape of memory */
+    private static final int RAM_SIZE = 4096;
+    private static final int PAGE_SIZE = 64;
+
+    /** where the program is loaded and how much memory it gets */
+    private static final int BASE = 1024;
+    private static final int LIMIT = 1024;
+
+    /** how many times the program goes around its loop */
+    private static final int ITERATIONS = 3000;
+
+    /**
+     * a loop of 12 instructions that can all be compiled followed by its BLT
+     * back edge
+     */
+    private static final String HOT_LOOP =
+        "SET R1 0\n" +
+        "SET R2 1\n" +
+        "SET R3 " + ITERATIONS + "\n" +
+        ":loop\n" +
+        "ADD R1 R1 R2\n" +
+        "SET R4 7\n" +
+        "MUL R0 R1 R4\n" +
+        "DIV R0 R0 R4\n" +
+        "PUSH R0\n" +
+        "POP R4\n" +
+        "SET R0 300\n" +
+        "SAVE R4 R0\n" +
+        "LOAD R4 R0\n" +
+        "SUB R4 R4 R1\n" +
+        "COPY R0 R4\n" +
+        "ADD R0 R0 R2\n" +
+        "BLT R1 R3 loop\n" +
+        "TRAP\n";
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /** the program's source is written here */
+    @Rule
+    public TemporaryFolder m_tmp = new TemporaryFolder();
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * run
+     *
+     * runs a program on a bare CPU until it traps
+     *
+     * @param prog      the program
+     * @param useJIT    whether the block compiler is used
+     * @param threaded  which run loop to use (see CPU.setThreaded)
+     * @return how the program stopped, the ticks it took and its registers
+     */
+    private static String run(Program prog, boolean useJIT, boolean threaded)
+    {
+        RAM ram = new RAM(RAM_SIZE, 0);
+        MMU mmu = new MMU(ram, RAM_SIZE, PAGE_SIZE);
+        for(int page = 0; page < mmu.getNumPages(); page++)
+        {
+            ram.write(page, (page << mmu.getOffsetSize()) | MMU.VALID);
+        }
+        CPU cpu = new CPU(ram, new InterruptController(), mmu);
+        BlockCompiler jit = null;
+        if (useJIT)
+        {
+            jit = new BlockCompiler(ram, mmu);
+            ram.setBlockCompiler(jit);
+            cpu.setBlockCompiler(jit);
+        }
+        cpu.setThreaded(threaded);
+        Handler handler = new Handler();
+        cpu.registerTrapHandler(handler);
+
+        int[] image = prog.export();
+        for(int i = 0; i < image.length; i++)
+        {
+            mmu.write(BASE + i, image[i]);
+        }
+        cpu.setBASE(BASE);
+        cpu.setLIM(LIMIT);
+        cpu.setPC(BASE);
+        cpu.setSP(BASE + LIMIT - 1);
+
+        try
+        {
+            cpu.run();
+        }
+        catch(Stop s)
+        {
+            //the program finished
+        }
+
+        if (useJIT)
+        {
+            //Most of the loop's instructions are in its compiled block.  Only
+            //the BLT, the instruction that reaches each clock interrupt and
+            //the iterations before the block is hot are interpreted.
+            long compiled = jit.getCompiledInstructions();
+            long total = cpu.getInstructionCount();
+            assertTrue("only " + compiled + " of " + total + " instructions were compiled",
+                       compiled * 2 > total);
+        }
+
+        return handler.getWhy() + " ticks " + cpu.getTicks() + " registers "
+            + Arrays.toString(Arrays.copyOf(cpu.getRegisters(), CPU.NUMGENREG));
+    }//run
+
+    /**
+     * testHotLoop
+     *
+     * runs the hot loop with and without the compiler on both run loops
+     */
+    @Test
+    public void testHotLoop() throws IOException
+    {
+        File asm = m_tmp.newFile("hotloop" + ProgramLibrary.ASM_EXTENSION);
+        Files.write(asm.toPath(), HOT_LOOP.getBytes());
+        Program prog = new Program();
+        assertEquals(0, prog.load(asm.getPath(), false));
+
+        String expected = run(prog, false, false);
+        assertTrue(expected, expected.startsWith("trap"));
+        assertEquals("switch loop", expected, run(prog, true, false));
+        assertEquals("threaded loop", expected, run(prog, false, true));
+        assertEquals("threaded loop with the compiler", expected, run(prog, true, true));
+    }//testHotLoop
+
+};//class BlockCompilerTest
@@ -0,0 +1,271 @@
+package sos;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This test runs every program bundled with the simulator (the .asm files in
+ * the OS directory) with and without the {@link PeepholeOptimizer} and checks
+ * that both versions make the same system calls with the same arguments and
+ * finish with the same general purpose registers.  (The optimizer is allowed
+ * to change how many ticks a program takes and where its PC and SP end up.)
+ *
+ * Each program runs on its own bare CPU with an identity page table and a
+ * trap handler that stands in for the OS: it records each system call and
+ * its arguments, gives the answers a real OS would and stops the CPU when
+ * the program exits, crashes or runs for too long.
+ */
+public class PeepholeOptimizerTest
+{
+    /*======================================================================
+     * Inner Classes
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Stop
+     *
+     * is thrown by the trap handler to stop the CPU
+     */
+    private static class Stop extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public Stop()
+        {
+            super("stop", null, false, false);
+        }
+    };//class Stop
+
+    /**
+     * Recorder
+     *
+     * stands in for the OS and records everything the program asks it to do
+     */
+    private static class Recorder implements CPU.TrapHandler
+    {
+        private final CPU m_CPU;
+        private final StringBuilder m_log = new StringBuilder();
+        private int m_clocks = 0;
+
+        public Recorder(CPU cpu)
+        {
+            m_CPU = cpu;
+        }
+
+        public String getLog()
+        {
+            return m_log.toString();
+        }
+
+        private void stop(String why)
+        {
+            m_log.append(why).append('\n');
+            throw new Stop();
+        }
+
+        public void interruptIllegalMemoryAccess(int addr) { stop("illegal memory access"); }
+        public void interruptDivideByZero() { stop("divide by zero"); }
+        public void interruptIllegalInstruction(int[] instr) { stop("illegal instruction"); }
+        public void interruptPageFault(int addr) { stop("page fault"); }
+        public void interruptIOReadComplete(int devID, int addr, int data) { }
+        public void interruptIOWriteComplete(int devID, int addr) { }
+
+        public void interruptClock()
+        {
+            if (++m_clocks > MAX_CLOCKS)
+            {
+                stop("timeout");
+            }
+        }
+
+        public void systemCall()
+        {
+            int call = m_CPU.pop();
+            m_log.append("syscall ").append(call);
+            switch(call)
+            {
+                case SOS.SYSCALL_EXIT:
+                    stop(" exit");
+                    break;
+                case SOS.SYSCALL_COREDUMP:
+                    stop(" coredump");
+                    break;
+                case SOS.SYSCALL_OUTPUT:
+                    m_log.append(" output ").append(m_CPU.pop());
+                    break;
+                case SOS.SYSCALL_GETPID:
+                    m_CPU.push(42);
+                    break;
+                case SOS.SYSCALL_OPEN:
+                case SOS.SYSCALL_CLOSE:
+                    m_log.append(" device ").append(m_CPU.pop());
+                    m_CPU.push(0);
+                    break;
+                case SOS.SYSCALL_READ:
+                    m_log.append(" read ").append(m_CPU.pop()).append(',').append(m_CPU.pop());
+                    m_CPU.push(7);
+                    m_CPU.push(0);
+                    break;
+                case SOS.SYSCALL_WRITE:
+                    m_log.append(" write ").append(m_CPU.pop()).append(',').append(m_CPU.pop())
+                        .append(',').append(m_CPU.pop());
+                    m_CPU.push(0);
+                    break;
+                default:
+                    //EXEC, YIELD: nothing to do without an OS
+                    break;
+            }
+            m_log.append('\n');
+        }
+    };//class Recorder
+
+    //======================================================================
+    // Constants
+    //----------------------------------------------------------------------
+
+    /** the shape of memory */
+    private static final int RAM_SIZE = 4096;
+    private static final int PAGE_SIZE = 64;
+
+    /** where the program is loaded and how much memory it gets */
+    private static final int BASE = 1024;
+    private static final int LIMIT = 1024;
+
+    /** the number of clock interrupts before a program is stopped */
+    private static final int MAX_CLOCKS = 20000;
+
+    //======================================================================
+    // Member Variables
+    //----------------------------------------------------------------------
+
+    /** the programs are copied here so their object files stay out of OS/ */
+    @Rule
+    public TemporaryFolder m_tmp = new TemporaryFolder();
+
+    //======================================================================
+    // Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * run
+     *
+     * loads a program and runs it until it exits
+     *
+     * @return what the program did or null if it didn't load
+     */
+    private static String run(File asm, boolean optimize)
+    {
+        Program prog = new Program();
+        prog.setOptimize(optimize);
+        if (prog.load(asm.getPath(), false) != 0)
+        {
+            return null;
+        }
+
+        RAM ram = new RAM(RAM_SIZE, 0);
+        MMU mmu = new MMU(ram, RAM_SIZE, PAGE_SIZE);
+        for(int page = 0; page < mmu.getNumPages(); page++)
+        {
+            ram.write(page, (page << mmu.getOffsetSize()) | MMU.VALID);
+        }
+        CPU cpu = new CPU(ram, new InterruptController(), mmu);
+        Recorder rec = new Recorder(cpu);
+        cpu.registerTrapHandler(rec);
+
+        int[] image = prog.export();
+        for(int i = 0; i < image.length; i++)
+        {
+            mmu.write(BASE + i, image[i]);
+        }
+        cpu.setBASE(BASE);
+        cpu.setLIM(LIMIT);
+        cpu.setPC(BASE);
+        cpu.setSP(BASE + LIMIT - 1);
+
+        try
+        {
+            cpu.run();
+        }
+        catch(Stop s)
+        {
+            //the program finished
+        }
+
+        int[] regs = cpu.getRegisters();
+        return rec.getLog() + "registers " + Arrays.toString(Arrays.copyOf(regs, CPU.NUMGENREG));
+    }//run
+
+    /**
+     * testBundledPrograms
+     *
+     * runs every bundled program optimized and unoptimized
+     */
+    @Test
+    public void testBundledPrograms() throws IOException
+    {
+        File[] programs = new File(".").listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name)
+                {
+                    return name.endsWith(ProgramLibrary.ASM_EXTENSION);
+                }
+            });
+        assertNotNull(programs);
+        assertTrue("no programs found in " + new File(".").getAbsolutePath(),
+                   programs.length > 0);
+        Arrays.sort(programs);
+
+        int ran = 0;
+        for(File program : programs)
+        {
+            File asm = new File(m_tmp.getRoot(), program.getName());
+            Files.copy(program.toPath(), asm.toPath());
+
+            String plain = run(asm, false);
+            new File(Program.getObjectFileName(asm.getPath())).delete();
+            String optimized = run(asm, true);
+
+            if (plain == null)
+            {
+                //e.g., illegalInstruction.asm, which is meant to fail
+                assertNull(program.getName() + " only loads when optimized", optimized);
+                continue;
+            }
+            assertEquals(program.getName(), plain, optimized);
+            ran++;
+        }
+        assertTrue(ran > 0);
+    }//testBundledPrograms
+
+    /**
+     * testParseErrorNotOptimized
+     *
+     * a program that doesn't parse is rejected with the same error whether
+     * or not it is optimized
+     */
+    @Test
+    public void testParseErrorNotOptimized() throws IOException
+    {
+        File asm = m_tmp.newFile("broken" + ProgramLibrary.ASM_EXTENSION);
+        Files.write(asm.toPath(), "SET R0 1\nPUSH R0\nS3T R1 2\nBRANCH nowhere\n".getBytes());
+
+        Program plain = new Program();
+        int plainRet = plain.load(asm.getPath(), false);
+        Program optimized = new Program();
+        optimized.setOptimize(true);
+        int optRet = optimized.load(asm.getPath(), false);
+
+        assertTrue(plainRet < 0);
+        assertEquals(plainRet, optRet);
+    }//testParseErrorNotOptimized
+
+};//class PeepholeOptimizerTest